@@ -0,0 +1,562 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A dynamic bounding volume tree, where every node is the box around its two
+ * children and the leaves are the objects. The box kept for each object is
+ * "fat" - its bounds grown by a margin, and stretched further in the direction
+ * the object last moved - so an object only has to be taken out of the tree and
+ * put back once it escapes its fat box, rather than every time it crosses a
+ * fixed cell edge as in {@link QuadTree}. Objects moving every frame are then
+ * mostly just having their bounds recorded.
+ * <p>
+ * Leaves are placed where they grow the tree's boxes least, and nodes are
+ * rotated on the way back up after every insert and removal to keep the tree
+ * balanced. The handle of an object is the index of its leaf, which stays put
+ * however the tree is restructured around it.
+ * <p>
+ * Queries share a traversal stack and a Bounds instance, so one tree must not
+ * be queried from more than one thread at a time, nor from inside a visitor.
+ */
+public class AabbTree<A> implements SpatialIndex<A>
+{
+    private static final int NONE = -1;
+    
+    /** How many moves' worth of displacement the fat box is stretched by. */
+    private static final float DEFAULT_PREDICTION = 4.0f;
+    
+    private float margin;
+    private float prediction;
+    
+    private int root = NONE;
+    
+    /* Nodes. A leaf has height 0 and no children, a free node has height -1
+     * and is chained through nodeParent from freeNode. */
+    private float[]  nodeX1 = new float[0], nodeY1 = new float[0],
+                     nodeX2 = new float[0], nodeY2 = new float[0]; /* fat box */
+    private int[]    nodeParent = new int[0];
+    private int[]    nodeChild1 = new int[0], nodeChild2 = new int[0];
+    private int[]    nodeHeight = new int[0];
+    private Object[] nodeObj    = new Object[0];
+    private int      nodeEnd;
+    private int      freeNode = NONE;
+    
+    /* The bounds actually given for each leaf. */
+    private float[]  leafX1 = new float[0], leafY1 = new float[0],
+                     leafX2 = new float[0], leafY2 = new float[0];
+    
+    private int[]  stack       = new int[32];
+    private Bounds visitBounds = new Bounds(0.0f, 0.0f, 0.0f, 0.0f);
+    
+    public AabbTree(float margin)
+    {
+        this(margin, DEFAULT_PREDICTION);
+    }
+    
+    /** @param margin How far fat boxes extend beyond an object's bounds on
+     * every side.
+     * @param prediction How many times an object's last displacement the fat
+     * box is stretched by, in the direction of that displacement. Zero to
+     * ignore movement.
+     */
+    public AabbTree(float margin, float prediction)
+    {
+        this.margin     = margin;
+        this.prediction = prediction;
+    }
+    
+    /** @return Answers the handle to pass to move and remove for this object. */
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        final int leaf = allocNode();
+        nodeObj[leaf]    = obj;
+        nodeHeight[leaf] = 0;
+        nodeChild1[leaf] = NONE;
+        nodeChild2[leaf] = NONE;
+        setLeafBounds(leaf, b);
+        fatten(leaf, 0.0f, 0.0f);
+        insertLeaf(leaf);
+        return leaf;
+    }
+    
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        for (int i=0; i<count; i++)
+        {
+            handles[i] = add(bs[i], objs[i]);
+        }
+    }
+    
+    /** @return Answers the object added with the handle. */
+    @SuppressWarnings("unchecked")
+    @Override
+    public A get(int handle)
+    {
+        return (A) nodeObj[handle];
+    }
+    
+    /** Moves the object, taking its displacement to be how far the centre of
+     * its bounds has moved since it was last added or moved. */
+    @Override
+    public void move(int handle, Bounds b)
+    {
+        final float dx = ((b.x1 + b.x2) - (leafX1[handle] + leafX2[handle])) / 2;
+        final float dy = ((b.y1 + b.y2) - (leafY1[handle] + leafY2[handle])) / 2;
+        move(handle, b, dx, dy);
+    }
+    
+    /** Moves the object, which has been displaced by (dx, dy) - typically its
+     * velocity over a frame. Its fat box is stretched in that direction, on
+     * the expectation that it carries on moving the same way. */
+    public void move(int handle, Bounds b, float dx, float dy)
+    {
+        setLeafBounds(handle, b);
+        
+        if (b.x1 >= nodeX1[handle] && b.x2 <= nodeX2[handle]
+                && b.y1 >= nodeY1[handle] && b.y2 <= nodeY2[handle])
+        {
+            return; /* still inside its fat box */
+        }
+        
+        removeLeaf(handle);
+        fatten(handle, dx, dy);
+        insertLeaf(handle);
+    }
+    
+    @Override
+    public void remove(int handle)
+    {
+        if (nodeHeight[handle] == 0)
+        {
+            removeLeaf(handle);
+            freeNode(handle);
+        }
+    }
+    
+    /** @return Answers the height of the tree, which is zero for a tree of
+     * one object and -1 for an empty tree. */
+    public int getHeight()
+    {
+        return root == NONE ? -1 : nodeHeight[root];
+    }
+    
+    /** Visits every object whose bounds intersect `region`. The Bounds passed
+     * to the visitor is reused between calls. */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryImpl(region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryImpl(x, y, x, y, v);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void queryImpl(float x1, float y1, float x2, float y2,
+                           SpatialVisitor<A> v)
+    {
+        if (root == NONE)
+        {
+            return;
+        }
+        
+        int sp = 0;
+        stack[sp++] = root;
+        
+        while (sp > 0)
+        {
+            final int node = stack[--sp];
+            
+            if (nodeX1[node] > x2 || nodeX2[node] < x1
+                    || nodeY1[node] > y2 || nodeY2[node] < y1)
+            {
+                continue;
+            }
+            
+            if (nodeHeight[node] == 0)
+            {
+                if (leafX1[node] <= x2 && leafX2[node] >= x1
+                        && leafY1[node] <= y2 && leafY2[node] >= y1)
+                {
+                    visitBounds.x1 = leafX1[node]; visitBounds.y1 = leafY1[node];
+                    visitBounds.x2 = leafX2[node]; visitBounds.y2 = leafY2[node];
+                    v.visit((A) nodeObj[node], visitBounds);
+                }
+            }
+            else
+            {
+                stack = Grow.ints(stack, sp + 2);
+                stack[sp++] = nodeChild1[node];
+                stack[sp++] = nodeChild2[node];
+            }
+        }
+    }
+    
+    /** Visits every pair of objects whose bounds intersect, once each. Each
+     * leaf is looked up in the tree, and paired with the leaves found that
+     * have greater handles, so no pair is seen from both sides. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        if (root == NONE)
+        {
+            return;
+        }
+        
+        for (int a=0; a<nodeEnd; a++)
+        {
+            if (nodeHeight[a] != 0)
+            {
+                continue;
+            }
+            
+            final float x1 = leafX1[a], y1 = leafY1[a];
+            final float x2 = leafX2[a], y2 = leafY2[a];
+            
+            int sp = 0;
+            stack[sp++] = root;
+            
+            while (sp > 0)
+            {
+                final int node = stack[--sp];
+                
+                if (nodeX1[node] > x2 || nodeX2[node] < x1
+                        || nodeY1[node] > y2 || nodeY2[node] < y1)
+                {
+                    continue;
+                }
+                
+                if (nodeHeight[node] == 0)
+                {
+                    if (node > a
+                            && leafX1[node] <= x2 && leafX2[node] >= x1
+                            && leafY1[node] <= y2 && leafY2[node] >= y1)
+                    {
+                        v.visit((A) nodeObj[a], (A) nodeObj[node]);
+                    }
+                }
+                else
+                {
+                    stack = Grow.ints(stack, sp + 2);
+                    stack[sp++] = nodeChild1[node];
+                    stack[sp++] = nodeChild2[node];
+                }
+            }
+        }
+    }
+    
+    /** Sets the leaf's fat box from its bounds, the margin and the
+     * displacement. */
+    private void fatten(int leaf, float dx, float dy)
+    {
+        dx *= prediction;
+        dy *= prediction;
+        
+        nodeX1[leaf] = leafX1[leaf] - margin + (dx < 0.0f ? dx : 0.0f);
+        nodeY1[leaf] = leafY1[leaf] - margin + (dy < 0.0f ? dy : 0.0f);
+        nodeX2[leaf] = leafX2[leaf] + margin + (dx > 0.0f ? dx : 0.0f);
+        nodeY2[leaf] = leafY2[leaf] + margin + (dy > 0.0f ? dy : 0.0f);
+    }
+    
+    private void insertLeaf(int leaf)
+    {
+        if (root == NONE)
+        {
+            root = leaf;
+            nodeParent[leaf] = NONE;
+            return;
+        }
+        
+        /* Walk down to the sibling that makes the tree's boxes grow least,
+         * judged by perimeter. Every ancestor of the new leaf grows to take it
+         * in, so descending costs that growth on top of the child's own. */
+        final float lx1 = nodeX1[leaf], ly1 = nodeY1[leaf];
+        final float lx2 = nodeX2[leaf], ly2 = nodeY2[leaf];
+        
+        int index = root;
+        while (nodeHeight[index] > 0)
+        {
+            final float area     = perimeter(index);
+            final float combined = unionPerimeter(index, lx1, ly1, lx2, ly2);
+            
+            final float cost        = 2.0f * combined;
+            final float inheritance = 2.0f * (combined - area);
+            
+            final int c1 = nodeChild1[index];
+            final int c2 = nodeChild2[index];
+            final float cost1 = descendCost(c1, lx1, ly1, lx2, ly2) + inheritance;
+            final float cost2 = descendCost(c2, lx1, ly1, lx2, ly2) + inheritance;
+            
+            if (cost < cost1 && cost < cost2)
+            {
+                break;
+            }
+            index = cost1 < cost2 ? c1 : c2;
+        }
+        
+        final int sibling   = index;
+        final int oldParent = nodeParent[sibling];
+        final int newParent = allocNode();
+        nodeParent[newParent] = oldParent;
+        nodeObj[newParent]    = null;
+        nodeHeight[newParent] = nodeHeight[sibling] + 1;
+        nodeChild1[newParent] = sibling;
+        nodeChild2[newParent] = leaf;
+        nodeParent[sibling]   = newParent;
+        nodeParent[leaf]      = newParent;
+        
+        if (oldParent == NONE)
+        {
+            root = newParent;
+        }
+        else if (nodeChild1[oldParent] == sibling)
+        {
+            nodeChild1[oldParent] = newParent;
+        }
+        else
+        {
+            nodeChild2[oldParent] = newParent;
+        }
+        
+        refitFrom(newParent);
+    }
+    
+    private void removeLeaf(int leaf)
+    {
+        if (leaf == root)
+        {
+            root = NONE;
+            return;
+        }
+        
+        final int parent      = nodeParent[leaf];
+        final int grandParent = nodeParent[parent];
+        final int sibling     = nodeChild1[parent] == leaf ? nodeChild2[parent]
+                                                           : nodeChild1[parent];
+        
+        /* The sibling takes the parent's place. */
+        nodeParent[sibling] = grandParent;
+        freeNode(parent);
+        
+        if (grandParent == NONE)
+        {
+            root = sibling;
+        }
+        else
+        {
+            if (nodeChild1[grandParent] == parent)
+            {
+                nodeChild1[grandParent] = sibling;
+            }
+            else
+            {
+                nodeChild2[grandParent] = sibling;
+            }
+            refitFrom(grandParent);
+        }
+    }
+    
+    /** Rebalances and recalculates the boxes and heights of `node` and each
+     * of its ancestors, stopping at the first ancestor left as it was, as
+     * nothing above that can have changed either. */
+    private void refitFrom(int node)
+    {
+        boolean first = true;
+        
+        while (node != NONE)
+        {
+            final int top = balance(node);
+            
+            final int c1 = nodeChild1[top];
+            final int c2 = nodeChild2[top];
+            final int   height = 1 + Math.max(nodeHeight[c1], nodeHeight[c2]);
+            final float x1 = Math.min(nodeX1[c1], nodeX1[c2]);
+            final float y1 = Math.min(nodeY1[c1], nodeY1[c2]);
+            final float x2 = Math.max(nodeX2[c1], nodeX2[c2]);
+            final float y2 = Math.max(nodeY2[c1], nodeY2[c2]);
+            
+            if (!first && top == node && height == nodeHeight[top]
+                    && x1 == nodeX1[top] && y1 == nodeY1[top]
+                    && x2 == nodeX2[top] && y2 == nodeY2[top])
+            {
+                return;
+            }
+            
+            nodeHeight[top] = height;
+            nodeX1[top] = x1; nodeY1[top] = y1;
+            nodeX2[top] = x2; nodeY2[top] = y2;
+            
+            first = false;
+            node  = nodeParent[top];
+        }
+    }
+    
+    /** If one child of `a` is more than one taller than the other, rotates the
+     * taller child up into a's place, with a taking the shorter of that
+     * child's children.
+     *
+     * @return Answers the node now in a's place.
+     */
+    private int balance(int a)
+    {
+        if (nodeHeight[a] < 2)
+        {
+            return a;
+        }
+        
+        final int b = nodeChild1[a];
+        final int c = nodeChild2[a];
+        final int diff = nodeHeight[c] - nodeHeight[b];
+        
+        if (diff > 1)
+        {
+            rotateUp(a, c, b, false);
+            return c;
+        }
+        if (diff < -1)
+        {
+            rotateUp(a, b, c, true);
+            return b;
+        }
+        return a;
+    }
+    
+    /** Moves `up`, a child of `a`, into a's place. `a` becomes a child of
+     * `up`, keeping `other` and taking up's shorter child; up keeps its
+     * taller child.
+     *
+     * @param upIsChild1 Whether `up` was a's first child.
+     */
+    private void rotateUp(int a, int up, int other, boolean upIsChild1)
+    {
+        final int f = nodeChild1[up];
+        final int g = nodeChild2[up];
+        final int parent = nodeParent[a];
+        
+        nodeChild1[up]  = a;
+        nodeParent[up]  = parent;
+        nodeParent[a]   = up;
+        
+        if (parent == NONE)
+        {
+            root = up;
+        }
+        else if (nodeChild1[parent] == a)
+        {
+            nodeChild1[parent] = up;
+        }
+        else
+        {
+            nodeChild2[parent] = up;
+        }
+        
+        final int taller  = nodeHeight[f] > nodeHeight[g] ? f : g;
+        final int shorter = taller == f ? g : f;
+        
+        nodeChild2[up] = taller;
+        if (upIsChild1)
+        {
+            nodeChild1[a] = shorter;
+        }
+        else
+        {
+            nodeChild2[a] = shorter;
+        }
+        nodeParent[shorter] = a;
+        
+        setUnion(a, other, shorter);
+        nodeHeight[a] = 1 + Math.max(nodeHeight[other], nodeHeight[shorter]);
+        
+        setUnion(up, a, taller);
+        nodeHeight[up] = 1 + Math.max(nodeHeight[a], nodeHeight[taller]);
+    }
+    
+    /** @return Answers how much putting the box under `child` costs. */
+    private float descendCost(int child, float x1, float y1, float x2, float y2)
+    {
+        final float union = unionPerimeter(child, x1, y1, x2, y2);
+        return nodeHeight[child] == 0 ? union : union - perimeter(child);
+    }
+    
+    private float perimeter(int node)
+    {
+        return 2.0f * ((nodeX2[node] - nodeX1[node]) + (nodeY2[node] - nodeY1[node]));
+    }
+    
+    private float unionPerimeter(int node, float x1, float y1, float x2, float y2)
+    {
+        final float w = Math.max(nodeX2[node], x2) - Math.min(nodeX1[node], x1);
+        final float h = Math.max(nodeY2[node], y2) - Math.min(nodeY1[node], y1);
+        return 2.0f * (w + h);
+    }
+    
+    private void setUnion(int node, int c1, int c2)
+    {
+        nodeX1[node] = Math.min(nodeX1[c1], nodeX1[c2]);
+        nodeY1[node] = Math.min(nodeY1[c1], nodeY1[c2]);
+        nodeX2[node] = Math.max(nodeX2[c1], nodeX2[c2]);
+        nodeY2[node] = Math.max(nodeY2[c1], nodeY2[c2]);
+    }
+    
+    private void setLeafBounds(int leaf, Bounds b)
+    {
+        leafX1[leaf] = b.x1; leafY1[leaf] = b.y1;
+        leafX2[leaf] = b.x2; leafY2[leaf] = b.y2;
+    }
+    
+    private int allocNode()
+    {
+        if (freeNode != NONE)
+        {
+            final int node = freeNode;
+            freeNode = nodeParent[node];
+            return node;
+        }
+        
+        final int node = nodeEnd++;
+        ensureNodeCapacity(nodeEnd);
+        return node;
+    }
+    
+    private void freeNode(int node)
+    {
+        nodeHeight[node] = NONE;
+        nodeObj[node]    = null;
+        nodeParent[node] = freeNode;
+        freeNode         = node;
+    }
+    
+    private void ensureNodeCapacity(int n)
+    {
+        if (nodeHeight.length >= n) return;
+        
+        nodeX1     = Grow.floats(nodeX1, n);
+        nodeY1     = Grow.floats(nodeY1, n);
+        nodeX2     = Grow.floats(nodeX2, n);
+        nodeY2     = Grow.floats(nodeY2, n);
+        leafX1     = Grow.floats(leafX1, n);
+        leafY1     = Grow.floats(leafY1, n);
+        leafX2     = Grow.floats(leafX2, n);
+        leafY2     = Grow.floats(leafY2, n);
+        nodeParent = Grow.ints(nodeParent, n);
+        nodeChild1 = Grow.ints(nodeChild1, n);
+        nodeChild2 = Grow.ints(nodeChild2, n);
+        nodeObj    = Grow.objects(nodeObj, n);
+        nodeHeight = Grow.ints(nodeHeight, n); /* last, it's the one tested */
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "AabbTree(margin="+margin+",prediction="+prediction
+                +",height="+getHeight()+",nodes="+nodeEnd+")";
+    }
+}
@@ -34,13 +34,13 @@ public class Bounds
         return y2 - y1;
     }
     
-    /** Multiply width and height by k. */
+    /** Multiply width and height by k, keeping the same centre. */
     public void enlarge(float k)
     {
         if (k == 1.0f) return;
         
-        final float nubX = (getWidth() * k) / 2;
-        final float nubY = (getHeight() * k) / 2;
+        final float nubX = (getWidth() * (k - 1.0f)) / 2;
+        final float nubY = (getHeight() * (k - 1.0f)) / 2;
         
         x1 -= nubX; x2 += nubX; y1 -= nubY; y2 += nubY;
     }
@@ -56,11 +56,77 @@ public class Bounds
         return p.x >= x1 && p.x <= x2 && p.y >= y1 && p.y <= y2;
     }
     
+    public boolean containsPoint(float x, float y)
+    {
+        return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+    }
+    
     public boolean containsBounds(Bounds b)
     {
         return b.x1 >= x1 && b.x2 <= x2 && b.y1 >= y1 && b.y2 <= y2;
     }
     
+    /** @return Answers the square of the distance from (x, y) to the nearest
+     * point of the bounds, which is zero if the point is inside. */
+    public float distanceSq(float x, float y)
+    {
+        final float dx = x < x1 ? x1 - x : (x > x2 ? x - x2 : 0.0f);
+        final float dy = y < y1 ? y1 - y : (y > y2 ? y - y2 : 0.0f);
+        return dx * dx + dy * dy;
+    }
+    
+    /** Clips the line segment from (x, y) to (x + dx, y + dy) against each
+     * axis' slab of the bounds in turn.
+     * 
+     * @return Answers how far along the segment it enters the bounds, from 0
+     * to 1, or -1 if it misses them. Zero if it starts inside.
+     */
+    public float segmentEntry(float x, float y, float dx, float dy)
+    {
+        float tEnter = 0.0f, tExit = 1.0f;
+        
+        if (dx == 0.0f)
+        {
+            if (x < x1 || x > x2) return -1.0f;
+        }
+        else
+        {
+            final float inv = 1.0f / dx;
+            float t1 = (x1 - x) * inv, t2 = (x2 - x) * inv;
+            if (t1 > t2) { final float swap = t1; t1 = t2; t2 = swap; }
+            if (t1 > tEnter) tEnter = t1;
+            if (t2 < tExit)  tExit  = t2;
+            if (tEnter > tExit) return -1.0f;
+        }
+        
+        if (dy == 0.0f)
+        {
+            if (y < y1 || y > y2) return -1.0f;
+        }
+        else
+        {
+            final float inv = 1.0f / dy;
+            float t1 = (y1 - y) * inv, t2 = (y2 - y) * inv;
+            if (t1 > t2) { final float swap = t1; t1 = t2; t2 = swap; }
+            if (t1 > tEnter) tEnter = t1;
+            if (t2 < tExit)  tExit  = t2;
+            if (tEnter > tExit) return -1.0f;
+        }
+        
+        return tEnter;
+    }
+    
+    /** Edges that touch count as intersecting. */
+    public boolean intersects(Bounds b)
+    {
+        return b.x1 <= x2 && b.x2 >= x1 && b.y1 <= y2 && b.y2 >= y1;
+    }
+    
+    public boolean intersects(float ox1, float oy1, float ox2, float oy2)
+    {
+        return ox1 <= x2 && ox2 >= x1 && oy1 <= y2 && oy2 >= y1;
+    }
+    
     @Override
     public boolean equals(Object other)
     {
@@ -0,0 +1,13 @@
+package tbc.data.spatial;
+
+/** Receives the counts found by {@link QuadTree#queryDensity}. Like a
+ * {@link SpatialVisitor}, it is expected to be created once and reused.
+ */
+public interface DensityVisitor
+{
+    /** @param area The area of a quad tree node that holds `count` objects.
+     * Do not modify it, or keep it beyond the call.
+     * @param count Never zero.
+     */
+    public void visit(Bounds area, int count);
+}
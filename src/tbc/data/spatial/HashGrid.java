@@ -0,0 +1,434 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A uniform grid of square cells, stored sparsely by hashing each cell's
+ * coordinates into a fixed table of buckets. An object is linked into every
+ * cell its bounds touch. Moving an object within the same cells only records
+ * its new bounds, and otherwise relinks it, so updates cost the same however
+ * many objects there are. For dense fields of similarly sized objects, such as
+ * bullets and asteroids, that is much cheaper than maintaining a tree.
+ * <p>
+ * The cell size should be around the size of the typical object. Objects
+ * spanning more than MAX_CELLS_PER_ENTRY cells are kept in a separate list
+ * that every query scans. Queries share state, so one grid must not be
+ * queried from more than one thread at a time, nor from inside a visitor.
+ */
+public class HashGrid<A> implements SpatialIndex<A>
+{
+    private static final int NONE = -1;
+    
+    /** Objects touching more cells than this aren't linked into cells. */
+    private static final int MAX_CELLS_PER_ENTRY = 16;
+    
+    private float cellSize;
+    private float cellsPerUnit;
+    
+    /** Heads of the link lists of each bucket. Several cells can share a
+     * bucket, which is fine as every object found is tested against the
+     * query anyway. */
+    private int[] bucketHead;
+    private int   bucketMask;
+    
+    /* Links, each putting one entry in one bucket. Unused links are chained
+     * through linkNext from freeLink. */
+    private int[] linkEntry = new int[0];
+    private int[] linkNext  = new int[0];
+    private int   linkEnd;
+    private int   freeLink = NONE;
+    
+    /* Entries, indexed by handle. */
+    private float[]  entX1 = new float[0], entY1 = new float[0],
+                     entX2 = new float[0], entY2 = new float[0];
+    private int[]    entCX1 = new int[0], entCY1 = new int[0],
+                     entCX2 = new int[0], entCY2 = new int[0]; /* cells linked */
+    private Object[] entObj = new Object[0];
+    
+    /** -1 for a free handle, 0 when linked into cells, and otherwise one more
+     * than the entry's index in the oversized list. */
+    private int[]    entState = new int[0];
+    
+    /** The query stamp an entry was last visited with, so that an entry in
+     * several cells is only visited once per query. */
+    private int[]    entStamp = new int[0];
+    private int      entEnd;
+    private int      queryStamp;
+    
+    private int[] freeHandles = new int[8];
+    private int   freeHandleCount;
+    
+    private int[] oversized = new int[0];
+    private int   oversizedCount;
+    
+    private Bounds visitBounds = new Bounds(0.0f, 0.0f, 0.0f, 0.0f);
+    
+    /** @param bucketCountLog2 The table has 2^bucketCountLog2 buckets. Aim for
+     * around as many buckets as there are occupied cells. */
+    public HashGrid(float cellSize, int bucketCountLog2)
+    {
+        this.cellSize     = cellSize;
+        this.cellsPerUnit = 1.0f / cellSize;
+        this.bucketHead   = new int[1 << bucketCountLog2];
+        this.bucketMask   = bucketHead.length - 1;
+        
+        for (int i=0; i<bucketHead.length; i++)
+        {
+            bucketHead[i] = NONE;
+        }
+    }
+    
+    public float getCellSize()
+    {
+        return cellSize;
+    }
+    
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        int h;
+        if (freeHandleCount > 0)
+        {
+            h = freeHandles[--freeHandleCount];
+        }
+        else
+        {
+            h = entEnd++;
+            ensureEntryCapacity(entEnd);
+        }
+        
+        entObj[h]   = obj;
+        entStamp[h] = queryStamp;
+        setEntryBounds(h, b);
+        place(h);
+        return h;
+    }
+    
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        for (int i=0; i<count; i++)
+        {
+            handles[i] = add(bs[i], objs[i]);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public A get(int handle)
+    {
+        return (A) entObj[handle];
+    }
+    
+    @Override
+    public void move(int handle, Bounds b)
+    {
+        setEntryBounds(handle, b);
+        
+        if (entState[handle] == 0
+                && cell(b.x1) == entCX1[handle] && cell(b.y1) == entCY1[handle]
+                && cell(b.x2) == entCX2[handle] && cell(b.y2) == entCY2[handle])
+        {
+            return; /* still touching the same cells */
+        }
+        
+        unplace(handle);
+        place(handle);
+    }
+    
+    @Override
+    public void remove(int handle)
+    {
+        if (entState[handle] != NONE)
+        {
+            unplace(handle);
+            entState[handle] = NONE;
+            entObj[handle]   = null;
+            
+            freeHandles = Grow.ints(freeHandles, freeHandleCount + 1);
+            freeHandles[freeHandleCount++] = handle;
+        }
+    }
+    
+    /** Visits every object whose bounds intersect `region`. The Bounds passed
+     * to the visitor is reused between calls. */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryImpl(region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryImpl(x, y, x, y, v);
+    }
+    
+    private void queryImpl(float x1, float y1, float x2, float y2,
+                           SpatialVisitor<A> v)
+    {
+        nextQueryStamp();
+        
+        for (int i=0; i<oversizedCount; i++)
+        {
+            visitIfIntersects(oversized[i], x1, y1, x2, y2, v);
+        }
+        
+        final int cx1 = cell(x1), cy1 = cell(y1);
+        final int cx2 = cell(x2), cy2 = cell(y2);
+        final long cells = ((long) cx2 - cx1 + 1) * ((long) cy2 - cy1 + 1);
+        
+        if (cells > bucketHead.length)
+        {
+            /* Cheaper to look in every bucket than to hash every cell. */
+            for (int bucket=0; bucket<bucketHead.length; bucket++)
+            {
+                visitBucket(bucket, x1, y1, x2, y2, v);
+            }
+        }
+        else
+        {
+            for (int cy=cy1; cy<=cy2; cy++)
+            {
+                for (int cx=cx1; cx<=cx2; cx++)
+                {
+                    visitBucket(bucketFor(cx, cy), x1, y1, x2, y2, v);
+                }
+            }
+        }
+    }
+    
+    /** Visits every pair of objects whose bounds intersect, once each. Each
+     * object looks through the cells it is linked into, and pairs with the
+     * objects there with greater handles, so no pair is seen from both
+     * sides. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        for (int a=0; a<entEnd; a++)
+        {
+            if (entState[a] == NONE)
+            {
+                continue;
+            }
+            
+            nextQueryStamp();
+            final float x1 = entX1[a], y1 = entY1[a];
+            final float x2 = entX2[a], y2 = entY2[a];
+            
+            for (int i=0; i<oversizedCount; i++)
+            {
+                pairIfIntersects(a, oversized[i], v);
+            }
+            
+            if (entState[a] > 0)
+            {
+                /* Oversized - every linked object needs trying. */
+                for (int bucket=0; bucket<bucketHead.length; bucket++)
+                {
+                    for (int l=bucketHead[bucket]; l != NONE; l = linkNext[l])
+                    {
+                        pairIfIntersects(a, linkEntry[l], v);
+                    }
+                }
+                continue;
+            }
+            
+            for (int cy=entCY1[a]; cy<=entCY2[a]; cy++)
+            {
+                for (int cx=entCX1[a]; cx<=entCX2[a]; cx++)
+                {
+                    for (int l=bucketHead[bucketFor(cx, cy)]; l != NONE; l = linkNext[l])
+                    {
+                        pairIfIntersects(a, linkEntry[l], v);
+                    }
+                }
+            }
+        }
+    }
+    
+    /** Visits `a` and `b` if b's handle is greater, they intersect and b
+     * hasn't already been paired with a. */
+    @SuppressWarnings("unchecked")
+    private void pairIfIntersects(int a, int b, SpatialPairVisitor<A> v)
+    {
+        if (b > a && entStamp[b] != queryStamp
+                && entX1[b] <= entX2[a] && entX2[b] >= entX1[a]
+                && entY1[b] <= entY2[a] && entY2[b] >= entY1[a])
+        {
+            entStamp[b] = queryStamp;
+            v.visit((A) entObj[a], (A) entObj[b]);
+        }
+    }
+    
+    private void nextQueryStamp()
+    {
+        if (++queryStamp == 0)
+        {
+            /* Wrapped - clear old stamps so none match by accident. */
+            for (int h=0; h<entEnd; h++)
+            {
+                entStamp[h] = 0;
+            }
+            queryStamp = 1;
+        }
+    }
+    
+    private void visitBucket(int bucket, float x1, float y1, float x2, float y2,
+                             SpatialVisitor<A> v)
+    {
+        for (int l=bucketHead[bucket]; l != NONE; l = linkNext[l])
+        {
+            visitIfIntersects(linkEntry[l], x1, y1, x2, y2, v);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void visitIfIntersects(int h, float x1, float y1, float x2, float y2,
+                                   SpatialVisitor<A> v)
+    {
+        if (entStamp[h] != queryStamp
+                && entX1[h] <= x2 && entX2[h] >= x1
+                && entY1[h] <= y2 && entY2[h] >= y1)
+        {
+            entStamp[h] = queryStamp;
+            visitBounds.x1 = entX1[h]; visitBounds.y1 = entY1[h];
+            visitBounds.x2 = entX2[h]; visitBounds.y2 = entY2[h];
+            v.visit((A) entObj[h], visitBounds);
+        }
+    }
+    
+    /** Links the entry into the cells its bounds touch, or into the oversized
+     * list. */
+    private void place(int h)
+    {
+        final int cx1 = cell(entX1[h]), cy1 = cell(entY1[h]);
+        final int cx2 = cell(entX2[h]), cy2 = cell(entY2[h]);
+        
+        if (((long) cx2 - cx1 + 1) * ((long) cy2 - cy1 + 1) > MAX_CELLS_PER_ENTRY)
+        {
+            oversized = Grow.ints(oversized, oversizedCount + 1);
+            oversized[oversizedCount++] = h;
+            entState[h] = oversizedCount;
+            return;
+        }
+        
+        entState[h] = 0;
+        entCX1[h] = cx1; entCY1[h] = cy1;
+        entCX2[h] = cx2; entCY2[h] = cy2;
+        
+        for (int cy=cy1; cy<=cy2; cy++)
+        {
+            for (int cx=cx1; cx<=cx2; cx++)
+            {
+                final int bucket = bucketFor(cx, cy);
+                final int l = obtainLink();
+                linkEntry[l] = h;
+                linkNext[l]  = bucketHead[bucket];
+                bucketHead[bucket] = l;
+            }
+        }
+    }
+    
+    private void unplace(int h)
+    {
+        if (entState[h] > 0)
+        {
+            /* Swap the last oversized entry into its place. */
+            final int at   = entState[h] - 1;
+            final int last = oversized[--oversizedCount];
+            oversized[at]  = last;
+            entState[last] = at + 1;
+            return;
+        }
+        
+        for (int cy=entCY1[h]; cy<=entCY2[h]; cy++)
+        {
+            for (int cx=entCX1[h]; cx<=entCX2[h]; cx++)
+            {
+                unlinkFromBucket(bucketFor(cx, cy), h);
+            }
+        }
+    }
+    
+    /** Removes one of the entry's links from the bucket. */
+    private void unlinkFromBucket(int bucket, int h)
+    {
+        int prev = NONE;
+        for (int l=bucketHead[bucket]; l != NONE; prev = l, l = linkNext[l])
+        {
+            if (linkEntry[l] == h)
+            {
+                if (prev == NONE)
+                {
+                    bucketHead[bucket] = linkNext[l];
+                }
+                else
+                {
+                    linkNext[prev] = linkNext[l];
+                }
+                
+                linkNext[l] = freeLink;
+                freeLink    = l;
+                return;
+            }
+        }
+    }
+    
+    private int obtainLink()
+    {
+        if (freeLink != NONE)
+        {
+            final int l = freeLink;
+            freeLink = linkNext[l];
+            return l;
+        }
+        
+        final int l = linkEnd++;
+        linkEntry = Grow.ints(linkEntry, linkEnd);
+        linkNext  = Grow.ints(linkNext, linkEnd);
+        return l;
+    }
+    
+    private int cell(float v)
+    {
+        return (int) Math.floor(v * cellsPerUnit);
+    }
+    
+    private int bucketFor(int cx, int cy)
+    {
+        return ((cx * 73856093) ^ (cy * 19349663)) & bucketMask;
+    }
+    
+    private void setEntryBounds(int h, Bounds b)
+    {
+        entX1[h] = b.x1; entY1[h] = b.y1;
+        entX2[h] = b.x2; entY2[h] = b.y2;
+    }
+    
+    private void ensureEntryCapacity(int n)
+    {
+        if (entState.length >= n) return;
+        
+        entX1    = Grow.floats(entX1, n);
+        entY1    = Grow.floats(entY1, n);
+        entX2    = Grow.floats(entX2, n);
+        entY2    = Grow.floats(entY2, n);
+        entCX1   = Grow.ints(entCX1, n);
+        entCY1   = Grow.ints(entCY1, n);
+        entCX2   = Grow.ints(entCX2, n);
+        entCY2   = Grow.ints(entCY2, n);
+        entObj   = Grow.objects(entObj, n);
+        entStamp = Grow.ints(entStamp, n);
+        entState = Grow.ints(entState, n); /* last, it's the one tested */
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "HashGrid(cell="+cellSize+",buckets="+bucketHead.length
+                +",entries="+entEnd+",oversized="+oversizedCount+")";
+    }
+}
@@ -0,0 +1,414 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A linear, or pointerless, quad tree. Rather than a tree of nodes, entries are
+ * keyed by the Z-order {@link Morton} code of the cell holding their centre,
+ * on a 2^15 by 2^15 grid over the world box, and kept sorted in one long[]
+ * array. Cells in the same quad tree node share a code prefix, so every node
+ * is a contiguous run of that array, and a region query is a range scan that
+ * jumps past the runs falling outside the region.
+ * <p>
+ * Moving an object only records its new bounds. The sorted array is rebuilt
+ * from scratch, with a radix sort, the next time it is queried after anything
+ * has changed. That is cheap enough to do every frame, so there is no
+ * incremental bookkeeping to maintain for objects that move every frame.
+ * <p>
+ * As entries are placed by centre, queries are widened by the half size of
+ * the largest entry. Entries larger than maxEntrySize are kept apart in an
+ * unsorted list that every query scans, so that a few large objects don't
+ * widen every query.
+ */
+public class LinearQuadTree<A> implements SpatialIndex<A>
+{
+    private float worldX1, worldY1;
+    private float cellsPerUnitX, cellsPerUnitY;
+    
+    private float maxEntrySize;
+    
+    /* Entries, indexed by handle. */
+    private float[]   entX1 = new float[0], entY1 = new float[0],
+                      entX2 = new float[0], entY2 = new float[0];
+    private Object[]  entObj = new Object[0];
+    private boolean[] entLive = new boolean[0];
+    private int       entEnd;
+    
+    private int[] freeHandles = new int[8];
+    private int   freeHandleCount;
+    
+    /** Morton code in the high 32 bits and handle in the low 32, sorted. */
+    private long[] keys    = new long[0];
+    private long[] keysTmp = new long[0];
+    private int    keyCount;
+    private int[]  radixCounts = new int[256];
+    
+    /** Handles of the entries too large to be keyed. */
+    private int[] oversized = new int[0];
+    private int   oversizedCount;
+    
+    /** The largest half width and height among keyed entries. */
+    private float maxHalfW, maxHalfH;
+    
+    /** Set when anything is added, moved or removed since the last rebuild. */
+    private boolean dirty = false;
+    
+    private Bounds visitBounds = new Bounds(0.0f, 0.0f, 0.0f, 0.0f);
+    
+    /** @param maxEntrySize Entries wider or taller than this are not keyed,
+     * and are tested by every query instead. */
+    public LinearQuadTree(Bounds world, float maxEntrySize)
+    {
+        this.worldX1       = world.x1;
+        this.worldY1       = world.y1;
+        this.cellsPerUnitX = Morton.CELLS / world.getWidth();
+        this.cellsPerUnitY = Morton.CELLS / world.getHeight();
+        this.maxEntrySize  = maxEntrySize;
+    }
+    
+    /** @return Answers the handle to pass to move and remove for this object. */
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        int h;
+        if (freeHandleCount > 0)
+        {
+            h = freeHandles[--freeHandleCount];
+        }
+        else
+        {
+            h = entEnd++;
+            ensureEntryCapacity(entEnd);
+        }
+        
+        entObj[h]  = obj;
+        entLive[h] = true;
+        setEntryBounds(h, b);
+        dirty = true;
+        return h;
+    }
+    
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        /* Everything is sorted in one go at the next query anyway. */
+        for (int i=0; i<count; i++)
+        {
+            handles[i] = add(bs[i], objs[i]);
+        }
+    }
+    
+    /** @return Answers the object added with the handle. */
+    @SuppressWarnings("unchecked")
+    @Override
+    public A get(int handle)
+    {
+        return (A) entObj[handle];
+    }
+    
+    @Override
+    public void move(int handle, Bounds b)
+    {
+        setEntryBounds(handle, b);
+        dirty = true;
+    }
+    
+    @Override
+    public void remove(int handle)
+    {
+        if (entLive[handle])
+        {
+            entLive[handle] = false;
+            entObj[handle]  = null;
+            
+            freeHandles = Grow.ints(freeHandles, freeHandleCount + 1);
+            freeHandles[freeHandleCount++] = handle;
+            dirty = true;
+        }
+    }
+    
+    /** Visits every object whose bounds intersect `region`. The Bounds passed
+     * to the visitor is reused between calls. */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryImpl(region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryImpl(x, y, x, y, v);
+    }
+    
+    private void queryImpl(float x1, float y1, float x2, float y2,
+                           SpatialVisitor<A> v)
+    {
+        if (dirty)
+        {
+            rebuild();
+        }
+        
+        for (int i=0; i<oversizedCount; i++)
+        {
+            visitIfIntersects(oversized[i], x1, y1, x2, y2, v);
+        }
+        
+        /* Any keyed entry touching the region has its centre within the
+         * region widened by the largest half size. */
+        final int cx1 = cellX(x1 - maxHalfW), cy1 = cellY(y1 - maxHalfH);
+        final int cx2 = cellX(x2 + maxHalfW), cy2 = cellY(y2 + maxHalfH);
+        final int zmin = Morton.encode(cx1, cy1);
+        final int zmax = Morton.encode(cx2, cy2);
+        
+        int i = lowerBound(zmin, 0);
+        while (i < keyCount)
+        {
+            final int code = (int) (keys[i] >>> 32);
+            if (code > zmax)
+            {
+                break;
+            }
+            
+            final int cx = Morton.decodeX(code);
+            final int cy = Morton.decodeY(code);
+            if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2)
+            {
+                visitIfIntersects((int) keys[i], x1, y1, x2, y2, v);
+                i++;
+            }
+            else
+            {
+                /* Left the rectangle - skip to where it is next entered. */
+                i = lowerBound(Morton.bigMin(code, zmin, zmax), i + 1);
+            }
+        }
+    }
+    
+    /** Visits every pair of objects whose bounds intersect, once each. Each
+     * keyed entry is paired with those after it in the sorted keys that its
+     * widened bounds cover, found by the same range scan as a query. Oversized
+     * entries are paired with everything directly. */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        if (dirty)
+        {
+            rebuild();
+        }
+        
+        for (int k=0; k<keyCount; k++)
+        {
+            final int a = (int) keys[k];
+            final float x1 = entX1[a], y1 = entY1[a];
+            final float x2 = entX2[a], y2 = entY2[a];
+            
+            final int cx1 = cellX(x1 - maxHalfW), cy1 = cellY(y1 - maxHalfH);
+            final int cx2 = cellX(x2 + maxHalfW), cy2 = cellY(y2 + maxHalfH);
+            final int zmin = Morton.encode(cx1, cy1);
+            final int zmax = Morton.encode(cx2, cy2);
+            
+            int i = lowerBound(zmin, k + 1);
+            while (i < keyCount)
+            {
+                final int code = (int) (keys[i] >>> 32);
+                if (code > zmax)
+                {
+                    break;
+                }
+                
+                final int cx = Morton.decodeX(code);
+                final int cy = Morton.decodeY(code);
+                if (cx >= cx1 && cx <= cx2 && cy >= cy1 && cy <= cy2)
+                {
+                    final int b = (int) keys[i];
+                    if (entX1[b] <= x2 && entX2[b] >= x1
+                            && entY1[b] <= y2 && entY2[b] >= y1)
+                    {
+                        v.visit((A) entObj[a], (A) entObj[b]);
+                    }
+                    i++;
+                }
+                else
+                {
+                    i = lowerBound(Morton.bigMin(code, zmin, zmax), i + 1);
+                }
+            }
+        }
+        
+        for (int o=0; o<oversizedCount; o++)
+        {
+            final int a = oversized[o];
+            for (int k=0; k<keyCount; k++)
+            {
+                pairIfIntersects(a, (int) keys[k], v);
+            }
+            for (int p=o+1; p<oversizedCount; p++)
+            {
+                pairIfIntersects(a, oversized[p], v);
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void pairIfIntersects(int a, int b, SpatialPairVisitor<A> v)
+    {
+        if (entX1[b] <= entX2[a] && entX2[b] >= entX1[a]
+                && entY1[b] <= entY2[a] && entY2[b] >= entY1[a])
+        {
+            v.visit((A) entObj[a], (A) entObj[b]);
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void visitIfIntersects(int h, float x1, float y1, float x2, float y2,
+                                   SpatialVisitor<A> v)
+    {
+        if (entX1[h] <= x2 && entX2[h] >= x1 && entY1[h] <= y2 && entY2[h] >= y1)
+        {
+            visitBounds.x1 = entX1[h]; visitBounds.y1 = entY1[h];
+            visitBounds.x2 = entX2[h]; visitBounds.y2 = entY2[h];
+            v.visit((A) entObj[h], visitBounds);
+        }
+    }
+    
+    /** @return Answers the first index at or after `from` whose code is no
+     * less than `code`. */
+    private int lowerBound(int code, int from)
+    {
+        int lo = from, hi = keyCount;
+        while (lo < hi)
+        {
+            final int mid = (lo + hi) >>> 1;
+            if ((int) (keys[mid] >>> 32) < code)
+            {
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /** Re-keys and re-sorts every entry. Queries call this themselves when
+     * something has changed, but it can be called at a convenient moment
+     * instead, such as straight after the frame's movement. */
+    public void rebuild()
+    {
+        keys     = Grow.longs(keys, entEnd);
+        keysTmp  = Grow.longs(keysTmp, entEnd);
+        keyCount = 0;
+        oversizedCount = 0;
+        maxHalfW = maxHalfH = 0.0f;
+        
+        for (int h=0; h<entEnd; h++)
+        {
+            if (!entLive[h])
+            {
+                continue;
+            }
+            
+            final float w = entX2[h] - entX1[h];
+            final float ht = entY2[h] - entY1[h];
+            if (w > maxEntrySize || ht > maxEntrySize)
+            {
+                oversized = Grow.ints(oversized, oversizedCount + 1);
+                oversized[oversizedCount++] = h;
+                continue;
+            }
+            
+            maxHalfW = Math.max(maxHalfW, w / 2);
+            maxHalfH = Math.max(maxHalfH, ht / 2);
+            
+            final int code = Morton.encode(cellX((entX1[h] + entX2[h]) / 2),
+                                           cellY((entY1[h] + entY2[h]) / 2));
+            keys[keyCount++] = ((long) code << 32) | h;
+        }
+        
+        radixSortByCode();
+        dirty = false;
+    }
+    
+    /** A stable least significant digit radix sort on the code half of the
+     * keys, a byte at a time. Passes where every key has the same byte are
+     * skipped. */
+    private void radixSortByCode()
+    {
+        for (int shift=32; shift<32+2*Morton.BITS; shift+=8)
+        {
+            final int[] counts = radixCounts;
+            for (int i=0; i<256; i++)
+            {
+                counts[i] = 0;
+            }
+            for (int i=0; i<keyCount; i++)
+            {
+                counts[(int) (keys[i] >>> shift) & 0xFF]++;
+            }
+            if (keyCount == 0 || counts[(int) (keys[0] >>> shift) & 0xFF] == keyCount)
+            {
+                continue;
+            }
+            
+            int total = 0;
+            for (int i=0; i<256; i++)
+            {
+                final int c = counts[i];
+                counts[i] = total;
+                total += c;
+            }
+            for (int i=0; i<keyCount; i++)
+            {
+                keysTmp[counts[(int) (keys[i] >>> shift) & 0xFF]++] = keys[i];
+            }
+            
+            long[] swap = keys;
+            keys    = keysTmp;
+            keysTmp = swap;
+        }
+    }
+    
+    private int cellX(float x)
+    {
+        final int c = (int) ((x - worldX1) * cellsPerUnitX);
+        return c < 0 ? 0 : (c >= Morton.CELLS ? Morton.CELLS - 1 : c);
+    }
+    
+    private int cellY(float y)
+    {
+        final int c = (int) ((y - worldY1) * cellsPerUnitY);
+        return c < 0 ? 0 : (c >= Morton.CELLS ? Morton.CELLS - 1 : c);
+    }
+    
+    private void setEntryBounds(int h, Bounds b)
+    {
+        entX1[h] = b.x1; entY1[h] = b.y1;
+        entX2[h] = b.x2; entY2[h] = b.y2;
+    }
+    
+    private void ensureEntryCapacity(int n)
+    {
+        if (entLive.length >= n) return;
+        
+        entX1  = Grow.floats(entX1, n);
+        entY1  = Grow.floats(entY1, n);
+        entX2  = Grow.floats(entX2, n);
+        entY2  = Grow.floats(entY2, n);
+        entObj = Grow.objects(entObj, n);
+        
+        boolean[] grown = new boolean[entX1.length];
+        System.arraycopy(entLive, 0, grown, 0, entLive.length);
+        entLive = grown;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "LinearQuadT(entries="+entEnd+",keyed="+keyCount
+                +",oversized="+oversizedCount+")";
+    }
+}
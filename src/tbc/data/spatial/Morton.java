@@ -0,0 +1,108 @@
+package tbc.data.spatial;
+
+/**
+ * Z-order (Morton) codes for cells of a 2d grid. A code interleaves the bits
+ * of a cell's x and y coordinates, x in the even bits and y in the odd, so
+ * that sorting cells by code keeps cells that are near each other in space
+ * mostly near each other in the ordering too.
+ */
+public final class Morton
+{
+    /** Bits per axis. Codes use 2 * BITS bits, so they stay positive as ints. */
+    public static final int BITS = 15;
+    
+    /** The number of cells along each axis. */
+    public static final int CELLS = 1 << BITS;
+    
+    private static final int X_MASK = 0x55555555;
+    private static final int Y_MASK = 0xAAAAAAAA;
+    
+    private Morton()
+    {
+    }
+    
+    public static int encode(int x, int y)
+    {
+        return spread(x) | (spread(y) << 1);
+    }
+    
+    public static int decodeX(int code)
+    {
+        return compact(code);
+    }
+    
+    public static int decodeY(int code)
+    {
+        return compact(code >>> 1);
+    }
+    
+    /** @return Answers the smallest code greater than `code` whose cell lies
+     * in the rectangle of cells from the cell of `zmin` to the cell of `zmax`.
+     * This is the BIGMIN calculation of Tropf and Herzog, and lets a scan over
+     * sorted codes jump past runs that leave the rectangle.
+     */
+    public static int bigMin(int code, int zmin, int zmax)
+    {
+        int bigMin = 0;
+        
+        for (int bit=2*BITS-1; bit>=0; bit--)
+        {
+            final int mask = 1 << bit;
+            final int c    = (code & mask) != 0 ? 1 : 0;
+            final int mn   = (zmin & mask) != 0 ? 1 : 0;
+            final int mx   = (zmax & mask) != 0 ? 1 : 0;
+            
+            switch ((c << 2) | (mn << 1) | mx)
+            {
+            case 0x1: /* 0 0 1 */
+                bigMin = load1000(zmin, bit);
+                zmax   = load0111(zmax, bit);
+                break;
+            case 0x3: /* 0 1 1 */
+                return zmin;
+            case 0x4: /* 1 0 0 */
+                return bigMin;
+            case 0x5: /* 1 0 1 */
+                zmin = load1000(zmin, bit);
+                break;
+            default:  /* 0 0 0 and 1 1 1 carry on, the rest can't happen */
+                break;
+            }
+        }
+        return bigMin;
+    }
+    
+    /** Sets `bit`, and clears the lower bits of the same axis. */
+    private static int load1000(int value, int bit)
+    {
+        final int lower = ((1 << bit) - 1) & ((bit & 1) == 0 ? X_MASK : Y_MASK);
+        return (value | (1 << bit)) & ~lower;
+    }
+    
+    /** Clears `bit`, and sets the lower bits of the same axis. */
+    private static int load0111(int value, int bit)
+    {
+        final int lower = ((1 << bit) - 1) & ((bit & 1) == 0 ? X_MASK : Y_MASK);
+        return (value & ~(1 << bit)) | lower;
+    }
+    
+    private static int spread(int v)
+    {
+        v &= CELLS - 1;
+        v = (v | (v << 8)) & 0x00FF00FF;
+        v = (v | (v << 4)) & 0x0F0F0F0F;
+        v = (v | (v << 2)) & 0x33333333;
+        v = (v | (v << 1)) & 0x55555555;
+        return v;
+    }
+    
+    private static int compact(int v)
+    {
+        v &= 0x55555555;
+        v = (v | (v >>> 1)) & 0x33333333;
+        v = (v | (v >>> 2)) & 0x0F0F0F0F;
+        v = (v | (v >>> 4)) & 0x00FF00FF;
+        v = (v | (v >>> 8)) & 0x0000FFFF;
+        return v;
+    }
+}
@@ -0,0 +1,439 @@
+package tbc.data.spatial;
+
+import java.util.ArrayList;
+
+/**
+ * A loose octree - the 3d counterpart of {@link QuadTree}, indexing volumes
+ * rather than bounds flattened onto a plane. Each node's loose box is k times
+ * the side length of the eighth of its parent it covers, and an object is
+ * kept in the deepest node whose loose box holds it, chosen by its centre.
+ * <p>
+ * Adding an object answers an int handle, which is what move and remove take.
+ * Handles are only meaningful to the Octree instance add was called on, and
+ * are reused once the object they refer to has been removed.
+ */
+public class Octree<A>
+{
+    /** Nodes at this depth never split, so that many objects sharing the
+     * same small volume can't recurse forever. */
+    private static final int MAX_DEPTH = 16;
+    
+    /** The most unused nodes the root will hold on to for reuse. */
+    private static final int MAX_FREE_NODES = 256;
+    
+    /* Bits of a child's index, set for the upper half of that axis. */
+    private static final int X_HIGH = 1;
+    private static final int Y_HIGH = 2;
+    private static final int Z_HIGH = 4;
+    
+    /** Indexed by the bits above. Null until split. */
+    private Octree<A>[] children;
+    
+    /** The loose box. Objects placed in this node fit inside it. */
+    private Volume box;
+    
+    /** The box before enlargement by k, which children split. */
+    private Volume nominal;
+    
+    private ArrayList<OctNode> contents;
+    
+    /** Only used by the root. Every entry ever made, indexed by handle. */
+    private ArrayList<OctNode> entries;
+    
+    /** Only used by the root. Handles of removed objects, ready for reuse. */
+    private int[] freeHandles;
+    private int   freeHandleCount;
+    
+    /** Maximum content entries per node before it is split. */
+    private int desiredMax;
+    
+    /** The multiplier for the side length of boxes. */
+    private float k;
+    
+    private boolean split;
+    
+    /** Zero for the root. */
+    private int depth;
+    
+    /** Null for the root. */
+    private Octree<A> parentTree;
+    
+    /** Links nodes in the root's free list. */
+    private Octree<A> nextFree;
+    
+    /** Only used by the root. Nodes dropped by collapses, kept for reuse. */
+    private Octree<A> freeNodes;
+    private int       freeNodeCount;
+    
+    private class OctNode
+    {
+        private Volume    v;
+        private A         obj;
+        private Octree<A> parent;
+        private final int handle;
+        
+        private OctNode(int handle)
+        {
+            this.v      = new Volume();
+            this.handle = handle;
+        }
+    }
+    
+    public Octree(Volume box, int desiredMax, float k)
+    {
+        this(box.copy(), box.copy(), desiredMax, k, 0, null);
+    }
+    
+    private Octree(Volume nominal, Volume box, int desiredMax, float k, int depth,
+                   Octree<A> parentTree)
+    {
+        this.desiredMax = desiredMax;
+        this.k          = k;
+        this.nominal    = nominal;
+        this.box        = box;
+        this.depth      = depth;
+        this.parentTree = parentTree;
+        
+        this.contents   = new ArrayList<OctNode>(desiredMax);
+        
+        if (parentTree == null)
+        {
+            this.entries     = new ArrayList<OctNode>();
+            this.freeHandles = new int[16];
+        }
+    }
+    
+    public Volume getBox()
+    {
+        return box;
+    }
+    
+    /** Adds an object somewhere in the octree. Like QuadTree, add, move and
+     * remove should only be called on the root.
+     *
+     * @return Answers the handle to pass to move and remove for this object.
+     */
+    public int add(Volume v, A obj)
+    {
+        OctNode on = obtainEntry();
+        on.obj = obj;
+        setVolume(on.v, v);
+        addImpl(this, on);
+        return on.handle;
+    }
+    
+    /** @return Answers the object added with the handle. */
+    public A get(int handle)
+    {
+        return entries.get(handle).obj;
+    }
+    
+    /** @return Answers how deep the node holding the object is, which is zero
+     * for the root. The object mustn't have been removed. */
+    public int getDepth(int handle)
+    {
+        return entries.get(handle).parent.depth;
+    }
+    
+    private OctNode obtainEntry()
+    {
+        if (freeHandleCount > 0)
+        {
+            return entries.get(freeHandles[--freeHandleCount]);
+        }
+        
+        OctNode on = new OctNode(entries.size());
+        entries.add(on);
+        return on;
+    }
+    
+    private void releaseEntry(OctNode on)
+    {
+        on.obj    = null;
+        on.parent = null;
+        
+        if (freeHandleCount == freeHandles.length)
+        {
+            int[] grown = new int[freeHandles.length * 2];
+            System.arraycopy(freeHandles, 0, grown, 0, freeHandleCount);
+            freeHandles = grown;
+        }
+        freeHandles[freeHandleCount++] = on.handle;
+    }
+    
+    private void addImpl(Octree<A> root, OctNode on)
+    {
+        if (split)
+        {
+            Octree<A> child = childContaining(on.v);
+            if (child != null)
+            {
+                child.addImpl(root, on);
+            }
+            else
+            {
+                addHere(on); /* Can end up with more than desiredMax. */
+            }
+        }
+        else
+        {
+            if (contents.size() < desiredMax || depth >= MAX_DEPTH)
+            {
+                addHere(on);
+            }
+            else
+            {
+                split(root);
+                addImpl(root, on);
+            }
+        }
+    }
+    
+    private void addHere(OctNode on)
+    {
+        on.parent = this;
+        contents.add(on);
+    }
+    
+    private static void setVolume(Volume to, Volume from)
+    {
+        to.x1 = from.x1; to.y1 = from.y1; to.z1 = from.z1;
+        to.x2 = from.x2; to.y2 = from.y2; to.z2 = from.z2;
+    }
+    
+    /** @return Answers the child whose eighth holds the centre of `v`, as
+     * long as its loose box fits `v`. Otherwise null. Only valid once split.
+     */
+    private Octree<A> childContaining(Volume v)
+    {
+        int index = 0;
+        if ((v.x1 + v.x2) / 2 >= (nominal.x1 + nominal.x2) / 2) index |= X_HIGH;
+        if ((v.y1 + v.y2) / 2 >= (nominal.y1 + nominal.y2) / 2) index |= Y_HIGH;
+        if ((v.z1 + v.z2) / 2 >= (nominal.z1 + nominal.z2) / 2) index |= Z_HIGH;
+        
+        Octree<A> child = children[index];
+        return child.box.containsVolume(v) ? child : null;
+    }
+    
+    public void remove(int handle)
+    {
+        OctNode on = entries.get(handle);
+        
+        if (on.parent != null)
+        {
+            Octree<A> from = on.parent;
+            from.contents.remove(on);
+            releaseEntry(on);
+            collapseFrom(from);
+        }
+    }
+    
+    public void move(int handle, Volume v)
+    {
+        OctNode on = entries.get(handle);
+        Octree<A> from = on.parent;
+        
+        if (from.box.containsVolume(v) || from == this)
+        {
+            /* still fits its node, or is at the root because it fits nowhere
+             * else */
+            setVolume(on.v, v);
+        }
+        else
+        {
+            from.contents.remove(on);
+            on.parent = null;
+            collapseFrom(from);
+            setVolume(on.v, v);
+            addImpl(this, on);
+        }
+    }
+    
+    /** Visits every object whose volume intersects `region`. Only children
+     * whose loose boxes overlap the region are descended into, and nothing is
+     * allocated.
+     */
+    public void query(Volume region, VolumeVisitor<A> vv)
+    {
+        queryImpl(region.x1, region.y1, region.z1, region.x2, region.y2, region.z2, vv);
+    }
+    
+    /** Visits every object whose volume contains the point (x, y, z). */
+    public void queryPoint(float x, float y, float z, VolumeVisitor<A> vv)
+    {
+        queryImpl(x, y, z, x, y, z, vv);
+    }
+    
+    private void queryImpl(float x1, float y1, float z1,
+                           float x2, float y2, float z2, VolumeVisitor<A> vv)
+    {
+        /* The node's own box isn't tested - the root can hold objects that
+         * lie outside of it. */
+        final int count = contents.size();
+        for (int i=0; i<count; i++)
+        {
+            OctNode on = contents.get(i);
+            if (on.v.intersects(x1, y1, z1, x2, y2, z2))
+            {
+                vv.visit(on.obj, on.v);
+            }
+        }
+        
+        if (split)
+        {
+            for (int i=0; i<8; i++)
+            {
+                Octree<A> child = children[i];
+                if (child.box.intersects(x1, y1, z1, x2, y2, z2))
+                {
+                    child.queryImpl(x1, y1, z1, x2, y2, z2, vv);
+                }
+            }
+        }
+    }
+    
+    private void split(Octree<A> root)
+    {
+        if (children == null)
+        {
+            @SuppressWarnings("unchecked")
+            final Octree<A>[] c = (Octree<A>[]) new Octree<?>[8];
+            children = c;
+        }
+        
+        final float midX = (nominal.x1 + nominal.x2) / 2;
+        final float midY = (nominal.y1 + nominal.y2) / 2;
+        final float midZ = (nominal.z1 + nominal.z2) / 2;
+        
+        for (int i=0; i<8; i++)
+        {
+            final boolean xHigh = (i & X_HIGH) != 0;
+            final boolean yHigh = (i & Y_HIGH) != 0;
+            final boolean zHigh = (i & Z_HIGH) != 0;
+            
+            children[i] = makeChild(root,
+                                    xHigh ? midX : nominal.x1, xHigh ? nominal.x2 : midX,
+                                    yHigh ? midY : nominal.y1, yHigh ? nominal.y2 : midY,
+                                    zHigh ? midZ : nominal.z1, zHigh ? nominal.z2 : midZ);
+        }
+        
+        split = true;
+        
+        /* Move contents into the new children. Walk backwards so removal
+         * doesn't disturb the indices still to visit. */
+        for (int i=contents.size()-1; i>=0; i--)
+        {
+            OctNode on = contents.get(i);
+            Octree<A> child = childContaining(on.v);
+            if (child != null)
+            {
+                contents.remove(i);
+                child.addImpl(root, on);
+            }
+        }
+    }
+    
+    /** Makes a child node, reusing one from the root's free list if there is
+     * one. */
+    private Octree<A> makeChild(Octree<A> root, float x1, float x2,
+                                float y1, float y2, float z1, float z2)
+    {
+        Octree<A> child = root.freeNodes;
+        
+        if (child == null)
+        {
+            child = new Octree<A>(new Volume(x1, x2, y1, y2, z1, z2),
+                                  new Volume(x1, x2, y1, y2, z1, z2),
+                                  desiredMax, k, depth + 1, this);
+        }
+        else
+        {
+            root.freeNodes = child.nextFree;
+            root.freeNodeCount--;
+            
+            child.nextFree   = null;
+            child.depth      = depth + 1;
+            child.parentTree = this;
+            child.nominal.x1 = x1; child.nominal.y1 = y1; child.nominal.z1 = z1;
+            child.nominal.x2 = x2; child.nominal.y2 = y2; child.nominal.z2 = z2;
+            setVolume(child.box, child.nominal);
+        }
+        
+        child.box.enlarge(k);
+        return child;
+    }
+    
+    /** Walks up from `node`, folding the children of each split node back into
+     * it while they are all leaves and hold no more than desiredMax objects
+     * between them. Called on the root after objects leave `node`.
+     */
+    private void collapseFrom(Octree<A> node)
+    {
+        Octree<A> p = node.split ? node : node.parentTree;
+        
+        while (p != null && p.canCollapse())
+        {
+            p.collapse(this);
+            p = p.parentTree;
+        }
+    }
+    
+    private boolean canCollapse()
+    {
+        if (!split)
+        {
+            return false;
+        }
+        
+        int total = contents.size();
+        for (int i=0; i<8; i++)
+        {
+            if (children[i].split)
+            {
+                return false;
+            }
+            total += children[i].contents.size();
+        }
+        return total <= desiredMax;
+    }
+    
+    private void collapse(Octree<A> root)
+    {
+        for (int i=0; i<8; i++)
+        {
+            Octree<A> child = children[i];
+            
+            final int count = child.contents.size();
+            for (int j=0; j<count; j++)
+            {
+                OctNode on = child.contents.get(j);
+                on.parent = this;
+                contents.add(on);
+            }
+            child.contents.clear();
+            
+            recycle(root, child);
+            children[i] = null;
+        }
+        
+        split = false;
+    }
+    
+    private static <A> void recycle(Octree<A> root, Octree<A> node)
+    {
+        node.parentTree = null;
+        
+        if (root.freeNodeCount < MAX_FREE_NODES)
+        {
+            node.nextFree  = root.freeNodes;
+            root.freeNodes = node;
+            root.freeNodeCount++;
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "OctT(k="+k+",splitAt="+desiredMax+",split="+split+")";
+    }
+}
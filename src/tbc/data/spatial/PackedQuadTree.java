@@ -0,0 +1,549 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A loose quad tree that behaves like {@link QuadTree}, with the same add,
+ * move, remove and query operations and the same handles, but which is stored
+ * as parallel primitive arrays rather than as objects. Nodes and entries are
+ * indices into those arrays, and bounds are kept as floats rather than as
+ * Bounds instances. Adding, moving and removing allocate nothing once the
+ * arrays have grown to fit the population, so it suits worlds of many small,
+ * short lived objects.
+ * <p>
+ * Queries share a traversal stack and a Bounds instance, so one tree must not
+ * be queried from more than one thread at a time, nor from inside a visitor.
+ */
+public class PackedQuadTree<A> implements SpatialIndex<A>
+{
+    private static final int NONE = -1;
+    
+    /** Nodes at this depth never split. */
+    private static final int MAX_DEPTH = 16;
+    
+    private static final int ROOT = 0;
+    
+    private int   desiredMax;
+    private float k;
+    
+    /* Nodes. Children are allocated in blocks of four, ordered NW, NE, SW, SE,
+     * so a node only records its first child. */
+    private float[] nodeX1, nodeY1, nodeX2, nodeY2; /* loose box */
+    private float[] nodeMidX, nodeMidY;             /* centre of nominal box */
+    private float[] nodeHalfW, nodeHalfH;           /* half size of nominal box */
+    private int[]   nodeChild;                      /* NONE for a leaf */
+    private int[]   nodeParent;
+    private int[]   nodeDepth;
+    private int[]   nodeHead;                       /* first entry held here */
+    private int[]   nodeCount;
+    private int     nodeEnd;
+    
+    /** First nodes of child blocks dropped by collapses. */
+    private int[] freeBlocks = new int[8];
+    private int   freeBlockCount;
+    
+    /* Entries, indexed by handle. Each node's entries form a doubly linked
+     * list through entNext and entPrev. Removed entries are chained through
+     * entNext from freeEntry. */
+    private float[]  entX1, entY1, entX2, entY2;
+    private int[]    entNode;                       /* NONE once removed */
+    private int[]    entNext, entPrev;
+    private Object[] entObj;
+    private int      entEnd;
+    private int      freeEntry = NONE;
+    
+    private int[]  stack       = new int[4 * MAX_DEPTH + 4];
+    private int[]  pairPath    = new int[MAX_DEPTH + 1];
+    private Bounds visitBounds = new Bounds(0.0f, 0.0f, 0.0f, 0.0f);
+    
+    public PackedQuadTree(float x1, float y1, float x2, float y2, int desiredMax, float k)
+    {
+        this(new Bounds(x1, y1, x2, y2), desiredMax, k);
+    }
+    
+    public PackedQuadTree(Bounds box, int desiredMax, float k)
+    {
+        this.desiredMax = desiredMax;
+        this.k          = k;
+        
+        nodeX1 = new float[0]; nodeY1 = new float[0];
+        nodeX2 = new float[0]; nodeY2 = new float[0];
+        nodeMidX  = new float[0]; nodeMidY  = new float[0];
+        nodeHalfW = new float[0]; nodeHalfH = new float[0];
+        nodeChild = new int[0];   nodeParent = new int[0];
+        nodeDepth = new int[0];   nodeHead   = new int[0];
+        nodeCount = new int[0];
+        
+        entX1 = new float[0]; entY1 = new float[0];
+        entX2 = new float[0]; entY2 = new float[0];
+        entNode = new int[0]; entNext = new int[0]; entPrev = new int[0];
+        entObj  = new Object[0];
+        
+        /* The root's box isn't enlarged, like QuadTree. */
+        nodeEnd = 1;
+        ensureNodeCapacity(nodeEnd);
+        initNode(ROOT, NONE, 0,
+                 (box.x1 + box.x2) / 2, (box.y1 + box.y2) / 2,
+                 box.getWidth() / 2, box.getHeight() / 2, 1.0f);
+    }
+    
+    public Bounds getBox()
+    {
+        return new Bounds(nodeX1[ROOT], nodeY1[ROOT], nodeX2[ROOT], nodeY2[ROOT]);
+    }
+    
+    /** @return Answers the handle to pass to move and remove for this object. */
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        int h;
+        if (freeEntry != NONE)
+        {
+            h = freeEntry;
+            freeEntry = entNext[h];
+        }
+        else
+        {
+            h = entEnd++;
+            ensureEntryCapacity(entEnd);
+        }
+        
+        entObj[h] = obj;
+        setEntryBounds(h, b);
+        insert(h);
+        return h;
+    }
+    
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        /* Adds are cheap enough here that batching buys little. */
+        for (int i=0; i<count; i++)
+        {
+            handles[i] = add(bs[i], objs[i]);
+        }
+    }
+    
+    /** @return Answers the object added with the handle. */
+    @SuppressWarnings("unchecked")
+    @Override
+    public A get(int handle)
+    {
+        return (A) entObj[handle];
+    }
+    
+    @Override
+    public void remove(int handle)
+    {
+        final int node = entNode[handle];
+        
+        if (node != NONE)
+        {
+            unlink(handle);
+            entObj[handle]  = null;
+            entNext[handle] = freeEntry;
+            freeEntry       = handle;
+            collapseFrom(node);
+        }
+    }
+    
+    @Override
+    public void move(int handle, Bounds b)
+    {
+        final int node = entNode[handle];
+        
+        if (node == ROOT || fits(node, b.x1, b.y1, b.x2, b.y2))
+        {
+            /* still fits in its node, or is at the root because it fits
+             * nowhere else */
+            setEntryBounds(handle, b);
+        }
+        else
+        {
+            unlink(handle);
+            collapseFrom(node);
+            setEntryBounds(handle, b);
+            insert(handle);
+        }
+    }
+    
+    /** Visits every object whose bounds intersect `region`. The Bounds passed
+     * to the visitor is reused between calls. */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryImpl(region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryImpl(x, y, x, y, v);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void queryImpl(float x1, float y1, float x2, float y2,
+                           SpatialVisitor<A> v)
+    {
+        int sp = 0;
+        stack[sp++] = ROOT;
+        
+        while (sp > 0)
+        {
+            final int node = stack[--sp];
+            
+            for (int e=nodeHead[node]; e != NONE; e = entNext[e])
+            {
+                if (entX1[e] <= x2 && entX2[e] >= x1
+                        && entY1[e] <= y2 && entY2[e] >= y1)
+                {
+                    visitBounds.x1 = entX1[e]; visitBounds.y1 = entY1[e];
+                    visitBounds.x2 = entX2[e]; visitBounds.y2 = entY2[e];
+                    v.visit((A) entObj[e], visitBounds);
+                }
+            }
+            
+            final int first = nodeChild[node];
+            if (first != NONE)
+            {
+                for (int c=first; c<first+4; c++)
+                {
+                    if (nodeX1[c] <= x2 && nodeX2[c] >= x1
+                            && nodeY1[c] <= y2 && nodeY2[c] >= y1)
+                    {
+                        stack[sp++] = c;
+                    }
+                }
+            }
+        }
+    }
+    
+    /** Visits every pair of objects whose bounds intersect, once each, in the
+     * same way as {@link QuadTree}. */
+    @Override
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        /* Nodes in freed blocks hold nothing, so can be walked over too. */
+        for (int node=0; node<nodeEnd; node++)
+        {
+            if (nodeHead[node] == NONE)
+            {
+                continue;
+            }
+            
+            for (int n=node; n != NONE; n = nodeParent[n])
+            {
+                pairPath[nodeDepth[n]] = n;
+            }
+            
+            for (int a=nodeHead[node]; a != NONE; a = entNext[a])
+            {
+                pairSearch(node, a, v);
+            }
+        }
+    }
+    
+    /** Pairs entry `a` of `home` with the entries after it in home, everything
+     * below home, and the entries with greater handles in other branches. */
+    @SuppressWarnings("unchecked")
+    private void pairSearch(int home, int a, SpatialPairVisitor<A> v)
+    {
+        final float x1 = entX1[a], y1 = entY1[a];
+        final float x2 = entX2[a], y2 = entY2[a];
+        final int homeDepth = nodeDepth[home];
+        
+        /* Nodes below home are pushed as -(node + 1). */
+        int sp = 0;
+        stack[sp++] = ROOT;
+        
+        while (sp > 0)
+        {
+            final int top = stack[--sp];
+            final boolean below = top < 0;
+            int n = below ? -(top + 1) : top;
+            
+            int b;
+            boolean anyHandle;
+            if (n == home)
+            {
+                b = entNext[a];
+                anyHandle = true;
+            }
+            else
+            {
+                b = nodeHead[n];
+                anyHandle = below;
+                if (!below && nodeDepth[n] < homeDepth && pairPath[nodeDepth[n]] == n)
+                {
+                    b = NONE; /* an ancestor - its entries pair with us */
+                }
+            }
+            
+            for (; b != NONE; b = entNext[b])
+            {
+                if ((anyHandle || b > a)
+                        && entX1[b] <= x2 && entX2[b] >= x1
+                        && entY1[b] <= y2 && entY2[b] >= y1)
+                {
+                    v.visit((A) entObj[a], (A) entObj[b]);
+                }
+            }
+            
+            final int first = nodeChild[n];
+            if (first != NONE)
+            {
+                final boolean childBelow = below || n == home;
+                for (int c=first; c<first+4; c++)
+                {
+                    if (nodeX1[c] <= x2 && nodeX2[c] >= x1
+                            && nodeY1[c] <= y2 && nodeY2[c] >= y1)
+                    {
+                        stack[sp++] = childBelow ? -(c + 1) : c;
+                    }
+                }
+            }
+        }
+    }
+    
+    private void insert(int e)
+    {
+        int node = ROOT;
+        
+        while (true)
+        {
+            if (nodeChild[node] != NONE)
+            {
+                final int child = childForCentre(node, (entX1[e] + entX2[e]) / 2,
+                                                       (entY1[e] + entY2[e]) / 2);
+                if (fits(child, entX1[e], entY1[e], entX2[e], entY2[e]))
+                {
+                    node = child;
+                }
+                else
+                {
+                    link(e, node); /* Can end up with more than desiredMax. */
+                    return;
+                }
+            }
+            else if (nodeCount[node] < desiredMax || nodeDepth[node] >= MAX_DEPTH)
+            {
+                link(e, node);
+                return;
+            }
+            else
+            {
+                split(node);
+            }
+        }
+    }
+    
+    private void split(int node)
+    {
+        final int first = allocBlock();
+        final float halfW = nodeHalfW[node] / 2;
+        final float halfH = nodeHalfH[node] / 2;
+        final float midX  = nodeMidX[node];
+        final float midY  = nodeMidY[node];
+        final int depth   = nodeDepth[node] + 1;
+        
+        initNode(first,     node, depth, midX - halfW, midY - halfH, halfW, halfH, k);
+        initNode(first + 1, node, depth, midX + halfW, midY - halfH, halfW, halfH, k);
+        initNode(first + 2, node, depth, midX - halfW, midY + halfH, halfW, halfH, k);
+        initNode(first + 3, node, depth, midX + halfW, midY + halfH, halfW, halfH, k);
+        nodeChild[node] = first;
+        
+        /* Move contents into the new children. They were a full leaf, so no
+         * child can need splitting in turn. */
+        int e = nodeHead[node];
+        while (e != NONE)
+        {
+            final int next  = entNext[e];
+            final int child = childForCentre(node, (entX1[e] + entX2[e]) / 2,
+                                                   (entY1[e] + entY2[e]) / 2);
+            if (fits(child, entX1[e], entY1[e], entX2[e], entY2[e]))
+            {
+                unlink(e);
+                link(e, child);
+            }
+            e = next;
+        }
+    }
+    
+    /** Folds children back into their parent, walking up from `node`, in the
+     * same way as {@link QuadTree}. */
+    private void collapseFrom(int node)
+    {
+        int p = nodeChild[node] != NONE ? node : nodeParent[node];
+        
+        while (p != NONE && canCollapse(p))
+        {
+            final int first = nodeChild[p];
+            for (int c=first; c<first+4; c++)
+            {
+                while (nodeHead[c] != NONE)
+                {
+                    final int e = nodeHead[c];
+                    unlink(e);
+                    link(e, p);
+                }
+            }
+            
+            nodeChild[p] = NONE;
+            freeBlocks = Grow.ints(freeBlocks, freeBlockCount + 1);
+            freeBlocks[freeBlockCount++] = first;
+            
+            p = nodeParent[p];
+        }
+    }
+    
+    private boolean canCollapse(int node)
+    {
+        final int first = nodeChild[node];
+        if (first == NONE)
+        {
+            return false;
+        }
+        
+        int total = nodeCount[node];
+        for (int c=first; c<first+4; c++)
+        {
+            if (nodeChild[c] != NONE)
+            {
+                return false;
+            }
+            total += nodeCount[c];
+        }
+        return total <= desiredMax;
+    }
+    
+    private int childForCentre(int node, float cx, float cy)
+    {
+        int quarter = 0;
+        if (cx >= nodeMidX[node]) quarter += 1;
+        if (cy >= nodeMidY[node]) quarter += 2;
+        return nodeChild[node] + quarter;
+    }
+    
+    private boolean fits(int node, float x1, float y1, float x2, float y2)
+    {
+        return x1 >= nodeX1[node] && x2 <= nodeX2[node]
+            && y1 >= nodeY1[node] && y2 <= nodeY2[node];
+    }
+    
+    private void link(int e, int node)
+    {
+        final int head = nodeHead[node];
+        entNode[e] = node;
+        entPrev[e] = NONE;
+        entNext[e] = head;
+        if (head != NONE)
+        {
+            entPrev[head] = e;
+        }
+        nodeHead[node] = e;
+        nodeCount[node]++;
+    }
+    
+    private void unlink(int e)
+    {
+        final int node = entNode[e];
+        final int prev = entPrev[e];
+        final int next = entNext[e];
+        
+        if (prev != NONE)
+        {
+            entNext[prev] = next;
+        }
+        else
+        {
+            nodeHead[node] = next;
+        }
+        if (next != NONE)
+        {
+            entPrev[next] = prev;
+        }
+        
+        nodeCount[node]--;
+        entNode[e] = NONE;
+    }
+    
+    private int allocBlock()
+    {
+        if (freeBlockCount > 0)
+        {
+            return freeBlocks[--freeBlockCount];
+        }
+        
+        final int first = nodeEnd;
+        nodeEnd += 4;
+        ensureNodeCapacity(nodeEnd);
+        return first;
+    }
+    
+    /** Sets up an empty leaf whose nominal box has the centre and half size
+     * given, and whose loose box is that enlarged by `looseness`. */
+    private void initNode(int node, int parent, int depth, float midX, float midY,
+                          float halfW, float halfH, float looseness)
+    {
+        nodeMidX[node]   = midX;
+        nodeMidY[node]   = midY;
+        nodeHalfW[node]  = halfW;
+        nodeHalfH[node]  = halfH;
+        nodeX1[node]     = midX - halfW * looseness;
+        nodeY1[node]     = midY - halfH * looseness;
+        nodeX2[node]     = midX + halfW * looseness;
+        nodeY2[node]     = midY + halfH * looseness;
+        nodeChild[node]  = NONE;
+        nodeParent[node] = parent;
+        nodeDepth[node]  = depth;
+        nodeHead[node]   = NONE;
+        nodeCount[node]  = 0;
+    }
+    
+    private void setEntryBounds(int e, Bounds b)
+    {
+        entX1[e] = b.x1; entY1[e] = b.y1;
+        entX2[e] = b.x2; entY2[e] = b.y2;
+    }
+    
+    private void ensureNodeCapacity(int n)
+    {
+        if (nodeChild.length >= n) return;
+        
+        nodeX1     = Grow.floats(nodeX1, n);
+        nodeY1     = Grow.floats(nodeY1, n);
+        nodeX2     = Grow.floats(nodeX2, n);
+        nodeY2     = Grow.floats(nodeY2, n);
+        nodeMidX   = Grow.floats(nodeMidX, n);
+        nodeMidY   = Grow.floats(nodeMidY, n);
+        nodeHalfW  = Grow.floats(nodeHalfW, n);
+        nodeHalfH  = Grow.floats(nodeHalfH, n);
+        nodeParent = Grow.ints(nodeParent, n);
+        nodeDepth  = Grow.ints(nodeDepth, n);
+        nodeHead   = Grow.ints(nodeHead, n);
+        nodeCount  = Grow.ints(nodeCount, n);
+        nodeChild  = Grow.ints(nodeChild, n); /* last, it's the one tested */
+    }
+    
+    private void ensureEntryCapacity(int n)
+    {
+        if (entNode.length >= n) return;
+        
+        entX1   = Grow.floats(entX1, n);
+        entY1   = Grow.floats(entY1, n);
+        entX2   = Grow.floats(entX2, n);
+        entY2   = Grow.floats(entY2, n);
+        entNext = Grow.ints(entNext, n);
+        entPrev = Grow.ints(entPrev, n);
+        entObj  = Grow.objects(entObj, n);
+        entNode = Grow.ints(entNode, n); /* last, it's the one tested */
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "PackedQuadT(k="+k+",splitAt="+desiredMax+",nodes="+nodeEnd
+                +",entries="+entEnd+")";
+    }
+}
@@ -1,39 +1,67 @@
 package tbc.data.spatial;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 
 import tbc.supercheck.Gen;
+import tbc.util.Grow;
 
 /** 
  * Implements a loose quad tree, whose nodes have 2d bounds, and whose ordering
  * principal is two dimensional. A loose quad tree is one whose boxes are slightly
  * larger than they should be. That is to say, while an ordinary quad tree's boxes 
  * have side length l, a loose quad tree has boxes with side length kl, where k > 1.
+ * <p>
+ * Adding an object answers an int handle, which is what move and remove take.
+ * Handles are only meaningful to the QuadTree instance add was called on, and
+ * are reused once the object they refer to has been removed.
  * 
  * @author Karl Ward
  */
-public class QuadTree<A>
+public class QuadTree<A> implements SpatialIndex<A>
 {
-    /* TODO Remove leaves once they have no contents. Handle recreation of less
-     * than 4 leaves.
-     */
+    /** Nodes at this depth never split, so that many objects sharing the
+     * same small bounds can't recurse forever. */
+    private static final int MAX_DEPTH = 16;
+    
+    /** The most times a growable root will double. Each growth puts the tree
+     * one level deeper, so depths can reach MAX_DEPTH + MAX_GROWTHS. */
+    private static final int MAX_GROWTHS = 16;
+    
+    /** The most unused nodes the root will hold on to for reuse. Beyond this
+     * they are left for the garbage collector, so memory follows the live
+     * population rather than its peak. */
+    private static final int MAX_FREE_NODES = 256;
+    
+    /* Limits and steps for adaptive tuning of k and desiredMax. */
+    private static final float MIN_K           = 1.25f;
+    private static final float MAX_K           = 2.0f;
+    private static final float K_STEP          = 0.25f;
+    private static final int   MAX_DESIRED_MAX = 16;
+    
+    /** Adds and moves to see between tuning decisions, so that a decision is
+     * made on a fair sample. */
+    private static final int TUNE_WINDOW = 256;
+    
+    /** A move escapes when the object no longer fits the node it was in, and
+     * has to be taken out and added again from the root. More than this
+     * fraction of moves escaping loosens the boxes, and less than a tenth of
+     * it tightens them. */
+    private static final float ESCAPE_RATE_HIGH = 0.2f;
     
     private QuadTree<A> NE;
     private QuadTree<A> NW;
     private QuadTree<A> SE;
     private QuadTree<A> SW;
     
+    /** The loose box. Objects placed in this node fit inside it. */
     private Bounds box;
     
-    private ArrayList<QuadNode> contents;
-    
-    /** For a particular QuadTree instance that is considered the root of the
-     * tree, this hash will fill up with references to all the objects tracked
-     * by the quad tree. For this to be true, {@link #add(Bounds, Object)}
-     * should always be called on the root QuadTree.
+    /** The box before enlargement by k. Children split this box, not the loose
+     * one, so that a child's loose box always sits inside its parent's.
      */
-    private Hashtable<A, QuadNode> quadNodesBelow;
+    private Bounds nominal;
+    
+    private ArrayList<QuadNode> contents;
     
     /** Maximum content entries per node. Once this number is reached the box is
      * split. Though a node can end up with more than this number of objects in
@@ -46,17 +74,275 @@ public class QuadTree<A>
     /** Indicates if this node has been split and has children. */
     private boolean split;
     
+    /** Zero for the root. */
+    private int depth;
+    
+    /** Null for the root. */
+    private QuadTree<A> parentTree;
+    
+    /** Links nodes in the root's free list. */
+    private QuadTree<A> nextFree;
+    
+    /* Totals over the objects in and below this node, kept up to date as
+     * objects come and go. Mass positions are centres, weighted by mass, so
+     * that the centre of mass is massX / mass, massY / mass. Doubles, as they
+     * are added to and taken from for as long as the tree lives. */
+    private int    count;
+    private double mass;
+    private double massX;
+    private double massY;
+    
+    /** Null except at the root. */
+    private final RootState rootState;
+    
+    /** Filled in by {@link QuadTree#getStats(Stats)}. */
+    public static class Stats
+    {
+        public int   nodes;
+        public int   leaves;
+        public int   emptyLeaves;
+        public int   entries;
+        /** How many entries are held at each depth. */
+        public int[] depthCounts = new int[MAX_DEPTH + MAX_GROWTHS + 1];
+        /** The depth of the deepest node, which is zero for a lone root. */
+        public int   maxDepth;
+        /** Unused nodes the root is holding on to for reuse. */
+        public int   freeNodes;
+        public long  moves;
+        public long  escapes;
+        
+        /** @return Answers the mean number of entries held by each node. */
+        public float getAverageEntries()
+        {
+            return nodes == 0 ? 0.0f : entries / (float) nodes;
+        }
+        
+        /** @return Answers the fraction of moves that had to re-add the
+         * object from the root. */
+        public float getEscapeRate()
+        {
+            return moves == 0 ? 0.0f : escapes / (float) moves;
+        }
+        
+        /** @return Answers the mean depth of the entries. */
+        public float getAverageDepth()
+        {
+            long sum = 0;
+            for (int d=0; d<depthCounts.length; d++)
+            {
+                sum += d * (long) depthCounts[d];
+            }
+            return entries == 0 ? 0.0f : sum / (float) entries;
+        }
+    }
+    
     private class QuadNode
     {
         private Bounds      b;
         private A           obj;
         private QuadTree<A> parent;
+        private float       mass;
+        private final int   handle;
+        
+        private QuadNode(int handle)
+        {
+            this.b      = new Bounds(0.0f, 0.0f, 0.0f, 0.0f);
+            this.handle = handle;
+        }
+    }
+    
+    /** Everything that only the root needs: the handle table, the free
+     * lists, the search heaps and the tuning and growth state. Kept apart so
+     * that the nodes below the root carry none of it.
+     */
+    private class RootState
+    {
+        /** Every entry ever made, indexed by handle. The entries of removed
+         * objects stay here, with a null obj, to be reused. */
+        private ArrayList<QuadNode> entries = new ArrayList<QuadNode>();
+        
+        /** Handles of removed objects, ready for reuse. */
+        private int[] freeHandles = new int[16];
+        private int   freeHandleCount;
+        
+        /** Nodes dropped by collapses, kept for reuse by later splits. */
+        private QuadTree<A> freeNodes;
+        private int         freeNodeCount;
+        
+        /* Heaps for nearest, kept between calls: nodes still to search by
+         * least distance first, and the best entries found so far by greatest
+         * distance first. Distances are squared. */
+        private Object[] searchNodes     = new Object[16];
+        private float[]  searchNodeDists = new float[16];
+        private int      searchNodeCount;
+        private Object[] searchHits      = new Object[16];
+        private float[]  searchHitDists  = new float[16];
+        private int      searchHitCount;
+        
+        /** The node at each depth on the way down to the node queryPairs is
+         * currently pairing from. */
+        private Object[] pairPath = new Object[MAX_DEPTH + MAX_GROWTHS + 1];
+        
+        /* Counts of moves and escapes, since the last tuning decision and in
+         * all. */
+        private int  windowOps;
+        private int  windowMoves;
+        private int  windowEscapes;
+        private long moves;
+        private long escapes;
+        
+        /* When adaptive, tune works towards the target k and desiredMax, node
+         * by node. */
+        private boolean adaptive;
+        private boolean retuning;
+        private boolean retuneShrinking;
+        private float   targetK;
+        private int     targetMax;
+        private ArrayList<QuadNode> evicted;
+        private Stats               tuneStats;
+        
+        /* When growable, the root doubles towards objects outside it, and
+         * halves again as they leave, but never below the box it was made
+         * with. */
+        private boolean       growable;
+        private int           growths;
+        private final Bounds  original;
+        private QuadTree<A>[] quarterScratch;
+        
+        private RootState(Bounds original, int desiredMax, float k)
+        {
+            this.original  = original;
+            this.targetMax = desiredMax;
+            this.targetK   = k;
+        }
+        
+        /** Takes a removed entry for reuse, or makes a new one with a fresh
+         * handle. */
+        private QuadNode obtainEntry()
+        {
+            if (freeHandleCount > 0)
+            {
+                return entries.get(freeHandles[--freeHandleCount]);
+            }
+            
+            QuadNode qn = new QuadNode(entries.size());
+            entries.add(qn);
+            return qn;
+        }
+        
+        private void releaseEntry(QuadNode qn)
+        {
+            qn.obj    = null;
+            qn.parent = null;
+            qn.mass   = 0.0f;
+            
+            if (freeHandleCount == freeHandles.length)
+            {
+                int[] grown = new int[freeHandles.length * 2];
+                System.arraycopy(freeHandles, 0, grown, 0, freeHandleCount);
+                freeHandles = grown;
+            }
+            freeHandles[freeHandleCount++] = qn.handle;
+        }
+        
+        /** Empties the hits heap into objs and ds, from the last back to the
+         * first, and clears out the nodes heap.
+         * 
+         * @param root Whether the hits heap holds squared distances, whose roots
+         * should be answered.
+         * @return Answers how many hits there were.
+         */
+        @SuppressWarnings("unchecked")
+        private int finishSearch(A[] objs, float[] ds, boolean root)
+        {
+            final int found = searchHitCount;
+            for (int i=found-1; i>=0; i--)
+            {
+                if (ds != null)
+                {
+                    final float d = searchHitDists[0];
+                    ds[i] = root ? (float) Math.sqrt(d) : d;
+                }
+                objs[i] = ((QuadNode) popSearchHit()).obj;
+            }
+            
+            for (int i=0; i<searchNodeCount; i++)
+            {
+                searchNodes[i] = null; /* don't hold on to recycled nodes */
+            }
+            return found;
+        }
+        
+        private void pushSearchNode(QuadTree<A> node, float d)
+        {
+            searchNodes     = Grow.objects(searchNodes, searchNodeCount + 1);
+            searchNodeDists = Grow.floats(searchNodeDists, searchNodeCount + 1);
+            
+            /* Sift up, least distance at the top. */
+            int i = searchNodeCount++;
+            while (i > 0)
+            {
+                final int parent = (i - 1) >> 1;
+                if (searchNodeDists[parent] <= d)
+                {
+                    break;
+                }
+                searchNodes[i]     = searchNodes[parent];
+                searchNodeDists[i] = searchNodeDists[parent];
+                i = parent;
+            }
+            searchNodes[i]     = node;
+            searchNodeDists[i] = d;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private QuadTree<A> popSearchNode()
+        {
+            final QuadTree<A> top = (QuadTree<A>) searchNodes[0];
+            final int last = --searchNodeCount;
+            siftDown(searchNodes, searchNodeDists, last, searchNodes[last],
+                     searchNodeDists[last], false);
+            searchNodes[last] = null;
+            return top;
+        }
+        
+        /** Adds a hit, dropping the furthest if there are already n. */
+        private void pushSearchHit(QuadNode qn, float d, int n)
+        {
+            if (searchHitCount == n)
+            {
+                siftDown(searchHits, searchHitDists, searchHitCount, qn, d, true);
+                return;
+            }
+            
+            searchHits     = Grow.objects(searchHits, searchHitCount + 1);
+            searchHitDists = Grow.floats(searchHitDists, searchHitCount + 1);
+            
+            /* Sift up, greatest distance at the top. */
+            int i = searchHitCount++;
+            while (i > 0)
+            {
+                final int parent = (i - 1) >> 1;
+                if (searchHitDists[parent] >= d)
+                {
+                    break;
+                }
+                searchHits[i]     = searchHits[parent];
+                searchHitDists[i] = searchHitDists[parent];
+                i = parent;
+            }
+            searchHits[i]     = qn;
+            searchHitDists[i] = d;
+        }
         
-        private QuadNode(Bounds b, A obj, QuadTree<A> parent)
+        private Object popSearchHit()
         {
-            this.b      = b;
-            this.obj    = obj;
-            this.parent = parent;
+            final Object top = searchHits[0];
+            final int last = --searchHitCount;
+            siftDown(searchHits, searchHitDists, last, searchHits[last],
+                     searchHitDists[last], true);
+            searchHits[last] = null;
+            return top;
         }
     }
     
@@ -66,14 +352,25 @@ public class QuadTree<A>
     }
     
     public QuadTree(Bounds box, int desiredMax, float k)
+    {
+        this(box.copy(), box.copy(), desiredMax, k, 0, null);
+    }
+    
+    private QuadTree(Bounds nominal, Bounds box, int desiredMax, float k, int depth,
+                     QuadTree<A> parentTree)
     {
         this.desiredMax     = desiredMax;
         this.k              = k;
         this.split          = false;
+        this.nominal        = nominal;
         this.box            = box;
+        this.depth          = depth;
+        this.parentTree     = parentTree;
         
         this.contents       = new ArrayList<QuadNode>(desiredMax);
-        this.quadNodesBelow = new Hashtable<A, QuadNode>(); 
+        
+        this.rootState      = parentTree == null
+                            ? new RootState(nominal.copy(), desiredMax, k) : null;
     }
     
     public Bounds getBox()
@@ -81,169 +378,1521 @@ public class QuadTree<A>
         return box;
     }
     
-    /** Adds an object somewhere in the quad tree. The new quad node created will
-     * consider the quad tree section add() is called on to be its root. Thus, add,
-     * remove and move calls for a particular object must be performed on the same
-     * quad tree segment.
+    /** @return Answers how many objects are in this node and below it. */
+    public int getCount()
+    {
+        return count;
+    }
+    
+    /** @return Answers the total mass of the objects in this node and below
+     * it. */
+    public float getMass()
+    {
+        return (float) mass;
+    }
+    
+    /** Adds an object somewhere in the quad tree. Add should only be called on
+     * the root QuadTree instance, and move and remove called on the same one.
+     * 
+     * @return Answers the handle to pass to move and remove for this object.
      */
-    public void add(Bounds b, A obj)
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        return add(b, obj, 0.0f);
+    }
+    
+    /** Adds an object with a mass, which pulls on others in
+     * {@link #accelerationAt}. Objects added without one have none.
+     * 
+     * @return Answers the handle to pass to move and remove for this object.
+     */
+    public int add(Bounds b, A obj, float mass)
+    {
+        QuadNode qn = rootState.obtainEntry();
+        qn.obj  = obj;
+        qn.mass = mass;
+        setBounds(qn.b, b);
+        addImpl(this, qn);
+        rootState.windowOps++;
+        return qn.handle;
+    }
+    
+    /** Changes the mass of the object added with the handle. */
+    public void setMass(int handle, float mass)
     {
-        addImpl(this, b, obj);
+        QuadNode qn = rootState.entries.get(handle);
+        qn.parent.weigh(qn, -1);
+        qn.mass = mass;
+        qn.parent.weigh(qn, 1);
     }
     
-    private void addImpl(QuadTree<A> root, Bounds b, A obj)
+    /** @return Answers the object added with the handle. */
+    @Override
+    public A get(int handle)
+    {
+        return rootState.entries.get(handle).obj;
+    }
+    
+    private void addImpl(QuadTree<A> root, QuadNode qn)
     {
+        final Bounds b = qn.b;
+        
+        if (this == root && rootState.growable)
+        {
+            while (!box.containsBounds(b) && growToward(b))
+            {
+                /* doubled */
+            }
+        }
+        
         if (split)
         {
             /* Content objects will be placed in a single child node, or this one
              * if they don't fit any. */
-            if (NE.getBox().containsBounds(b))
+            QuadTree<A> child = childContaining(b);
+            if (child != null)
             {
-                NE.add(b, obj);
+                child.addImpl(root, qn);
             }
-            else if (NW.getBox().containsBounds(b))
+            else
             {
-                NW.add(b, obj);
+                addHere(qn); /* Can end up with more than desiredMax. */
             }
-            else if (SE.getBox().containsBounds(b))
+        }
+        else
+        {
+            if (contents.size() < desiredMax || depth >= MAX_DEPTH + root.rootState.growths)
             {
-                SE.add(b, obj);
+                addHere(qn);
             }
-            else if (SW.getBox().containsBounds(b))
+            else
             {
-                SW.add(b, obj);
+                split(root);
+                addImpl(root, qn);
             }
-            else
+        }
+    }
+    
+    /** Add an entry to this particular quad node. */
+    private void addHere(QuadNode qn)
+    {
+        qn.parent = this;
+        contents.add(qn);
+        tally(qn, 1);
+    }
+    
+    /** Takes an entry out of this particular quad node. */
+    private void removeHere(QuadNode qn)
+    {
+        contents.remove(qn);
+        tally(qn, -1);
+    }
+    
+    /** Adds (sign 1) or takes away (sign -1) an entry from the totals of this
+     * node and every node above it. */
+    private void tally(QuadNode qn, int sign)
+    {
+        for (QuadTree<A> n=this; n != null; n = n.parentTree)
+        {
+            n.count += sign;
+        }
+        weigh(qn, sign);
+    }
+    
+    /** Adds or takes away just the mass of an entry, as when it moves within
+     * the node it is in. */
+    private void weigh(QuadNode qn, int sign)
+    {
+        if (qn.mass == 0.0f)
+        {
+            return;
+        }
+        
+        final double m  = sign * qn.mass;
+        final double cx = (qn.b.x1 + qn.b.x2) / 2;
+        final double cy = (qn.b.y1 + qn.b.y2) / 2;
+        for (QuadTree<A> n=this; n != null; n = n.parentTree)
+        {
+            n.mass  += m;
+            n.massX += m * cx;
+            n.massY += m * cy;
+            
+            if (n.count == 0)
             {
-                addHere(root, b, obj); /* Can end up with more than desiredMax. */
+                n.mass = n.massX = n.massY = 0.0; /* no drift when empty */
             }
         }
+    }
+    
+    private static void setBounds(Bounds to, Bounds from)
+    {
+        to.x1 = from.x1; to.y1 = from.y1;
+        to.x2 = from.x2; to.y2 = from.y2;
+    }
+    
+    /** @return Answers the child whose quarter holds the centre of `b`, as
+     * long as its loose box fits `b`. Otherwise null. Only valid once split.
+     */
+    private QuadTree<A> childContaining(Bounds b)
+    {
+        QuadTree<A> child = childForCentre((b.x1 + b.x2) / 2, (b.y1 + b.y2) / 2);
+        return child.box.containsBounds(b) ? child : null;
+    }
+    
+    private QuadTree<A> childForCentre(float cx, float cy)
+    {
+        final boolean west  = cx < (nominal.x1 + nominal.x2) / 2;
+        final boolean north = cy < (nominal.y1 + nominal.y2) / 2;
+        
+        if (north)
+        {
+            return west ? NW : NE;
+        }
         else
         {
-            if (contents.size() < desiredMax)
+            return west ? SW : SE;
+        }
+    }
+    
+    /** Adds many objects in one pass. Rather than inserting them one at a time,
+     * the batch is partitioned between the children of each node it reaches,
+     * by centre, and nodes are split at most once. This is much cheaper than
+     * calling {@link #add(Bounds, Object)} for each, particularly when loading
+     * a populated area into an empty tree.
+     * 
+     * A growable tree first grows to fit the whole batch.
+     * 
+     * @param handles Filled with the handle of each object added, in the
+     * order given.
+     */
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        ArrayList<QuadNode> batch   = new ArrayList<QuadNode>(count);
+        ArrayList<QuadNode> scratch = new ArrayList<QuadNode>(count);
+        
+        for (int i=0; i<count; i++)
+        {
+            QuadNode qn = rootState.obtainEntry();
+            qn.obj = objs[i];
+            setBounds(qn.b, bs[i]);
+            handles[i] = qn.handle;
+            
+            batch.add(qn);
+            scratch.add(null);
+        }
+        
+        if (rootState.growable && count > 0)
+        {
+            /* Grow once to fit the whole batch, before partitioning it. */
+            Bounds all = bs[0].copy();
+            for (int i=1; i<count; i++)
             {
-                addHere(root, b, obj);
+                all.x1 = Math.min(all.x1, bs[i].x1); all.y1 = Math.min(all.y1, bs[i].y1);
+                all.x2 = Math.max(all.x2, bs[i].x2); all.y2 = Math.max(all.y2, bs[i].y2);
             }
-            else
+            while (!box.containsBounds(all) && growToward(all))
             {
-                split();
-                add(b, obj);
+                /* doubled */
             }
         }
+        
+        addAllImpl(this, batch, scratch, 0, count);
     }
     
-    /**
-     * Add an object to this particular quad node. The root passed is told about
-     * the new object in the tree. The root should not be this - it should be
-     * the root QuadTree instance of the whole tree.
-     */
-    private void addHere(QuadTree<A> root, Bounds b, A obj)
+    /** Places the entries in batch between from and to (exclusive) in or below
+     * this node. Scratch is the same size as batch and is used for
+     * partitioning. */
+    private void addAllImpl(QuadTree<A> root, ArrayList<QuadNode> batch, 
+                            ArrayList<QuadNode> scratch, int from, int to)
     {
-        QuadNode qn = new QuadNode(b.copy(), obj, this);
-        contents.add(qn);
-        root.quadNodesBelow.put(obj, qn);
+        if (!split)
+        {
+            if (contents.size() + (to - from) <= desiredMax
+                    || depth >= MAX_DEPTH + root.rootState.growths)
+            {
+                for (int i=from; i<to; i++)
+                {
+                    addHere(batch.get(i));
+                }
+                return;
+            }
+            
+            split(root);
+        }
+        
+        /* Count how many go to each child, and how many stay here. */
+        int nw = 0, ne = 0, sw = 0, se = 0, here = 0;
+        for (int i=from; i<to; i++)
+        {
+            QuadTree<A> child = childContaining(batch.get(i).b);
+            if      (child == NW) nw++;
+            else if (child == NE) ne++;
+            else if (child == SW) sw++;
+            else if (child == SE) se++;
+            else                  here++;
+        }
+        
+        /* Scatter into scratch, grouped by child, then copy back. */
+        int nwAt = from, neAt = nwAt + nw, swAt = neAt + ne, seAt = swAt + sw,
+            hereAt = seAt + se;
+        for (int i=from; i<to; i++)
+        {
+            QuadNode qn = batch.get(i);
+            QuadTree<A> child = childContaining(qn.b);
+            if      (child == NW) scratch.set(nwAt++, qn);
+            else if (child == NE) scratch.set(neAt++, qn);
+            else if (child == SW) scratch.set(swAt++, qn);
+            else if (child == SE) scratch.set(seAt++, qn);
+            else                  scratch.set(hereAt++, qn);
+        }
+        for (int i=from; i<to; i++)
+        {
+            batch.set(i, scratch.get(i));
+        }
+        
+        int at = from;
+        if (nw > 0) NW.addAllImpl(root, batch, scratch, at, at + nw);
+        at += nw;
+        if (ne > 0) NE.addAllImpl(root, batch, scratch, at, at + ne);
+        at += ne;
+        if (sw > 0) SW.addAllImpl(root, batch, scratch, at, at + sw);
+        at += sw;
+        if (se > 0) SE.addAllImpl(root, batch, scratch, at, at + se);
+        at += se;
+        for (int i=at; i<to; i++)
+        {
+            addHere(batch.get(i)); /* Can end up with more than desiredMax. */
+        }
     }
     
-    public void remove(A obj)
+    @Override
+    public void remove(int handle)
     {
-        QuadNode qn = quadNodesBelow.get(obj);
+        QuadNode qn = rootState.entries.get(handle);
         
-        if (qn != null)
+        if (qn.parent != null)
         {
-            qn.parent.contents.remove(qn);
-            quadNodesBelow.remove(obj);
+            QuadTree<A> from = qn.parent;
+            from.removeHere(qn);
+            rootState.releaseEntry(qn);
+            collapseFrom(from);
+            shrink();
         }
     }
     
-    public void move(Bounds b, A obj)
+    @Override
+    public void move(int handle, Bounds b)
     {
-        QuadNode qn = quadNodesBelow.get(obj);
+        QuadNode qn = rootState.entries.get(handle);
+        QuadTree<A> from = qn.parent;
         
-        if (qn == null)
-        {
-            /* isn't yet in the tree */
-            add(b, obj);
-        }
-        else if (qn.parent.getBox().containsBounds(b))
+        rootState.moves++;
+        rootState.windowOps++;
+        rootState.windowMoves++;
+        
+        if (from.getBox().containsBounds(b) || (from == this && !rootState.growable))
         {
-            /* still fits in its quad tree segment */
-            qn.b = b.copy();
+            /* still fits in its quad tree segment, or is at the root because
+             * it fits nowhere else */
+            from.weigh(qn, -1);
+            setBounds(qn.b, b);
+            from.weigh(qn, 1);
         }
         else
         {
             /* no longer fits in its quad tree segment */
-            qn.parent.contents.remove(qn);
-            quadNodesBelow.remove(qn);
-            add(b, obj);
+            rootState.escapes++;
+            rootState.windowEscapes++;
+            from.removeHere(qn);
+            qn.parent = null;
+            collapseFrom(from);
+            setBounds(qn.b, b);
+            addImpl(this, qn);
+            shrink();
+        }
+    }
+    
+    /** Visits every object whose bounds intersect `region`. Only children whose
+     * loose boxes overlap the region are descended into, and nothing is
+     * allocated, so this is fine to call every frame.
+     */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryImpl(region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryImpl(x, y, x, y, v);
+    }
+    
+    private void queryImpl(float x1, float y1, float x2, float y2, 
+                           SpatialVisitor<A> v)
+    {
+        /* Indexed rather than for-each, to avoid an Iterator per node. The
+         * node's own box isn't tested here - the root can hold objects that
+         * lie outside of it. */
+        final int count = contents.size();
+        for (int i=0; i<count; i++)
+        {
+            QuadNode qn = contents.get(i);
+            if (qn.b.intersects(x1, y1, x2, y2))
+            {
+                v.visit(qn.obj, qn.b);
+            }
+        }
+        
+        if (split)
+        {
+            if (NE.box.intersects(x1, y1, x2, y2)) NE.queryImpl(x1, y1, x2, y2, v);
+            if (NW.box.intersects(x1, y1, x2, y2)) NW.queryImpl(x1, y1, x2, y2, v);
+            if (SE.box.intersects(x1, y1, x2, y2)) SE.queryImpl(x1, y1, x2, y2, v);
+            if (SW.box.intersects(x1, y1, x2, y2)) SW.queryImpl(x1, y1, x2, y2, v);
         }
     }
     
-    private void split()
+    /** Visits how many objects there are in the parts of the tree that
+     * overlap `region`, rather than the objects themselves, for drawing an
+     * overview such as a radar. Nodes no wider or taller than minSide are
+     * reported as one count, for them and everything below, and not
+     * descended into. So the number of visits is bounded by how many
+     * minSide squares fit the region, whatever the number of objects.
+     * <p>
+     * Each area is a node's nominal box - its share of its parent, before
+     * enlargement by k. Objects counted in it may hang over its edges. Larger
+     * nodes report just their own contents against their area, then their
+     * children are looked at.
+     */
+    public void queryDensity(Bounds region, float minSide, DensityVisitor v)
     {
-        final float childWidth  = box.getWidth() / 2;
-        final float childHeight = box.getHeight() / 2;
+        if (count == 0)
+        {
+            return;
+        }
         
-        NW = new QuadTree<A>(box.x1, 
-                             box.y1, 
-                             box.x1 + childWidth,
-                             box.y1 + childHeight,
-                             desiredMax,
-                             k);
+        if (!split || Math.max(nominal.getWidth(), nominal.getHeight()) <= minSide)
+        {
+            v.visit(nominal, count);
+            return;
+        }
         
-        NE = new QuadTree<A>(box.x1 + childWidth,
-                             box.y1,
-                             box.x2,
-                             box.y1 + childHeight,
-                             desiredMax,
-                             k);
+        if (contents.size() > 0)
+        {
+            v.visit(nominal, contents.size());
+        }
         
-        SW = new QuadTree<A>(box.x1,
-                             box.y1 + childHeight,
-                             box.x1 + childWidth,
-                             box.y2,
-                             desiredMax,
-                             k);
+        if (NE.box.intersects(region)) NE.queryDensity(region, minSide, v);
+        if (NW.box.intersects(region)) NW.queryDensity(region, minSide, v);
+        if (SE.box.intersects(region)) SE.queryDensity(region, minSide, v);
+        if (SW.box.intersects(region)) SW.queryDensity(region, minSide, v);
+    }
+    
+    /** Visits every pair of objects whose bounds intersect, once each. Each
+     * object is looked up from the root, like a query, and paired with what it
+     * finds: the objects after it in its own node and everything below that,
+     * but nothing in the nodes above it, as those objects find it instead.
+     * Loose boxes overlap, so objects in other branches can intersect it too,
+     * and are paired only if their handles are greater.
+     */
+    @Override
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        walkPairs(this, v);
+    }
+    
+    private void walkPairs(QuadTree<A> root, SpatialPairVisitor<A> v)
+    {
+        root.rootState.pairPath[depth] = this;
         
-        SE = new QuadTree<A>(box.x1 + childWidth,
-                             box.y1 + childHeight,
-                             box.x2,
-                             box.y2,
-                             desiredMax,
-                             k);
+        final int count = contents.size();
+        for (int i=0; i<count; i++)
+        {
+            root.pairSearch(root, this, i, false, v);
+        }
         
-        if (k != 1.0f)
+        if (split)
         {
-            NW.getBox().enlarge(k);
-            NE.getBox().enlarge(k);
-            SW.getBox().enlarge(k);
-            SE.getBox().enlarge(k);
+            NE.walkPairs(root, v);
+            NW.walkPairs(root, v);
+            SE.walkPairs(root, v);
+            SW.walkPairs(root, v);
         }
+    }
+    
+    /** Pairs entry `index` of `home` with whatever it intersects in or below
+     * this node, as described by {@link #queryPairs}.
+     * 
+     * @param below Whether this node is a descendant of home.
+     */
+    private void pairSearch(QuadTree<A> root, QuadTree<A> home, int index, 
+                            boolean below, SpatialPairVisitor<A> v)
+    {
+        final QuadNode a = home.contents.get(index);
+        final int count = contents.size();
         
-        /* Move contents into the new children. */
-        for (QuadNode qn : contents)
+        if (this == home)
+        {
+            for (int i=index+1; i<count; i++)
+            {
+                pairIfIntersects(a, contents.get(i), v);
+            }
+            below = true;
+        }
+        else if (below)
+        {
+            for (int i=0; i<count; i++)
+            {
+                pairIfIntersects(a, contents.get(i), v);
+            }
+        }
+        else if (depth >= home.depth || root.rootState.pairPath[depth] != this)
         {
-            if (NE.getBox().containsBounds(qn.b))
+            /* In another branch. */
+            for (int i=0; i<count; i++)
             {
-                contents.remove(qn);
-                NE.add(qn.b, qn.obj);
+                QuadNode b = contents.get(i);
+                if (b.handle > a.handle)
+                {
+                    pairIfIntersects(a, b, v);
+                }
             }
-            else if (NW.getBox().containsBounds(qn.b))
+        }
+        
+        if (split)
+        {
+            if (NE.box.intersects(a.b)) NE.pairSearch(root, home, index, below, v);
+            if (NW.box.intersects(a.b)) NW.pairSearch(root, home, index, below, v);
+            if (SE.box.intersects(a.b)) SE.pairSearch(root, home, index, below, v);
+            if (SW.box.intersects(a.b)) SW.pairSearch(root, home, index, below, v);
+        }
+    }
+    
+    private void pairIfIntersects(QuadNode a, QuadNode b, SpatialPairVisitor<A> v)
+    {
+        if (a.b.intersects(b.b))
+        {
+            v.visit(a.obj, b.obj);
+        }
+    }
+    
+    /** Finds the objects nearest to (x, y), measuring to the nearest point of
+     * their bounds. Nodes are searched closest first, and the search stops
+     * once no node left could hold anything closer than the n found so far,
+     * so only the area around the point is looked at. Nothing is allocated
+     * once the search heaps have grown to fit.
+     * 
+     * @param n The most objects to find.
+     * @param maxDist Objects further away than this are not found.
+     * @param filter Only objects it accepts are found. May be null.
+     * @param objs Filled with the objects found, nearest first.
+     * @param dists Filled with the distance to each object found. May be
+     * null.
+     * @return Answers how many objects were found, at most n. Only call this
+     * on the root, like add.
+     */
+    @SuppressWarnings("unchecked")
+    public int nearest(float x, float y, int n, float maxDist, 
+                       SpatialFilter<A> filter, A[] objs, float[] dists)
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+        
+        final float maxDistSq = maxDist * maxDist;
+        rootState.searchNodeCount = 0;
+        rootState.searchHitCount  = 0;
+        
+        /* The root's box isn't tested - it can hold objects outside it. */
+        rootState.pushSearchNode(this, 0.0f);
+        
+        while (rootState.searchNodeCount > 0)
+        {
+            final float nodeDist = rootState.searchNodeDists[0];
+            final QuadTree<A> node = rootState.popSearchNode();
+            
+            float limit = rootState.searchHitCount == n ? rootState.searchHitDists[0]
+                                                        : maxDistSq;
+            if (nodeDist > limit)
             {
-                contents.remove(qn);
-                NW.add(qn.b, qn.obj);
+                break; /* everything left is further still */
             }
-            else if (SE.getBox().containsBounds(qn.b))
+            
+            final int count = node.contents.size();
+            for (int i=0; i<count; i++)
             {
-                contents.remove(qn);
-                SE.add(qn.b, qn.obj);
+                QuadNode qn = node.contents.get(i);
+                final float d = qn.b.distanceSq(x, y);
+                
+                if (d > limit || (d == limit && rootState.searchHitCount == n))
+                {
+                    continue;
+                }
+                if (filter != null && !filter.accept(qn.obj, qn.b))
+                {
+                    continue;
+                }
+                
+                rootState.pushSearchHit(qn, d, n);
+                limit = rootState.searchHitCount == n ? rootState.searchHitDists[0]
+                                                      : maxDistSq;
             }
-            else if (SW.getBox().containsBounds(qn.b))
+            
+            if (node.split)
             {
-                contents.remove(qn);
-                SW.add(qn.b, qn.obj);
+                pushIfWithin(node.NW, x, y, limit);
+                pushIfWithin(node.NE, x, y, limit);
+                pushIfWithin(node.SW, x, y, limit);
+                pushIfWithin(node.SE, x, y, limit);
             }
-            /* otherwise leave it here */
         }
+        
+        return rootState.finishSearch(objs, dists, true);
+    }
+    
+    /** Finds the objects whose bounds the line segment from (x1, y1) to
+     * (x2, y2) passes through, such as whatever a bullet hit between one
+     * update and the next. Nodes are searched in the order the segment enters
+     * their loose boxes, so when there are more hits than will fit in objs,
+     * only the first ones along the segment are searched for.
+     * 
+     * @param filter Only objects it accepts are found. May be null.
+     * @param objs Filled with the objects hit, in the order the segment
+     * enters them. Its length is the most objects found.
+     * @param ts Filled with how far along the segment each object is entered,
+     * from 0 at (x1, y1) to 1 at (x2, y2). Zero if the segment starts inside
+     * it. May be null.
+     * @return Answers how many objects were hit. Only call this on the root,
+     * like add.
+     */
+    @SuppressWarnings("unchecked")
+    public int querySegment(float x1, float y1, float x2, float y2,
+                            SpatialFilter<A> filter, A[] objs, float[] ts)
+    {
+        final int n = objs.length;
+        if (n == 0)
+        {
+            return 0;
+        }
+        
+        final float dx = x2 - x1;
+        final float dy = y2 - y1;
+        rootState.searchNodeCount = 0;
+        rootState.searchHitCount  = 0;
+        
+        /* The root's box isn't tested - it can hold objects outside it. */
+        rootState.pushSearchNode(this, 0.0f);
+        
+        while (rootState.searchNodeCount > 0)
+        {
+            final float nodeT = rootState.searchNodeDists[0];
+            final QuadTree<A> node = rootState.popSearchNode();
+            
+            float limit = rootState.searchHitCount == n ? rootState.searchHitDists[0] : 1.0f;
+            if (nodeT > limit)
+            {
+                break; /* everything left is entered later still */
+            }
+            
+            final int count = node.contents.size();
+            for (int i=0; i<count; i++)
+            {
+                QuadNode qn = node.contents.get(i);
+                final float t = qn.b.segmentEntry(x1, y1, dx, dy);
+                
+                if (t < 0.0f || t > limit || (t == limit && rootState.searchHitCount == n))
+                {
+                    continue;
+                }
+                if (filter != null && !filter.accept(qn.obj, qn.b))
+                {
+                    continue;
+                }
+                
+                rootState.pushSearchHit(qn, t, n);
+                limit = rootState.searchHitCount == n ? rootState.searchHitDists[0] : 1.0f;
+            }
+            
+            if (node.split)
+            {
+                pushIfCrossed(node.NW, x1, y1, dx, dy, limit);
+                pushIfCrossed(node.NE, x1, y1, dx, dy, limit);
+                pushIfCrossed(node.SW, x1, y1, dx, dy, limit);
+                pushIfCrossed(node.SE, x1, y1, dx, dy, limit);
+            }
+        }
+        
+        return rootState.finishSearch(objs, ts, false);
+    }
+    
+    /** Works out the pull of every object with mass on the point (x, y), by
+     * Barnes-Hut approximation. Nodes whose side length over their distance
+     * from the point is under theta are treated as one mass at their centre
+     * of mass, rather than opened up, so the cost is logarithmic in the
+     * number of objects rather than linear. A theta of zero opens every node
+     * and gives the exact sum. Masses are taken to include the gravitational
+     * constant.
+     * 
+     * @param softening Added in to every distance, squared, so that nothing
+     * is pulled infinitely hard. An object's own mass exerts no pull on its
+     * own centre.
+     * @param out Set to the acceleration.
+     * @return Answers out.
+     */
+    public Point2D accelerationAt(float x, float y, float theta, float softening, 
+                                  Point2D out)
+    {
+        out.x = 0.0f;
+        out.y = 0.0f;
+        accumulatePull(x, y, theta * theta, softening * softening, out);
+        return out;
+    }
+    
+    private void accumulatePull(float x, float y, float thetaSq, float softSq,
+                                Point2D out)
+    {
+        if (mass == 0.0)
+        {
+            return;
+        }
+        
+        final double dx = massX / mass - x;
+        final double dy = massY / mass - y;
+        final double dSq = dx * dx + dy * dy;
+        final double side = Math.max(box.getWidth(), box.getHeight());
+        if (side * side < thetaSq * dSq)
+        {
+            pull(dx, dy, dSq + softSq, mass, out); /* far enough to lump */
+            return;
+        }
+        
+        final int n = contents.size();
+        for (int i=0; i<n; i++)
+        {
+            QuadNode qn = contents.get(i);
+            if (qn.mass != 0.0f)
+            {
+                final double ox = (qn.b.x1 + qn.b.x2) / 2 - x;
+                final double oy = (qn.b.y1 + qn.b.y2) / 2 - y;
+                pull(ox, oy, ox * ox + oy * oy + softSq, qn.mass, out);
+            }
+        }
+        
+        if (split)
+        {
+            NW.accumulatePull(x, y, thetaSq, softSq, out);
+            NE.accumulatePull(x, y, thetaSq, softSq, out);
+            SW.accumulatePull(x, y, thetaSq, softSq, out);
+            SE.accumulatePull(x, y, thetaSq, softSq, out);
+        }
+    }
+    
+    /** Adds the inverse square pull of mass m, at (dx, dy) from the point, to
+     * out. */
+    private static void pull(double dx, double dy, double rSq, double m, Point2D out)
+    {
+        if (rSq == 0.0)
+        {
+            return;
+        }
+        
+        final double f = m / (rSq * Math.sqrt(rSq));
+        out.x += (float) (dx * f);
+        out.y += (float) (dy * f);
+    }
+    
+    /** Finds the objects whose bounds overlap a sector, such as those a
+     * turret could fire on. Nodes are searched closest first, and those
+     * outside the range or the arc are never looked in, so the cost grows
+     * with what is near the arc rather than with the whole world.
+     * 
+     * @param filter Only objects it accepts are found. May be null.
+     * @param objs Filled with the objects found, nearest first. Its length
+     * is the most objects found.
+     * @param dists Filled with the distance from the sector's origin to the
+     * nearest point of each object found. May be null.
+     * @return Answers how many objects were found. Only call this on the
+     * root, like add.
+     */
+    @SuppressWarnings("unchecked")
+    public int querySector(Sector sector, SpatialFilter<A> filter, 
+                           A[] objs, float[] dists)
+    {
+        final int n = objs.length;
+        if (n == 0)
+        {
+            return 0;
+        }
+        
+        final float x = sector.getX();
+        final float y = sector.getY();
+        final float rangeSq = sector.getRange() * sector.getRange();
+        rootState.searchNodeCount = 0;
+        rootState.searchHitCount  = 0;
+        
+        /* The root's box isn't tested - it can hold objects outside it. */
+        rootState.pushSearchNode(this, 0.0f);
+        
+        while (rootState.searchNodeCount > 0)
+        {
+            final float nodeDist = rootState.searchNodeDists[0];
+            final QuadTree<A> node = rootState.popSearchNode();
+            
+            float limit = rootState.searchHitCount == n ? rootState.searchHitDists[0]
+                                                        : rangeSq;
+            if (nodeDist > limit)
+            {
+                break; /* everything left is further still */
+            }
+            
+            final int count = node.contents.size();
+            for (int i=0; i<count; i++)
+            {
+                QuadNode qn = node.contents.get(i);
+                final float d = qn.b.distanceSq(x, y);
+                
+                if (d > limit || (d == limit && rootState.searchHitCount == n))
+                {
+                    continue;
+                }
+                if (!sector.intersects(qn.b))
+                {
+                    continue;
+                }
+                if (filter != null && !filter.accept(qn.obj, qn.b))
+                {
+                    continue;
+                }
+                
+                rootState.pushSearchHit(qn, d, n);
+                limit = rootState.searchHitCount == n ? rootState.searchHitDists[0]
+                                                      : rangeSq;
+            }
+            
+            if (node.split)
+            {
+                pushIfInSector(node.NW, sector, limit);
+                pushIfInSector(node.NE, sector, limit);
+                pushIfInSector(node.SW, sector, limit);
+                pushIfInSector(node.SE, sector, limit);
+            }
+        }
+        
+        return rootState.finishSearch(objs, dists, true);
+    }
+    
+    private void pushIfInSector(QuadTree<A> child, Sector sector, float limit)
+    {
+        final float d = child.box.distanceSq(sector.getX(), sector.getY());
+        if (d <= limit && sector.intersects(child.box))
+        {
+            rootState.pushSearchNode(child, d);
+        }
+    }
+    
+    private void pushIfCrossed(QuadTree<A> child, float x, float y, 
+                               float dx, float dy, float limit)
+    {
+        final float t = child.box.segmentEntry(x, y, dx, dy);
+        if (t >= 0.0f && t <= limit)
+        {
+            rootState.pushSearchNode(child, t);
+        }
+    }
+    
+    private void pushIfWithin(QuadTree<A> child, float x, float y, float limit)
+    {
+        final float d = child.box.distanceSq(x, y);
+        if (d <= limit)
+        {
+            rootState.pushSearchNode(child, d);
+        }
+    }
+    
+    /** Puts `item` at the top of the heap of `count` items, replacing what was
+     * there, and sifts it down into place. 
+     * 
+     * @param greatest Whether the greatest distance is kept at the top, rather
+     * than the least.
+     */
+    private static void siftDown(Object[] items, float[] ds, int count,
+                                 Object item, float d, boolean greatest)
+    {
+        if (count == 0)
+        {
+            return;
+        }
+        
+        int i = 0;
+        while (true)
+        {
+            int child = 2 * i + 1;
+            if (child >= count)
+            {
+                break;
+            }
+            if (child + 1 < count
+                    && (greatest ? ds[child + 1] > ds[child] : ds[child + 1] < ds[child]))
+            {
+                child++;
+            }
+            if (greatest ? ds[child] <= d : ds[child] >= d)
+            {
+                break;
+            }
+            items[i] = items[child];
+            ds[i]    = ds[child];
+            i = child;
+        }
+        items[i] = item;
+        ds[i]    = d;
+    }
+    
+    private void split(QuadTree<A> root)
+    {
+        final float childWidth  = nominal.getWidth() / 2;
+        final float childHeight = nominal.getHeight() / 2;
+        
+        NW = makeChild(root,
+                       nominal.x1, 
+                       nominal.y1, 
+                       nominal.x1 + childWidth,
+                       nominal.y1 + childHeight);
+        
+        NE = makeChild(root,
+                       nominal.x1 + childWidth,
+                       nominal.y1,
+                       nominal.x2,
+                       nominal.y1 + childHeight);
+        
+        SW = makeChild(root,
+                       nominal.x1,
+                       nominal.y1 + childHeight,
+                       nominal.x1 + childWidth,
+                       nominal.y2);
+        
+        SE = makeChild(root,
+                       nominal.x1 + childWidth,
+                       nominal.y1 + childHeight,
+                       nominal.x2,
+                       nominal.y2);
+        
+        split = true;
+        
+        /* Move contents into the new children. Walk backwards so removal
+         * doesn't disturb the indices still to visit. */
+        for (int i=contents.size()-1; i>=0; i--)
+        {
+            QuadNode qn = contents.get(i);
+            QuadTree<A> child = childContaining(qn.b);
+            if (child != null)
+            {
+                contents.remove(i);
+                tally(qn, -1);
+                child.addImpl(root, qn);
+            }
+            /* otherwise leave it here */
+        }
+    }
+    
+    /** Makes a child node, reusing one from the root's free list if there is
+     * one. */
+    private QuadTree<A> makeChild(QuadTree<A> root, 
+                                  float x1, float y1, float x2, float y2)
+    {
+        QuadTree<A> child = root.rootState.freeNodes;
+        
+        if (child == null)
+        {
+            child = new QuadTree<A>(new Bounds(x1, y1, x2, y2), 
+                                    new Bounds(x1, y1, x2, y2),
+                                    desiredMax, k, depth + 1, this);
+        }
+        else
+        {
+            root.rootState.freeNodes = child.nextFree;
+            root.rootState.freeNodeCount--;
+            
+            child.nextFree   = null;
+            child.depth      = depth + 1;
+            child.parentTree = this;
+            child.k          = k;
+            child.desiredMax = desiredMax;
+            child.nominal.x1 = x1; child.nominal.y1 = y1;
+            child.nominal.x2 = x2; child.nominal.y2 = y2;
+            child.count      = 0;
+            child.mass       = child.massX = child.massY = 0.0;
+            child.box.x1     = x1; child.box.y1     = y1;
+            child.box.x2     = x2; child.box.y2     = y2;
+        }
+        
+        child.box.enlarge(k);
+        if (this != root)
+        {
+            child.clampBox();
+        }
+        return child;
+    }
+    
+    /** Trims the loose box to fit inside the parent's. This only bites while
+     * tune is part way through changing k, when nodes can differ. Otherwise a
+     * child's loose box always sits inside its parent's. Queries depend on
+     * that, as they don't descend into nodes whose boxes miss the region.
+     */
+    private void clampBox()
+    {
+        final Bounds pb = parentTree.box;
+        box.x1 = Math.max(box.x1, pb.x1); box.y1 = Math.max(box.y1, pb.y1);
+        box.x2 = Math.min(box.x2, pb.x2); box.y2 = Math.min(box.y2, pb.y2);
+    }
+    
+    /** Walks up from `node`, folding the children of each split node back into
+     * it while they are all leaves and, together with the node's own contents,
+     * hold no more than desiredMax objects. Called on the root after objects
+     * leave `node`.
+     */
+    private void collapseFrom(QuadTree<A> node)
+    {
+        QuadTree<A> p = node.split ? node : node.parentTree;
+        
+        while (p != null && p.canCollapse())
+        {
+            p.collapse(this);
+            p = p.parentTree;
+        }
+    }
+    
+    private boolean canCollapse()
+    {
+        if (!split || NE.split || NW.split || SE.split || SW.split)
+        {
+            return false;
+        }
+        
+        return contents.size() + NE.contents.size() + NW.contents.size()
+                + SE.contents.size() + SW.contents.size() <= desiredMax;
+    }
+    
+    private void collapse(QuadTree<A> root)
+    {
+        takeContents(NE);
+        takeContents(NW);
+        takeContents(SE);
+        takeContents(SW);
+        
+        recycle(root, NE);
+        recycle(root, NW);
+        recycle(root, SE);
+        recycle(root, SW);
+        NE = NW = SE = SW = null;
+        
+        split = false;
+    }
+    
+    private void takeContents(QuadTree<A> child)
+    {
+        final int count = child.contents.size();
+        for (int i=0; i<count; i++)
+        {
+            QuadNode qn = child.contents.get(i);
+            qn.parent = this;
+            contents.add(qn);
+        }
+        child.contents.clear();
+    }
+    
+    private static <A> void recycle(QuadTree<A> root, QuadTree<A> node)
+    {
+        node.parentTree = null;
+        
+        if (root.rootState.freeNodeCount < MAX_FREE_NODES)
+        {
+            node.nextFree  = root.rootState.freeNodes;
+            root.rootState.freeNodes = node;
+            root.rootState.freeNodeCount++;
+        }
+    }
+    
+    /** A growable tree has no fixed edge. Rather than piling up unindexed in
+     * the root, an object outside the root's box makes the root double, away
+     * from the side the object is on, until the object fits. The old root
+     * becomes one quarter of the new one. The root halves again once
+     * everything is back in one quarter, but never below the box it was
+     * made with. So queries stay logarithmic however far objects roam.
+     * Growth stops after {@link #MAX_GROWTHS} doublings.
+     * Only call this on the root.
+     */
+    public void setGrowable(boolean growable)
+    {
+        rootState.growable = growable;
+        if (!growable)
+        {
+            shrink(); /* what it can, but it may stay larger */
+        }
+    }
+    
+    public boolean isGrowable()
+    {
+        return rootState.growable;
+    }
+    
+    /** Doubles the root's box towards `b`, moving everything it held into a
+     * new child covering its old box. Each axis grows towards the edge `b`
+     * crosses, or, if it crosses neither, towards the side its centre is on.
+     * 
+     * @return Answers false if it can't grow any more.
+     */
+    private boolean growToward(Bounds b)
+    {
+        if (rootState.growths >= MAX_GROWTHS || rootState.retuning)
+        {
+            return false; /* mid retune, ks may differ, so boxes might not nest */
+        }
+        if (nominal.getWidth() <= 0.0f || nominal.getHeight() <= 0.0f)
+        {
+            return false; /* doubling nothing gets nowhere */
+        }
+        
+        final float x1 = nominal.x1, y1 = nominal.y1;
+        final float x2 = nominal.x2, y2 = nominal.y2;
+        final QuadTree<A> old = makeChild(this, x1, y1, x2, y2);
+        
+        /* Hand over all of the root to the new child. Recycled nodes come with
+         * an empty contents list, which the root keeps. */
+        ArrayList<QuadNode> swap = old.contents;
+        old.contents = contents;
+        contents     = swap;
+        for (int i=0; i<old.contents.size(); i++)
+        {
+            old.contents.get(i).parent = old;
+        }
+        
+        old.split = split;
+        old.NE = NE; old.NW = NW; old.SE = SE; old.SW = SW;
+        if (split)
+        {
+            NE.parentTree = NW.parentTree = SE.parentTree = SW.parentTree = old;
+            NE.shiftDepth(1); NW.shiftDepth(1); SE.shiftDepth(1); SW.shiftDepth(1);
+        }
+        old.count = count;
+        old.mass  = mass; old.massX = massX; old.massY = massY;
+        
+        final float w = x2 - x1, h = y2 - y1;
+        final boolean west  = b.x1 < x1
+                           || (b.x2 <= x2 && b.x1 + b.x2 < x1 + x2);
+        final boolean north = b.y1 < y1
+                           || (b.y2 <= y2 && b.y1 + b.y2 < y1 + y2);
+        if (west)  nominal.x1 -= w; else nominal.x2 += w;
+        if (north) nominal.y1 -= h; else nominal.y2 += h;
+        setBounds(box, nominal);
+        
+        final float mx = west  ? x1 : x2;
+        final float my = north ? y1 : y2;
+        NW = ( west &&  north) ? old : makeChild(this, nominal.x1, nominal.y1, mx, my);
+        NE = (!west &&  north) ? old : makeChild(this, mx, nominal.y1, nominal.x2, my);
+        SW = ( west && !north) ? old : makeChild(this, nominal.x1, my, mx, nominal.y2);
+        SE = (!west && !north) ? old : makeChild(this, mx, my, nominal.x2, nominal.y2);
+        split = true;
+        rootState.growths++;
+        
+        /* Objects that were outside the old root don't fit the child either.
+         * Added again, they go where they now fit, or grow the root further. */
+        if (rootState.evicted == null)
+        {
+            rootState.evicted = new ArrayList<QuadNode>();
+        }
+        final int start = rootState.evicted.size(); /* growths within growths share it */
+        for (int i=old.contents.size()-1; i>=0; i--)
+        {
+            QuadNode qn = old.contents.get(i);
+            if (!old.box.containsBounds(qn.b))
+            {
+                old.contents.remove(i);
+                old.tally(qn, -1);
+                rootState.evicted.add(qn);
+            }
+        }
+        
+        while (rootState.evicted.size() > start)
+        {
+            addImpl(this, rootState.evicted.remove(rootState.evicted.size() - 1));
+        }
+        return true;
+    }
+    
+    /** Halves the root, as many times as it can, while everything is in one
+     * quarter of it and that quarter covers the original box. */
+    private void shrink()
+    {
+        while (rootState.growths > 0 && contents.isEmpty())
+        {
+            if (count == 0)
+            {
+                dropChildren();
+                setBounds(nominal, rootState.original);
+                setBounds(box, rootState.original);
+                rootState.growths = 0;
+                return;
+            }
+            
+            if (!split)
+            {
+                return;
+            }
+            
+            QuadTree<A> only = null;
+            QuadTree<A>[] quarters = quarters();
+            for (int i=0; i<4; i++)
+            {
+                if (quarters[i].count > 0)
+                {
+                    if (only != null) return; /* more than one in use */
+                    only = quarters[i];
+                }
+            }
+            
+            if (!only.nominal.containsBounds(rootState.original))
+            {
+                return;
+            }
+            for (int i=0; i<only.contents.size(); i++)
+            {
+                if (!only.nominal.containsBounds(only.contents.get(i).b))
+                {
+                    return; /* would hang outside the smaller root */
+                }
+            }
+            
+            pullUp(only, quarters);
+        }
+    }
+    
+    /** Makes `only` the root, dropping the other quarters, which are empty. */
+    private void pullUp(QuadTree<A> only, QuadTree<A>[] quarters)
+    {
+        for (int i=0; i<4; i++)
+        {
+            if (quarters[i] != only)
+            {
+                quarters[i].dropChildren(this);
+                recycle(this, quarters[i]);
+            }
+        }
+        
+        ArrayList<QuadNode> swap = contents;
+        contents      = only.contents;
+        only.contents = swap;
+        for (int i=0; i<contents.size(); i++)
+        {
+            contents.get(i).parent = this;
+        }
+        
+        split = only.split;
+        NE = only.NE; NW = only.NW; SE = only.SE; SW = only.SW;
+        if (split)
+        {
+            NE.parentTree = NW.parentTree = SE.parentTree = SW.parentTree = this;
+            NE.shiftDepth(-1); NW.shiftDepth(-1); SE.shiftDepth(-1); SW.shiftDepth(-1);
+        }
+        
+        setBounds(nominal, only.nominal);
+        setBounds(box, only.nominal);
+        rootState.growths--;
+        
+        only.split = false;
+        only.NE = only.NW = only.SE = only.SW = null;
+        recycle(this, only);
+    }
+    
+    private QuadTree<A>[] quarters()
+    {
+        if (rootState.quarterScratch == null)
+        {
+            @SuppressWarnings("unchecked")
+            final QuadTree<A>[] q = (QuadTree<A>[]) new QuadTree<?>[4];
+            rootState.quarterScratch = q;
+        }
+        rootState.quarterScratch[0] = NW; rootState.quarterScratch[1] = NE;
+        rootState.quarterScratch[2] = SW; rootState.quarterScratch[3] = SE;
+        return rootState.quarterScratch;
+    }
+    
+    /** Recycles every node below this one, which must hold nothing. Called
+     * on the root, or with it. Empty nodes are normally collapsed away, but
+     * retuning and growing move objects out without collapsing. */
+    private void dropChildren()
+    {
+        dropChildren(this);
+    }
+    
+    private void dropChildren(QuadTree<A> root)
+    {
+        if (!split)
+        {
+            return;
+        }
+        
+        NE.dropChildren(root); recycle(root, NE);
+        NW.dropChildren(root); recycle(root, NW);
+        SE.dropChildren(root); recycle(root, SE);
+        SW.dropChildren(root); recycle(root, SW);
+        NE = NW = SE = SW = null;
+        split = false;
+    }
+    
+    private void shiftDepth(int by)
+    {
+        depth += by;
+        if (split)
+        {
+            NE.shiftDepth(by); NW.shiftDepth(by); SE.shiftDepth(by); SW.shiftDepth(by);
+        }
+    }
+    
+    /** Fills `out` with the shape of the tree, and how often moved objects
+     * have escaped the nodes they were in. Walks the whole tree. */
+    public void getStats(Stats out)
+    {
+        out.nodes = out.leaves = out.emptyLeaves = out.entries = out.maxDepth = 0;
+        for (int d=0; d<out.depthCounts.length; d++)
+        {
+            out.depthCounts[d] = 0;
+        }
+        out.freeNodes = rootState.freeNodeCount;
+        out.moves     = rootState.moves;
+        out.escapes   = rootState.escapes;
+        
+        collectStats(out);
+    }
+    
+    private void collectStats(Stats out)
+    {
+        final int n = contents.size();
+        out.nodes++;
+        out.entries += n;
+        out.depthCounts[depth] += n;
+        out.maxDepth = Math.max(out.maxDepth, depth);
+        
+        if (split)
+        {
+            NW.collectStats(out);
+            NE.collectStats(out);
+            SW.collectStats(out);
+            SE.collectStats(out);
+        }
+        else
+        {
+            out.leaves++;
+            if (n == 0) out.emptyLeaves++;
+        }
+    }
+    
+    /** In adaptive mode, {@link #tune(long)} changes desiredMax and k to suit
+     * the objects in the tree and how they move. Only call this on the root.
+     */
+    public void setAdaptive(boolean adaptive)
+    {
+        rootState.adaptive = adaptive;
+    }
+    
+    public boolean isAdaptive()
+    {
+        return rootState.adaptive;
+    }
+    
+    public float getK()
+    {
+        return k;
+    }
+    
+    public int getDesiredMax()
+    {
+        return desiredMax;
+    }
+    
+    /** @return Answers the k that tune is bringing the nodes in line with.
+     * The same as getK once it has finished. */
+    public float getTargetK()
+    {
+        return rootState.targetK;
+    }
+    
+    /** @return Answers the desiredMax that tune is bringing the nodes in line
+     * with. The same as getDesiredMax once it has finished. */
+    public int getTargetDesiredMax()
+    {
+        return rootState.targetMax;
+    }
+    
+    /** Does a slice of adaptive tuning, stopping once budgetNanos have been
+     * spent, so can be called every frame. Once enough objects have been added
+     * and moved, it looks at the statistics and picks new targets for k and
+     * desiredMax:
+     * <ul>
+     * <li>Many moves escaping their nodes loosen the boxes, and very few tighten
+     * them.</li>
+     * <li>Mostly empty leaves, or crowds at the deepest level, raise
+     * desiredMax. Full leaves lower it.</li>
+     * </ul>
+     * Nodes are then brought in line a few at a time, over as many calls as
+     * the budget needs. Each call brings at least one node in line, however
+     * small the budget. The tree answers queries correctly throughout. Only
+     * call this on the root.
+     * 
+     * @return Answers whether the tree matches its targets.
+     */
+    public boolean tune(long budgetNanos)
+    {
+        if (!rootState.adaptive)
+        {
+            return true;
+        }
+        
+        final long deadline = System.nanoTime() + budgetNanos;
+        
+        if (!rootState.retuning && rootState.windowOps >= TUNE_WINDOW)
+        {
+            chooseTargets();
+        }
+        
+        if (rootState.retuning && retuneWalk(this, deadline))
+        {
+            rootState.retuning = false;
+        }
+        return !rootState.retuning;
+    }
+    
+    private void chooseTargets()
+    {
+        if (rootState.tuneStats == null)
+        {
+            rootState.tuneStats = new Stats();
+        }
+        getStats(rootState.tuneStats);
+        
+        float newK   = k;
+        int   newMax = desiredMax;
+        
+        if (rootState.windowMoves > 0)
+        {
+            final float escapeRate = rootState.windowEscapes / (float) rootState.windowMoves;
+            if (escapeRate > ESCAPE_RATE_HIGH)
+            {
+                newK = Math.min(MAX_K, k + K_STEP);
+            }
+            else if (escapeRate < ESCAPE_RATE_HIGH / 10)
+            {
+                newK = Math.max(MIN_K, k - K_STEP);
+            }
+        }
+        
+        final Stats st = rootState.tuneStats;
+        final int fullLeaves = st.leaves - st.emptyLeaves;
+        if (st.emptyLeaves * 2 > st.leaves
+                || st.depthCounts[MAX_DEPTH + rootState.growths] > 2 * desiredMax)
+        {
+            newMax = Math.min(MAX_DESIRED_MAX, desiredMax * 2);
+        }
+        else if (st.emptyLeaves * 4 < st.leaves && fullLeaves > 0
+                 && st.entries - contents.size() > fullLeaves * desiredMax)
+        {
+            newMax = Math.max(1, desiredMax / 2);
+        }
+        
+        rootState.windowOps = rootState.windowMoves = rootState.windowEscapes = 0;
+        
+        if (newK != k || newMax != desiredMax)
+        {
+            rootState.targetK         = newK;
+            rootState.targetMax       = newMax;
+            rootState.retuneShrinking = newK < k;
+            rootState.retuning        = true;
+        }
+    }
+    
+    /** Brings nodes in line with the root's targets. Growing boxes are done
+     * parents first and shrinking ones children first, so that a node's box
+     * stays inside its parent's at every step. Nodes already in line cost
+     * next to nothing, so the deadline is only looked at after a node is
+     * changed, and a walk resumed after running out of time gets further.
+     * 
+     * @return Answers false if the deadline passed before the walk finished.
+     */
+    private boolean retuneWalk(QuadTree<A> root, long deadline)
+    {
+        boolean changed = false;
+        if (!root.rootState.retuneShrinking)
+        {
+            changed = retuneNode(root);
+        }
+        
+        if (split)
+        {
+            if (!NW.retuneWalk(root, deadline)) return false;
+            if (!NE.retuneWalk(root, deadline)) return false;
+            if (!SW.retuneWalk(root, deadline)) return false;
+            if (!SE.retuneWalk(root, deadline)) return false;
+        }
+        
+        if (root.rootState.retuneShrinking)
+        {
+            changed = retuneNode(root);
+        }
+        return !changed || System.nanoTime() < deadline;
+    }
+    
+    /** @return Answers whether the node had to be changed. */
+    private boolean retuneNode(QuadTree<A> root)
+    {
+        if (k == root.rootState.targetK && desiredMax == root.rootState.targetMax)
+        {
+            return false;
+        }
+        
+        desiredMax = root.rootState.targetMax;
+        if (k == root.rootState.targetK || this == root)
+        {
+            k = root.rootState.targetK; /* the root's box is never enlarged */
+            return true;
+        }
+        
+        k = root.rootState.targetK;
+        setBounds(box, nominal);
+        box.enlarge(k);
+        if (parentTree != root)
+        {
+            clampBox();
+        }
+        
+        /* A smaller box may no longer hold everything in it. Those are added
+         * again from the root, which doesn't collapse anything mid walk. */
+        if (root.rootState.evicted == null)
+        {
+            root.rootState.evicted = new ArrayList<QuadNode>();
+        }
+        for (int i=contents.size()-1; i>=0; i--)
+        {
+            QuadNode qn = contents.get(i);
+            if (!box.containsBounds(qn.b))
+            {
+                contents.remove(i);
+                tally(qn, -1);
+                root.rootState.evicted.add(qn);
+            }
+        }
+        
+        final int n = root.rootState.evicted.size();
+        for (int i=0; i<n; i++)
+        {
+            root.addImpl(root, root.rootState.evicted.get(i));
+        }
+        root.rootState.evicted.clear();
+        return true;
     }
     
     @Override
@@ -261,10 +1910,14 @@ public class QuadTree<A>
                                                      gen.choose(1, 30),
                                                      gen.within(1, 3));
         int contentAddAttempts = gen.choose(0, 1024);
+        Bounds[]  bs           = new Bounds[contentAddAttempts];
+        Integer[] objs         = new Integer[contentAddAttempts];
         for (int attempt=0; attempt < contentAddAttempts; attempt++)
         {
-            qt.add(Bounds.arbitrary(gen), gen.arbInt());
+            bs[attempt]   = Bounds.arbitrary(gen);
+            objs[attempt] = gen.arbInt();
         }
+        qt.addAll(bs, objs, contentAddAttempts, new int[contentAddAttempts]);
         return qt;
     }
     
@@ -0,0 +1,136 @@
+package tbc.data.spatial;
+
+/** A slice of a circle - the area a weapon can reach from where it is
+ * mounted. Angles are in rads from north, as mobiles measure them, and the
+ * arc is centred on the heading.
+ * <p>
+ * The directions of the edges are worked out when the sector is set, so that
+ * testing bounds against it needs no trigonometry. A sector may be set again
+ * and again rather than making a new one for each query.
+ */
+public class Sector
+{
+    private float x, y;
+    private float range, rangeSq;
+    
+    /** The arc covers a whole circle, so only range matters. */
+    private boolean full;
+    
+    /* Unit directions of the first edge, the heading, and the last edge,
+     * going clockwise. The arc is tested as the two halves either side of the
+     * heading, so that each half is no wider than half a circle. */
+    private float firstX, firstY;
+    private float midX, midY;
+    private float lastX, lastY;
+    
+    public Sector(float x, float y, float heading, float arc, float range)
+    {
+        set(x, y, heading, arc, range);
+    }
+    
+    /** @param heading The direction the middle of the arc points, in rads
+     * from north.
+     * @param arc How wide the arc is, in rads. Anything a whole turn or more
+     * is a full circle.
+     * @param range The radius of the sector.
+     */
+    public void set(float x, float y, float heading, float arc, float range)
+    {
+        this.x       = x;
+        this.y       = y;
+        this.range   = range;
+        this.rangeSq = range * range;
+        this.full    = arc >= 2.0f * (float) Math.PI;
+        
+        final float half = Math.max(0.0f, arc) / 2.0f;
+        firstX = (float) Math.sin(heading - half);
+        firstY = (float) Math.cos(heading - half);
+        midX   = (float) Math.sin(heading);
+        midY   = (float) Math.cos(heading);
+        lastX  = (float) Math.sin(heading + half);
+        lastY  = (float) Math.cos(heading + half);
+    }
+    
+    public float getX()
+    {
+        return x;
+    }
+    
+    public float getY()
+    {
+        return y;
+    }
+    
+    public float getRange()
+    {
+        return range;
+    }
+    
+    public boolean containsPoint(float px, float py)
+    {
+        final float dx = px - x, dy = py - y;
+        return dx * dx + dy * dy <= rangeSq && withinArc(dx, dy);
+    }
+    
+    /** @return Answers whether the direction (dx, dy) from the origin is
+     * within the arc. The origin itself is. */
+    private boolean withinArc(float dx, float dy)
+    {
+        if (full)
+        {
+            return true;
+        }
+        
+        /* Going clockwise, a negative cross product. */
+        return (cross(firstX, firstY, dx, dy) <= 0.0f && cross(dx, dy, midX, midY) <= 0.0f)
+            || (cross(midX, midY, dx, dy) <= 0.0f && cross(dx, dy, lastX, lastY) <= 0.0f);
+    }
+    
+    private static float cross(float ax, float ay, float bx, float by)
+    {
+        return ax * by - ay * bx;
+    }
+    
+    /** Exact, give or take rounding. Bounds in range overlap the sector if
+     * the nearest point of them to the origin is within the arc, or one of
+     * their corners is inside the sector, or one of the edges of the sector
+     * passes through them.
+     *
+     * @return Answers whether any part of b is inside the sector.
+     */
+    public boolean intersects(Bounds b)
+    {
+        if (b.distanceSq(x, y) > rangeSq)
+        {
+            return false;
+        }
+        if (full || b.containsPoint(x, y))
+        {
+            return true;
+        }
+        
+        /* Nearest point of the bounds, which is in range. */
+        final float nx = x < b.x1 ? b.x1 : (x > b.x2 ? b.x2 : x);
+        final float ny = y < b.y1 ? b.y1 : (y > b.y2 ? b.y2 : y);
+        if (withinArc(nx - x, ny - y))
+        {
+            return true;
+        }
+        
+        if (containsPoint(b.x1, b.y1) || containsPoint(b.x2, b.y1)
+                || containsPoint(b.x1, b.y2) || containsPoint(b.x2, b.y2))
+        {
+            return true;
+        }
+        
+        return b.segmentEntry(x, y, firstX * range, firstY * range) >= 0.0f
+            || b.segmentEntry(x, y, midX * range, midY * range) >= 0.0f
+            || b.segmentEntry(x, y, lastX * range, lastY * range) >= 0.0f;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "Sector(frm:"+x+","+y+" range:"+range+")";
+    }
+}
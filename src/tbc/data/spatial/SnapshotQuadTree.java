@@ -0,0 +1,558 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A loose quad tree which one thread writes to while any number of others
+ * read from it, without locks. The writer adds, moves and removes as with
+ * {@link QuadTree}, then calls {@link #publish()}. Readers take the last
+ * published {@link Snapshot} and query it as long as they like. A snapshot
+ * never changes, so a render thread can cull against one while the update
+ * thread moves things for the next.
+ * <p>
+ * Nodes and entries are stamped with the epoch they were made in. Those made
+ * since the last publish are only reachable by the writer, and are changed
+ * in place. Anything older may be in a reader's snapshot, so is copied before
+ * it is changed, along with the path of nodes down to it. So however many
+ * times an object moves between publishes, its path is copied at most once.
+ * Once published, old nodes are left to the garbage collector when no
+ * snapshot refers to them.
+ * <p>
+ * The writer's own query methods see the tree as it is now, and like add,
+ * move and remove, may only be called from the writer's thread.
+ */
+public class SnapshotQuadTree<A> implements SpatialIndex<A>
+{
+    /** Nodes at this depth never split. */
+    private static final int MAX_DEPTH = 16;
+    
+    private static class Node
+    {
+        private int      epoch;
+        private Bounds   nominal; /* shared between copies, never changed */
+        private Bounds   box;
+        private int      depth;
+        private Object[] contents; /* of Entry */
+        private int      count;
+        /** Entries in this node and below it. */
+        private int      total;
+        /** NW, NE, SW, SE, or null if not split. */
+        private Node[]   children;
+    }
+    
+    private static class Entry
+    {
+        private int    epoch;
+        private int    handle;
+        private Object obj;
+        private Bounds b;
+    }
+    
+    /** An unchanging view of the tree, as it was when published. Safe to
+     * query from any thread. */
+    public static class Snapshot<A>
+    {
+        private final long epoch;
+        private final Node root;
+        
+        private Snapshot(long epoch, Node root)
+        {
+            this.epoch = epoch;
+            this.root  = root;
+        }
+        
+        /** @return Answers which publish made this snapshot, counting from
+         * zero. */
+        public long getEpoch()
+        {
+            return epoch;
+        }
+        
+        /** @return Answers how many objects the tree held. */
+        public int getCount()
+        {
+            return root.total;
+        }
+        
+        /** Visits every object whose bounds intersect `region`. The bounds
+         * given to the visitor are part of the snapshot, and must not be
+         * modified. */
+        public void query(Bounds region, SpatialVisitor<A> v)
+        {
+            queryNode(root, region.x1, region.y1, region.x2, region.y2, v);
+        }
+        
+        public void queryPoint(float x, float y, SpatialVisitor<A> v)
+        {
+            queryNode(root, x, y, x, y, v);
+        }
+    }
+    
+    private final int   desiredMax;
+    private final float k;
+    
+    /** Stamped on nodes and entries made by the writer since the last
+     * publish. */
+    private int  epoch;
+    private long publishCount;
+    
+    /** The tree as the writer sees it. */
+    private Node    root;
+    private boolean dirty;
+    
+    private volatile Snapshot<A> published;
+    
+    /** The current entry of each handle, or null once removed. */
+    private Object[] entries = new Object[16];
+    private int      entryCount;
+    private int[]    freeHandles = new int[16];
+    private int      freeHandleCount;
+    
+    public SnapshotQuadTree(float x1, float y1, float x2, float y2, int desiredMax, float k)
+    {
+        this(new Bounds(x1, y1, x2, y2), desiredMax, k);
+    }
+    
+    public SnapshotQuadTree(Bounds box, int desiredMax, float k)
+    {
+        this.desiredMax = desiredMax;
+        this.k          = k;
+        
+        /* The root's box is not enlarged, as with QuadTree. */
+        this.root = makeNode(box.copy(), box.copy(), 0);
+        publish();
+    }
+    
+    private Node makeNode(Bounds nominal, Bounds box, int depth)
+    {
+        Node n = new Node();
+        n.epoch    = epoch;
+        n.nominal  = nominal;
+        n.box      = box;
+        n.depth    = depth;
+        n.contents = new Object[Math.max(desiredMax, 1)];
+        return n;
+    }
+    
+    /** @return Answers n itself if the writer may change it, otherwise a
+     * copy of it which the writer may change. */
+    private Node editable(Node n)
+    {
+        if (n.epoch == epoch)
+        {
+            return n;
+        }
+        
+        Node copy = new Node();
+        copy.epoch    = epoch;
+        copy.nominal  = n.nominal;
+        copy.box      = n.box;
+        copy.depth    = n.depth;
+        copy.contents = new Object[Math.max(n.contents.length, 1)];
+        System.arraycopy(n.contents, 0, copy.contents, 0, n.count);
+        copy.count    = n.count;
+        copy.total    = n.total;
+        if (n.children != null)
+        {
+            copy.children = new Node[4];
+            System.arraycopy(n.children, 0, copy.children, 0, 4);
+        }
+        return copy;
+    }
+    
+    /** Makes what has been written so far visible to readers.
+     *
+     * @return Answers the snapshot readers will now get.
+     */
+    public Snapshot<A> publish()
+    {
+        if (published == null || dirty)
+        {
+            published = new Snapshot<A>(publishCount++, root);
+            epoch++; /* everything so far is now shared */
+            dirty = false;
+        }
+        return published;
+    }
+    
+    /** @return Answers the last snapshot published. Safe to call from any
+     * thread. */
+    public Snapshot<A> getSnapshot()
+    {
+        return published;
+    }
+    
+    @Override
+    public int add(Bounds b, A obj)
+    {
+        final int handle;
+        if (freeHandleCount > 0)
+        {
+            handle = freeHandles[--freeHandleCount];
+        }
+        else
+        {
+            handle  = entryCount++;
+            entries = Grow.objects(entries, entryCount);
+        }
+        
+        Entry e = makeEntry(handle, obj, b);
+        entries[handle] = e;
+        
+        root  = insert(root, e);
+        dirty = true;
+        return handle;
+    }
+    
+    @Override
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles)
+    {
+        for (int i=0; i<count; i++)
+        {
+            handles[i] = add(bs[i], objs[i]);
+        }
+    }
+    
+    private Entry makeEntry(int handle, Object obj, Bounds b)
+    {
+        Entry e = new Entry();
+        e.epoch  = epoch;
+        e.handle = handle;
+        e.obj    = obj;
+        e.b      = b.copy();
+        return e;
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public A get(int handle)
+    {
+        return (A) ((Entry) entries[handle]).obj;
+    }
+    
+    @Override
+    public void remove(int handle)
+    {
+        Entry e = (Entry) entries[handle];
+        entries[handle] = null;
+        
+        root  = edit(root, e, null);
+        dirty = true;
+        
+        freeHandles = Grow.ints(freeHandles, freeHandleCount + 1);
+        freeHandles[freeHandleCount++] = handle;
+    }
+    
+    @Override
+    public void move(int handle, Bounds b)
+    {
+        Entry e = (Entry) entries[handle];
+        Node holder = findHolder(root, e);
+        dirty = true;
+        
+        if (holder == root || holder.box.containsBounds(b))
+        {
+            if (e.epoch == epoch)
+            {
+                /* Not published yet, and nor is the path to it. */
+                e.b.x1 = b.x1; e.b.y1 = b.y1;
+                e.b.x2 = b.x2; e.b.y2 = b.y2;
+            }
+            else
+            {
+                Entry moved = makeEntry(handle, e.obj, b);
+                entries[handle] = moved;
+                root = edit(root, e, moved);
+            }
+        }
+        else
+        {
+            /* No longer fits where it was. */
+            Entry moved = e.epoch == epoch ? e : makeEntry(handle, e.obj, b);
+            root = edit(root, e, null);
+            moved.b.x1 = b.x1; moved.b.y1 = b.y1;
+            moved.b.x2 = b.x2; moved.b.y2 = b.y2;
+            entries[handle] = moved;
+            root = insert(root, moved);
+        }
+    }
+    
+    /** @return Answers the new version of `node`, with e added below it. */
+    private Node insert(Node node, Entry e)
+    {
+        Node n = editable(node);
+        n.total++;
+        
+        if (n.children == null && n.count >= desiredMax && n.depth < MAX_DEPTH)
+        {
+            split(n);
+        }
+        
+        if (n.children != null)
+        {
+            final int i = childIndex(n, e.b);
+            if (i >= 0)
+            {
+                n.children[i] = insert(n.children[i], e);
+                return n;
+            }
+        }
+        
+        addHere(n, e); /* Can end up with more than desiredMax. */
+        return n;
+    }
+    
+    private void addHere(Node n, Entry e)
+    {
+        n.contents = Grow.objects(n.contents, n.count + 1);
+        n.contents[n.count++] = e;
+    }
+    
+    /** @return Answers which child of n takes `b`, or -1 if none fits it. */
+    private static int childIndex(Node n, Bounds b)
+    {
+        final boolean west  = (b.x1 + b.x2) / 2 < (n.nominal.x1 + n.nominal.x2) / 2;
+        final boolean north = (b.y1 + b.y2) / 2 < (n.nominal.y1 + n.nominal.y2) / 2;
+        final int i = north ? (west ? 0 : 1) : (west ? 2 : 3);
+        return n.children[i].box.containsBounds(b) ? i : -1;
+    }
+    
+    /** Splits an editable node, moving down what fits its new children. */
+    private void split(Node n)
+    {
+        final Bounds nb = n.nominal;
+        final float mx = (nb.x1 + nb.x2) / 2;
+        final float my = (nb.y1 + nb.y2) / 2;
+        
+        n.children = new Node[4];
+        n.children[0] = makeChild(n, nb.x1, nb.y1, mx, my);
+        n.children[1] = makeChild(n, mx, nb.y1, nb.x2, my);
+        n.children[2] = makeChild(n, nb.x1, my, mx, nb.y2);
+        n.children[3] = makeChild(n, mx, my, nb.x2, nb.y2);
+        
+        int kept = 0;
+        for (int j=0; j<n.count; j++)
+        {
+            Entry e = (Entry) n.contents[j];
+            final int i = childIndex(n, e.b);
+            if (i >= 0)
+            {
+                n.children[i] = insert(n.children[i], e);
+            }
+            else
+            {
+                n.contents[kept++] = e;
+            }
+        }
+        for (int j=kept; j<n.count; j++)
+        {
+            n.contents[j] = null;
+        }
+        n.count = kept;
+    }
+    
+    private Node makeChild(Node parent, float x1, float y1, float x2, float y2)
+    {
+        Bounds box = new Bounds(x1, y1, x2, y2);
+        box.enlarge(k);
+        return makeNode(new Bounds(x1, y1, x2, y2), box, parent.depth + 1);
+    }
+    
+    /** Finds e, which is only ever in nodes whose boxes hold it, except at the
+     * root, and replaces it with `with`, or takes it out if that is null.
+     * Nodes left holding few enough objects are collapsed on the way back up.
+     *
+     * @return Answers the new version of `node`, or null if e isn't below it.
+     */
+    private Node edit(Node node, Entry e, Entry with)
+    {
+        for (int j=0; j<node.count; j++)
+        {
+            if (node.contents[j] == e)
+            {
+                Node n = editable(node);
+                if (with != null)
+                {
+                    n.contents[j] = with;
+                }
+                else
+                {
+                    n.contents[j] = n.contents[--n.count];
+                    n.contents[n.count] = null;
+                    n.total--;
+                    collapseIfSmall(n);
+                }
+                return n;
+            }
+        }
+        
+        if (node.children != null)
+        {
+            for (int i=0; i<4; i++)
+            {
+                Node child = node.children[i];
+                if (child.box.containsBounds(e.b))
+                {
+                    Node edited = edit(child, e, with);
+                    if (edited != null)
+                    {
+                        Node n = editable(node);
+                        n.children[i] = edited;
+                        if (with == null)
+                        {
+                            n.total--;
+                            collapseIfSmall(n);
+                        }
+                        return n;
+                    }
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    private Node findHolder(Node node, Entry e)
+    {
+        for (int j=0; j<node.count; j++)
+        {
+            if (node.contents[j] == e)
+            {
+                return node;
+            }
+        }
+        
+        if (node.children != null)
+        {
+            for (int i=0; i<4; i++)
+            {
+                Node child = node.children[i];
+                if (child.box.containsBounds(e.b))
+                {
+                    Node found = findHolder(child, e);
+                    if (found != null)
+                    {
+                        return found;
+                    }
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /** Folds the children of an editable node back into it, if they are all
+     * leaves and hold no more than desiredMax between them and it. */
+    private void collapseIfSmall(Node n)
+    {
+        if (n.children == null || n.total > desiredMax)
+        {
+            return;
+        }
+        for (int i=0; i<4; i++)
+        {
+            if (n.children[i].children != null)
+            {
+                return;
+            }
+        }
+        
+        n.contents = Grow.objects(n.contents, n.total);
+        for (int i=0; i<4; i++)
+        {
+            Node child = n.children[i];
+            System.arraycopy(child.contents, 0, n.contents, n.count, child.count);
+            n.count += child.count;
+        }
+        n.children = null;
+    }
+    
+    /** Sees the writer's current tree. Only call it from the writer's thread.
+     */
+    @Override
+    public void query(Bounds region, SpatialVisitor<A> v)
+    {
+        queryNode(root, region.x1, region.y1, region.x2, region.y2, v);
+    }
+    
+    @Override
+    public void queryPoint(float x, float y, SpatialVisitor<A> v)
+    {
+        queryNode(root, x, y, x, y, v);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <A> void queryNode(Node node, float x1, float y1, float x2, float y2,
+                                      SpatialVisitor<A> v)
+    {
+        /* The node's own box isn't tested - the root can hold objects that
+         * lie outside of it. */
+        for (int j=0; j<node.count; j++)
+        {
+            Entry e = (Entry) node.contents[j];
+            if (e.b.intersects(x1, y1, x2, y2))
+            {
+                v.visit((A) e.obj, e.b);
+            }
+        }
+        
+        if (node.children != null)
+        {
+            for (int i=0; i<4; i++)
+            {
+                Node child = node.children[i];
+                if (child.box.intersects(x1, y1, x2, y2))
+                {
+                    queryNode(child, x1, y1, x2, y2, v);
+                }
+            }
+        }
+    }
+    
+    /** Each object is looked up like a query, and paired with the objects it
+     * finds that have greater handles. Only call it from the writer's
+     * thread. */
+    @Override
+    public void queryPairs(SpatialPairVisitor<A> v)
+    {
+        for (int h=0; h<entryCount; h++)
+        {
+            Entry e = (Entry) entries[h];
+            if (e != null)
+            {
+                pairNode(root, e, v);
+            }
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void pairNode(Node node, Entry a, SpatialPairVisitor<A> v)
+    {
+        for (int j=0; j<node.count; j++)
+        {
+            Entry b = (Entry) node.contents[j];
+            if (b.handle > a.handle && b.b.intersects(a.b))
+            {
+                v.visit((A) a.obj, (A) b.obj);
+            }
+        }
+        
+        if (node.children != null)
+        {
+            for (int i=0; i<4; i++)
+            {
+                Node child = node.children[i];
+                if (child.box.intersects(a.b))
+                {
+                    pairNode(child, a, v);
+                }
+            }
+        }
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SnapQuadT(k="+k+",splitAt="+desiredMax+",epoch="+epoch+")";
+    }
+}
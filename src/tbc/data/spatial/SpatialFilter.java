@@ -0,0 +1,14 @@
+package tbc.data.spatial;
+
+/** Chooses which objects a spatial search may answer, such as only those
+ * hostile to the searcher. Like a {@link SpatialVisitor}, a filter is
+ * expected to be created once and reused, and must not change the structure
+ * being searched.
+ */
+public interface SpatialFilter<A>
+{
+    /** @param b The bounds the object was last added or moved with. Do not
+     * modify it, or keep it beyond the call.
+     */
+    public boolean accept(A obj, Bounds b);
+}
@@ -0,0 +1,41 @@
+package tbc.data.spatial;
+
+/**
+ * A structure that tracks objects by their 2d bounds, so that the objects in a
+ * region can be found without looking at every object.
+ * <p>
+ * Adding an object answers an int handle, which is what move and remove take.
+ * Handles are only meaningful to the index that gave them out, and may be
+ * given out again once the object they refer to has been removed.
+ */
+public interface SpatialIndex<A>
+{
+    /** @return Answers the handle to pass to move and remove for this object. */
+    public int add(Bounds b, A obj);
+    
+    /** Adds many objects at once, which some implementations can do much more
+     * cheaply than one at a time.
+     * 
+     * @param handles Filled with the handle of each object added, in the
+     * order given.
+     */
+    public void addAll(Bounds[] bs, A[] objs, int count, int[] handles);
+    
+    /** @return Answers the object added with the handle. */
+    public A get(int handle);
+    
+    public void move(int handle, Bounds b);
+    
+    public void remove(int handle);
+    
+    /** Visits every object whose bounds intersect `region`, without
+     * allocating. */
+    public void query(Bounds region, SpatialVisitor<A> v);
+    
+    /** Visits every object whose bounds contain the point (x, y). */
+    public void queryPoint(float x, float y, SpatialVisitor<A> v);
+    
+    /** Visits every pair of objects whose bounds intersect, each pair once,
+     * in no particular order and without allocating. */
+    public void queryPairs(SpatialPairVisitor<A> v);
+}
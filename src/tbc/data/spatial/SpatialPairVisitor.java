@@ -0,0 +1,11 @@
+package tbc.data.spatial;
+
+/** Receives the pairs of objects found by {@link SpatialIndex#queryPairs}.
+ * Like a {@link SpatialVisitor}, it is expected to be created once and
+ * reused, and must not add, move or remove objects in the structure it is
+ * visiting.
+ */
+public interface SpatialPairVisitor<A>
+{
+    public void visit(A a, A b);
+}
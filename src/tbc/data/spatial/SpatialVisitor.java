@@ -0,0 +1,15 @@
+package tbc.data.spatial;
+
+/** Receives the objects found by a spatial query. Implementations are expected
+ * to be created once and reused, so that queries run every frame do not
+ * allocate. A visitor must not add, move or remove objects in the structure
+ * it is visiting.
+ */
+public interface SpatialVisitor<A>
+{
+    /** @param b The bounds the object was last added or moved with. Do not
+     * modify it, or keep it beyond the call - some structures reuse one
+     * instance for every object they visit.
+     */
+    public void visit(A obj, Bounds b);
+}
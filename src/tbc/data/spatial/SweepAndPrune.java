@@ -0,0 +1,451 @@
+package tbc.data.spatial;
+
+import tbc.util.Grow;
+
+/**
+ * A sort and sweep broad phase. The ends of every object's bounds are kept in
+ * one sorted array per axis, and moving an object shifts its ends along by
+ * insertion sort. Objects move little between frames, so each end typically
+ * passes few others, and keeping the arrays sorted costs close to linear time.
+ * <p>
+ * Whenever an end passes another object's end, the two objects may have begun
+ * or stopped overlapping, so the set of overlapping pairs is kept as objects
+ * move, rather than being found afresh. Changes to it are reported to a
+ * {@link PairListener} as they happen.
+ * <p>
+ * Bounds that only touch count as overlapping, as with {@link Bounds#intersects}.
+ */
+public class SweepAndPrune<A>
+{
+    /** Told as pairs of objects begin and stop overlapping. Called from inside
+     * add, move and remove, so must not change the SweepAndPrune itself. */
+    public static interface PairListener<A>
+    {
+        public void pairAdded(A a, A b);
+        
+        public void pairRemoved(A a, A b);
+    }
+    
+    private static final int AXES = 2;
+    
+    /* Each end of each object is an id, handle << 1 for its low end and
+     * handle << 1 | 1 for its high end. */
+    private static final int HIGH = 1;
+    
+    private static final long EMPTY   = -1L;
+    private static final long REMOVED = -2L;
+    
+    private PairListener<A> listener;
+    
+    /* Per axis, the sorted ends and their values. */
+    private int[][]   endId  = new int[AXES][0];
+    private float[][] endVal = new float[AXES][0];
+    private int       endCount;
+    
+    /* Entries, indexed by handle. Per axis, the bounds and where their ends are
+     * in endId. */
+    private float[][] entLo    = new float[AXES][0], entHi    = new float[AXES][0];
+    private int[][]   entLoPos = new int[AXES][0],   entHiPos = new int[AXES][0];
+    private Object[]  entObj   = new Object[0];
+    private boolean[] entLive  = new boolean[0];
+    private int       entEnd;
+    
+    private int[] freeHandles = new int[8];
+    private int   freeHandleCount;
+    
+    /* Overlapping pairs, as an open addressed set of the two handles packed
+     * into a long, lower handle first. */
+    private long[] pairs = new long[0];
+    private int    pairCount;
+    private int    pairSlotsUsed; /* including removed */
+    
+    public SweepAndPrune(PairListener<A> listener)
+    {
+        this.listener = listener;
+        this.pairs    = newPairTable(64);
+    }
+    
+    public void setPairListener(PairListener<A> listener)
+    {
+        this.listener = listener;
+    }
+    
+    /** @return Answers the handle to pass to move and remove for this object.
+     * Pairs are reported for any objects it already overlaps. */
+    public int add(Bounds b, A obj)
+    {
+        int h;
+        if (freeHandleCount > 0)
+        {
+            h = freeHandles[--freeHandleCount];
+        }
+        else
+        {
+            h = entEnd++;
+            ensureEntryCapacity(entEnd);
+        }
+        
+        entObj[h]  = obj;
+        entLive[h] = true;
+        setEntryBounds(h, b);
+        
+        /* Put its ends past the end of each axis, and sort them into place,
+         * which reports what it overlaps along the way. */
+        ensureEndCapacity(endCount + 2);
+        for (int axis=0; axis<AXES; axis++)
+        {
+            setEnd(axis, endCount,     h << 1,          entLo[axis][h]);
+            setEnd(axis, endCount + 1, (h << 1) | HIGH, entHi[axis][h]);
+        }
+        endCount += 2;
+        
+        for (int axis=0; axis<AXES; axis++)
+        {
+            sortDown(axis, entLoPos[axis][h]);
+            sortDown(axis, entHiPos[axis][h]);
+        }
+        return h;
+    }
+    
+    /** @return Answers the object added with the handle. */
+    @SuppressWarnings("unchecked")
+    public A get(int handle)
+    {
+        return (A) entObj[handle];
+    }
+    
+    public void move(int handle, Bounds b)
+    {
+        final float x1 = entLo[0][handle], y1 = entLo[1][handle];
+        final float x2 = entHi[0][handle], y2 = entHi[1][handle];
+        setEntryBounds(handle, b);
+        
+        moveAxis(0, handle, x1, x2);
+        moveAxis(1, handle, y1, y2);
+    }
+    
+    /** Removes the object, reporting the end of every pair it was in. */
+    public void remove(int handle)
+    {
+        if (!entLive[handle])
+        {
+            return;
+        }
+        
+        /* Sort its ends past everything else, ending its pairs as it goes,
+         * then drop them. It is no longer live, so it gains no pairs. */
+        entLive[handle] = false;
+        for (int axis=0; axis<AXES; axis++)
+        {
+            entLo[axis][handle] = Float.POSITIVE_INFINITY;
+            entHi[axis][handle] = Float.POSITIVE_INFINITY;
+            endVal[axis][entLoPos[axis][handle]] = Float.POSITIVE_INFINITY;
+            endVal[axis][entHiPos[axis][handle]] = Float.POSITIVE_INFINITY;
+            sortUp(axis, entHiPos[axis][handle]);
+            sortUp(axis, entLoPos[axis][handle]);
+            
+            removeEnd(axis, entHiPos[axis][handle], endCount);
+            removeEnd(axis, entLoPos[axis][handle], endCount - 1);
+        }
+        endCount -= 2;
+        
+        entObj[handle] = null;
+        freeHandles = Grow.ints(freeHandles, freeHandleCount + 1);
+        freeHandles[freeHandleCount++] = handle;
+    }
+    
+    /** @return Answers whether the two objects are currently overlapping. */
+    public boolean isPaired(int handleA, int handleB)
+    {
+        return findPair(pairKey(handleA, handleB)) >= 0;
+    }
+    
+    public int getPairCount()
+    {
+        return pairCount;
+    }
+    
+    /** Sorts the axis' ends of an object into place after its bounds have
+     * changed from lo to hi. Its ends are grown outward before being shrunk
+     * inward, so that its own ends never pass each other. */
+    private void moveAxis(int axis, int h, float lo, float hi)
+    {
+        final float newLo = entLo[axis][h];
+        final float newHi = entHi[axis][h];
+        
+        endVal[axis][entLoPos[axis][h]] = newLo;
+        endVal[axis][entHiPos[axis][h]] = newHi;
+        
+        if (newLo < lo) sortDown(axis, entLoPos[axis][h]);
+        if (newHi > hi) sortUp(axis, entHiPos[axis][h]);
+        if (newLo > lo) sortUp(axis, entLoPos[axis][h]);
+        if (newHi < hi) sortDown(axis, entHiPos[axis][h]);
+    }
+    
+    /** Moves the end at `pos` towards the start of the axis until it is in
+     * order. Ends with the same value are ordered low ends first, so that
+     * touching bounds overlap. */
+    private void sortDown(int axis, int pos)
+    {
+        final int[]   ids  = endId[axis];
+        final float[] vals = endVal[axis];
+        final int   id  = ids[pos];
+        final float val = vals[pos];
+        
+        while (pos > 0)
+        {
+            final int   prevId  = ids[pos - 1];
+            final float prevVal = vals[pos - 1];
+            if (prevVal < val || (prevVal == val && (prevId & HIGH) <= (id & HIGH)))
+            {
+                break;
+            }
+            
+            if ((id & HIGH) == 0 && (prevId & HIGH) != 0)
+            {
+                /* A low end passed below another's high end. */
+                beginPair(id >> 1, prevId >> 1);
+            }
+            else if ((id & HIGH) != 0 && (prevId & HIGH) == 0)
+            {
+                /* A high end passed below another's low end. */
+                endPair(id >> 1, prevId >> 1);
+            }
+            
+            setEnd(axis, pos, prevId, prevVal);
+            pos--;
+        }
+        setEnd(axis, pos, id, val);
+    }
+    
+    /** Moves the end at `pos` towards the end of the axis until it is in
+     * order. */
+    private void sortUp(int axis, int pos)
+    {
+        final int[]   ids  = endId[axis];
+        final float[] vals = endVal[axis];
+        final int   id  = ids[pos];
+        final float val = vals[pos];
+        
+        while (pos < endCount - 1)
+        {
+            final int   nextId  = ids[pos + 1];
+            final float nextVal = vals[pos + 1];
+            if (nextVal > val || (nextVal == val && (nextId & HIGH) >= (id & HIGH)))
+            {
+                break;
+            }
+            
+            if ((id & HIGH) != 0 && (nextId & HIGH) == 0)
+            {
+                /* A high end passed above another's low end. */
+                beginPair(id >> 1, nextId >> 1);
+            }
+            else if ((id & HIGH) == 0 && (nextId & HIGH) != 0)
+            {
+                /* A low end passed above another's high end. */
+                endPair(id >> 1, nextId >> 1);
+            }
+            
+            setEnd(axis, pos, nextId, nextVal);
+            pos++;
+        }
+        setEnd(axis, pos, id, val);
+    }
+    
+    /** Two objects' ends have come into overlapping order on one axis, so
+     * pairs them if their bounds now overlap on every axis. The bounds are
+     * tested directly as the other axis may not have been sorted yet; if it
+     * hasn't, sorting it will pass the same ends and end up here again. */
+    private void beginPair(int a, int b)
+    {
+        if (a == b || !entLive[a] || !entLive[b])
+        {
+            return;
+        }
+        
+        for (int axis=0; axis<AXES; axis++)
+        {
+            if (entLo[axis][a] > entHi[axis][b] || entLo[axis][b] > entHi[axis][a])
+            {
+                return;
+            }
+        }
+        
+        if (insertPair(pairKey(a, b)) && listener != null)
+        {
+            listener.pairAdded(get(a), get(b));
+        }
+    }
+    
+    private void endPair(int a, int b)
+    {
+        if (a != b && removePair(pairKey(a, b)) && listener != null)
+        {
+            listener.pairRemoved(get(a), get(b));
+        }
+    }
+    
+    /** Stores an end at `pos` and records where it now is. */
+    private void setEnd(int axis, int pos, int id, float val)
+    {
+        endId[axis][pos]  = id;
+        endVal[axis][pos] = val;
+        
+        if ((id & HIGH) != 0)
+        {
+            entHiPos[axis][id >> 1] = pos;
+        }
+        else
+        {
+            entLoPos[axis][id >> 1] = pos;
+        }
+    }
+    
+    /** Closes up the gap left by the end at `pos`, among the first `count`
+     * ends of the axis. */
+    private void removeEnd(int axis, int pos, int count)
+    {
+        for (int i=pos+1; i<count; i++)
+        {
+            setEnd(axis, i - 1, endId[axis][i], endVal[axis][i]);
+        }
+    }
+    
+    private static long pairKey(int a, int b)
+    {
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+    
+    /** @return Answers the slot holding `key`, or -1. */
+    private int findPair(long key)
+    {
+        final int mask = pairs.length - 1;
+        for (int i=hashPair(key) & mask; ; i = (i + 1) & mask)
+        {
+            if (pairs[i] == key)   return i;
+            if (pairs[i] == EMPTY) return -1;
+        }
+    }
+    
+    /** @return Answers whether the pair wasn't already present. */
+    private boolean insertPair(long key)
+    {
+        if (findPair(key) >= 0)
+        {
+            return false;
+        }
+        
+        if ((pairSlotsUsed + 1) * 2 > pairs.length)
+        {
+            rehashPairs();
+        }
+        
+        final int mask = pairs.length - 1;
+        int i = hashPair(key) & mask;
+        while (pairs[i] != EMPTY && pairs[i] != REMOVED)
+        {
+            i = (i + 1) & mask;
+        }
+        if (pairs[i] == EMPTY)
+        {
+            pairSlotsUsed++;
+        }
+        pairs[i] = key;
+        pairCount++;
+        return true;
+    }
+    
+    /** @return Answers whether the pair was present. */
+    private boolean removePair(long key)
+    {
+        final int i = findPair(key);
+        if (i < 0)
+        {
+            return false;
+        }
+        pairs[i] = REMOVED;
+        pairCount--;
+        return true;
+    }
+    
+    /** Rebuilds the table without removed slots, growing it if it is more
+     * than a quarter full of pairs. */
+    private void rehashPairs()
+    {
+        final long[] old = pairs;
+        pairs = newPairTable(pairCount * 4 > old.length ? old.length * 2 : old.length);
+        pairSlotsUsed = 0;
+        
+        final int mask = pairs.length - 1;
+        for (int j=0; j<old.length; j++)
+        {
+            if (old[j] >= 0)
+            {
+                int i = hashPair(old[j]) & mask;
+                while (pairs[i] != EMPTY)
+                {
+                    i = (i + 1) & mask;
+                }
+                pairs[i] = old[j];
+                pairSlotsUsed++;
+            }
+        }
+    }
+    
+    private static long[] newPairTable(int size)
+    {
+        long[] table = new long[size];
+        for (int i=0; i<size; i++)
+        {
+            table[i] = EMPTY;
+        }
+        return table;
+    }
+    
+    private static int hashPair(long key)
+    {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+    
+    private void setEntryBounds(int h, Bounds b)
+    {
+        entLo[0][h] = b.x1; entHi[0][h] = b.x2;
+        entLo[1][h] = b.y1; entHi[1][h] = b.y2;
+    }
+    
+    private void ensureEndCapacity(int n)
+    {
+        for (int axis=0; axis<AXES; axis++)
+        {
+            endId[axis]  = Grow.ints(endId[axis], n);
+            endVal[axis] = Grow.floats(endVal[axis], n);
+        }
+    }
+    
+    private void ensureEntryCapacity(int n)
+    {
+        if (entLive.length >= n) return;
+        
+        for (int axis=0; axis<AXES; axis++)
+        {
+            entLo[axis]    = Grow.floats(entLo[axis], n);
+            entHi[axis]    = Grow.floats(entHi[axis], n);
+            entLoPos[axis] = Grow.ints(entLoPos[axis], n);
+            entHiPos[axis] = Grow.ints(entHiPos[axis], n);
+        }
+        entObj = Grow.objects(entObj, n);
+        
+        boolean[] grown = new boolean[entObj.length];
+        System.arraycopy(entLive, 0, grown, 0, entLive.length);
+        entLive = grown;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "SweepAndPrune(objects="+(entEnd-freeHandleCount)
+                +",pairs="+pairCount+")";
+    }
+}
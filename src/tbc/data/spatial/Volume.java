@@ -27,20 +27,60 @@ public class Volume
         this.z2 = z2;
     }
     
+    public Volume copy()
+    {
+        return new Volume(x1, x2, y1, y2, z1, z2);
+    }
+    
+    /** Multiply width, height and depth by k, keeping the same centre. */
+    public void enlarge(float k)
+    {
+        if (k == 1.0f) return;
+        
+        final float nubX = ((x2 - x1) * (k - 1.0f)) / 2;
+        final float nubY = ((y2 - y1) * (k - 1.0f)) / 2;
+        final float nubZ = ((z2 - z1) * (k - 1.0f)) / 2;
+        
+        x1 -= nubX; x2 += nubX; y1 -= nubY; y2 += nubY; z1 -= nubZ; z2 += nubZ;
+    }
+    
+    public boolean containsPoint(float x, float y, float z)
+    {
+        return x >= x1 && x <= x2 && y >= y1 && y <= y2 && z >= z1 && z <= z2;
+    }
+    
+    public boolean containsVolume(Volume v)
+    {
+        return v.x1 >= x1 && v.x2 <= x2 && v.y1 >= y1 && v.y2 <= y2
+            && v.z1 >= z1 && v.z2 <= z2;
+    }
+    
+    public boolean intersects(Volume v)
+    {
+        return intersects(v.x1, v.y1, v.z1, v.x2, v.y2, v.z2);
+    }
+    
+    public boolean intersects(float ox1, float oy1, float oz1, 
+                              float ox2, float oy2, float oz2)
+    {
+        return ox1 <= x2 && ox2 >= x1 && oy1 <= y2 && oy2 >= y1
+            && oz1 <= z2 && oz2 >= z1;
+    }
+    
     /** Projects the volume onto a plane at proj=0 by ignoring the axis proj. */
     public Bounds toBounds(Axis proj)
     {
         if (proj == Axis.X)
         {
-            return new Bounds(y1, y2, z1, z2);
+            return new Bounds(y1, z1, y2, z2);
         }
         else if (proj == Axis.Y)
         {
-            return new Bounds(x1, x2, z1, z2);
+            return new Bounds(x1, z1, x2, z2);
         }
         else
         {
-            return new Bounds(x1, x2, y1, y2);
+            return new Bounds(x1, y1, x2, y2);
         }
     }
     
@@ -66,7 +106,7 @@ public class Volume
     public static Volume arbitrary(Gen gen)
     {
     	final int maxDi = gen.getParams().getInt(PARAM_MAX_DI, 1000);
-    	
+        
         float fstX = gen.arbFloat(maxDi);
         float sndX = gen.arbFloat(maxDi);
         float fstY = gen.arbFloat(maxDi);
@@ -80,5 +120,5 @@ public class Volume
                           fstZ < sndZ ? fstZ : sndZ,
                           fstZ > sndZ ? fstZ : sndZ);
     }
-
+    
 }
@@ -0,0 +1,12 @@
+package tbc.data.spatial;
+
+/** Receives the objects found by a query of an {@link Octree}. Like a
+ * {@link SpatialVisitor}, but for objects with 3d volumes.
+ */
+public interface VolumeVisitor<A>
+{
+    /** @param v The volume the object was last added or moved with. Do not
+     * modify it, or keep it beyond the call.
+     */
+    public void visit(A obj, Volume v);
+}
@@ -0,0 +1,1023 @@
+package tbc.scene;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/** Wraps a GL10, remembering the fixed function state it has been given and
+ * dropping calls that wouldn't change it - enables and client states, front
+ * face, matrix mode, clear colour and the array pointers. Everything else is
+ * passed straight through. The calls dropped are counted, so the saving can
+ * be measured on each device.
+ * <p>
+ * State starts out unknown, so the first call to set anything always goes
+ * through. If GL is used other than through the wrapper, or the context is
+ * lost, {@link #invalidate()} must be called.
+ */
+public class CachingGL implements GL10
+{
+    /* Values of tracked switches. */
+    private static final byte UNKNOWN = 0;
+    private static final byte ON      = 1;
+    private static final byte OFF     = 2;
+    
+    /* Indices into the pointer arrays. */
+    private static final int VERTEX    = 0;
+    private static final int COLOR     = 1;
+    private static final int NORMAL    = 2;
+    private static final int TEX_COORD = 3;
+    private static final int POINTERS  = 4;
+    
+    private final GL10 gl;
+    
+    /** Capabilities and client states seen so far, each with its value. Only
+     * a handful are ever used, so they are searched in order. */
+    private int[]  caps         = new int[16];
+    private byte[] capStates    = new byte[16];
+    private int    capCount;
+    private int[]  clients      = new int[8];
+    private byte[] clientStates = new byte[8];
+    private int    clientCount;
+    
+    private int frontFace;
+    private int matrixMode;
+    private int activeTexture;
+    private int clientActiveTexture;
+    
+    private boolean clearColorKnown;
+    private float   clearR, clearG, clearB, clearA;
+    
+    /* Arguments of the last call to each pointer function. The buffer's
+     * position counts too, as that is where GL reads from. */
+    private int[]    pointerSizes     = new int[POINTERS];
+    private int[]    pointerTypes     = new int[POINTERS];
+    private int[]    pointerStrides   = new int[POINTERS];
+    private Buffer[] pointerBuffers   = new Buffer[POINTERS];
+    private int[]    pointerPositions = new int[POINTERS];
+    
+    private int droppedCount;
+    
+    public CachingGL(GL10 gl)
+    {
+        this.gl = gl;
+        invalidate();
+    }
+    
+    /** @return Answers the GL10 calls are passed on to. */
+    public GL10 getWrapped()
+    {
+        return gl;
+    }
+    
+    /** Forgets all state, so that the next call to set anything goes
+     * through. */
+    public void invalidate()
+    {
+        capCount            = 0;
+        clientCount         = 0;
+        frontFace           = -1;
+        matrixMode          = -1;
+        activeTexture       = -1;
+        clientActiveTexture = -1;
+        clearColorKnown     = false;
+        
+        for (int i=0; i<POINTERS; i++)
+        {
+            pointerBuffers[i] = null;
+        }
+    }
+    
+    /** @return Answers how many calls have been dropped since the count was
+     * last reset. */
+    public int getDroppedCount()
+    {
+        return droppedCount;
+    }
+    
+    public void resetDroppedCount()
+    {
+        droppedCount = 0;
+    }
+    
+    @Override
+    public void glEnable(int cap)
+    {
+        if (setCap(cap, ON))
+        {
+            gl.glEnable(cap);
+        }
+    }
+    
+    @Override
+    public void glDisable(int cap)
+    {
+        if (setCap(cap, OFF))
+        {
+            gl.glDisable(cap);
+        }
+    }
+    
+    /** @return Answers whether `cap` wasn't already known to be `state`,
+     * which it now is. */
+    private boolean setCap(int cap, byte state)
+    {
+        for (int i=0; i<capCount; i++)
+        {
+            if (caps[i] == cap)
+            {
+                if (capStates[i] == state)
+                {
+                    droppedCount++;
+                    return false;
+                }
+                capStates[i] = state;
+                return true;
+            }
+        }
+        
+        if (capCount == caps.length)
+        {
+            caps      = grow(caps);
+            capStates = grow(capStates);
+        }
+        caps[capCount]      = cap;
+        capStates[capCount] = state;
+        capCount++;
+        return true;
+    }
+    
+    /** Forgets `cap`, as it has been changed where we can't see, or now
+     * refers to something else. */
+    private void forgetCap(int cap)
+    {
+        for (int i=0; i<capCount; i++)
+        {
+            if (caps[i] == cap)
+            {
+                capStates[i] = UNKNOWN;
+            }
+        }
+    }
+    
+    @Override
+    public void glEnableClientState(int array)
+    {
+        if (setClientState(array, ON))
+        {
+            gl.glEnableClientState(array);
+        }
+    }
+    
+    @Override
+    public void glDisableClientState(int array)
+    {
+        if (setClientState(array, OFF))
+        {
+            gl.glDisableClientState(array);
+        }
+    }
+    
+    /** As setCap, for client states. */
+    private boolean setClientState(int array, byte state)
+    {
+        for (int i=0; i<clientCount; i++)
+        {
+            if (clients[i] == array)
+            {
+                if (clientStates[i] == state)
+                {
+                    droppedCount++;
+                    return false;
+                }
+                clientStates[i] = state;
+                return true;
+            }
+        }
+        
+        if (clientCount == clients.length)
+        {
+            clients      = grow(clients);
+            clientStates = grow(clientStates);
+        }
+        clients[clientCount]      = array;
+        clientStates[clientCount] = state;
+        clientCount++;
+        return true;
+    }
+    
+    private void forgetClientState(int array)
+    {
+        for (int i=0; i<clientCount; i++)
+        {
+            if (clients[i] == array)
+            {
+                clientStates[i] = UNKNOWN;
+            }
+        }
+    }
+    
+    private static int[] grow(int[] a)
+    {
+        int[] grown = new int[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+    
+    private static byte[] grow(byte[] a)
+    {
+        byte[] grown = new byte[a.length * 2];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+    
+    @Override
+    public void glFrontFace(int mode)
+    {
+        if (mode == frontFace)
+        {
+            droppedCount++;
+            return;
+        }
+        frontFace = mode;
+        gl.glFrontFace(mode);
+    }
+    
+    @Override
+    public void glMatrixMode(int mode)
+    {
+        if (mode == matrixMode)
+        {
+            droppedCount++;
+            return;
+        }
+        matrixMode = mode;
+        gl.glMatrixMode(mode);
+    }
+    
+    /** Texture enables are per texture unit, so are forgotten when the active
+     * unit changes. */
+    @Override
+    public void glActiveTexture(int texture)
+    {
+        if (texture == activeTexture)
+        {
+            droppedCount++;
+            return;
+        }
+        activeTexture = texture;
+        forgetCap(GL10.GL_TEXTURE_2D);
+        gl.glActiveTexture(texture);
+    }
+    
+    /** Likewise, the texture coordinate array and its pointer belong to the
+     * client active unit. */
+    @Override
+    public void glClientActiveTexture(int texture)
+    {
+        if (texture == clientActiveTexture)
+        {
+            droppedCount++;
+            return;
+        }
+        clientActiveTexture = texture;
+        forgetClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+        pointerBuffers[TEX_COORD] = null;
+        gl.glClientActiveTexture(texture);
+    }
+    
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha)
+    {
+        if (clearColorKnown && red == clearR && green == clearG
+                && blue == clearB && alpha == clearA)
+        {
+            droppedCount++;
+            return;
+        }
+        clearColorKnown = true;
+        clearR = red; clearG = green; clearB = blue; clearA = alpha;
+        gl.glClearColor(red, green, blue, alpha);
+    }
+    
+    @Override
+    public void glClearColorx(int red, int green, int blue, int alpha)
+    {
+        clearColorKnown = false; /* not worth converting */
+        gl.glClearColorx(red, green, blue, alpha);
+    }
+    
+    @Override
+    public void glVertexPointer(int size, int type, int stride, Buffer pointer)
+    {
+        if (setPointer(VERTEX, size, type, stride, pointer))
+        {
+            gl.glVertexPointer(size, type, stride, pointer);
+        }
+    }
+    
+    @Override
+    public void glColorPointer(int size, int type, int stride, Buffer pointer)
+    {
+        if (setPointer(COLOR, size, type, stride, pointer))
+        {
+            gl.glColorPointer(size, type, stride, pointer);
+        }
+    }
+    
+    @Override
+    public void glNormalPointer(int type, int stride, Buffer pointer)
+    {
+        if (setPointer(NORMAL, 3, type, stride, pointer))
+        {
+            gl.glNormalPointer(type, stride, pointer);
+        }
+    }
+    
+    @Override
+    public void glTexCoordPointer(int size, int type, int stride, Buffer pointer)
+    {
+        if (setPointer(TEX_COORD, size, type, stride, pointer))
+        {
+            gl.glTexCoordPointer(size, type, stride, pointer);
+        }
+    }
+    
+    /** @return Answers whether the pointer differs from the last one given
+     * for `which`, which it is now. */
+    private boolean setPointer(int which, int size, int type, int stride, Buffer pointer)
+    {
+        final int position = pointer.position();
+        if (pointerBuffers[which] == pointer && pointerPositions[which] == position
+                && pointerSizes[which] == size && pointerTypes[which] == type
+                && pointerStrides[which] == stride)
+        {
+            droppedCount++;
+            return false;
+        }
+        
+        pointerBuffers[which]   = pointer;
+        pointerPositions[which] = position;
+        pointerSizes[which]     = size;
+        pointerTypes[which]     = type;
+        pointerStrides[which]   = stride;
+        return true;
+    }
+    
+    /* Passed straight through. */
+    
+    @Override
+    public void glAlphaFunc(int func, float ref)
+    {
+        gl.glAlphaFunc(func, ref);
+    }
+    
+    @Override
+    public void glAlphaFuncx(int func, int ref)
+    {
+        gl.glAlphaFuncx(func, ref);
+    }
+    
+    @Override
+    public void glBindTexture(int target, int texture)
+    {
+        gl.glBindTexture(target, texture);
+    }
+    
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor)
+    {
+        gl.glBlendFunc(sfactor, dfactor);
+    }
+    
+    @Override
+    public void glClear(int mask)
+    {
+        gl.glClear(mask);
+    }
+    
+    @Override
+    public void glClearDepthf(float depth)
+    {
+        gl.glClearDepthf(depth);
+    }
+    
+    @Override
+    public void glClearDepthx(int depth)
+    {
+        gl.glClearDepthx(depth);
+    }
+    
+    @Override
+    public void glClearStencil(int s)
+    {
+        gl.glClearStencil(s);
+    }
+    
+    @Override
+    public void glColor4f(float red, float green, float blue, float alpha)
+    {
+        gl.glColor4f(red, green, blue, alpha);
+    }
+    
+    @Override
+    public void glColor4x(int red, int green, int blue, int alpha)
+    {
+        gl.glColor4x(red, green, blue, alpha);
+    }
+    
+    @Override
+    public void glColorMask(boolean red, boolean green, boolean blue, boolean alpha)
+    {
+        gl.glColorMask(red, green, blue, alpha);
+    }
+    
+    @Override
+    public void glCompressedTexImage2D(int target, int level, int internalformat, int width, int height, int border, int imageSize, Buffer data)
+    {
+        gl.glCompressedTexImage2D(target, level, internalformat, width, height, border, imageSize, data);
+    }
+    
+    @Override
+    public void glCompressedTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height, int format, int imageSize, Buffer data)
+    {
+        gl.glCompressedTexSubImage2D(target, level, xoffset, yoffset, width, height, format, imageSize, data);
+    }
+    
+    @Override
+    public void glCopyTexImage2D(int target, int level, int internalformat, int x, int y, int width, int height, int border)
+    {
+        gl.glCopyTexImage2D(target, level, internalformat, x, y, width, height, border);
+    }
+    
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y, int width, int height)
+    {
+        gl.glCopyTexSubImage2D(target, level, xoffset, yoffset, x, y, width, height);
+    }
+    
+    @Override
+    public void glCullFace(int mode)
+    {
+        gl.glCullFace(mode);
+    }
+    
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset)
+    {
+        gl.glDeleteTextures(n, textures, offset);
+    }
+    
+    @Override
+    public void glDeleteTextures(int n, IntBuffer textures)
+    {
+        gl.glDeleteTextures(n, textures);
+    }
+    
+    @Override
+    public void glDepthFunc(int func)
+    {
+        gl.glDepthFunc(func);
+    }
+    
+    @Override
+    public void glDepthMask(boolean flag)
+    {
+        gl.glDepthMask(flag);
+    }
+    
+    @Override
+    public void glDepthRangef(float zNear, float zFar)
+    {
+        gl.glDepthRangef(zNear, zFar);
+    }
+    
+    @Override
+    public void glDepthRangex(int zNear, int zFar)
+    {
+        gl.glDepthRangex(zNear, zFar);
+    }
+    
+    @Override
+    public void glDrawArrays(int mode, int first, int count)
+    {
+        gl.glDrawArrays(mode, first, count);
+    }
+    
+    @Override
+    public void glDrawElements(int mode, int count, int type, Buffer indices)
+    {
+        gl.glDrawElements(mode, count, type, indices);
+    }
+    
+    @Override
+    public void glFinish()
+    {
+        gl.glFinish();
+    }
+    
+    @Override
+    public void glFlush()
+    {
+        gl.glFlush();
+    }
+    
+    @Override
+    public void glFogf(int pname, float param)
+    {
+        gl.glFogf(pname, param);
+    }
+    
+    @Override
+    public void glFogfv(int pname, float[] params, int offset)
+    {
+        gl.glFogfv(pname, params, offset);
+    }
+    
+    @Override
+    public void glFogfv(int pname, FloatBuffer params)
+    {
+        gl.glFogfv(pname, params);
+    }
+    
+    @Override
+    public void glFogx(int pname, int param)
+    {
+        gl.glFogx(pname, param);
+    }
+    
+    @Override
+    public void glFogxv(int pname, int[] params, int offset)
+    {
+        gl.glFogxv(pname, params, offset);
+    }
+    
+    @Override
+    public void glFogxv(int pname, IntBuffer params)
+    {
+        gl.glFogxv(pname, params);
+    }
+    
+    @Override
+    public void glFrustumf(float left, float right, float bottom, float top, float zNear, float zFar)
+    {
+        gl.glFrustumf(left, right, bottom, top, zNear, zFar);
+    }
+    
+    @Override
+    public void glFrustumx(int left, int right, int bottom, int top, int zNear, int zFar)
+    {
+        gl.glFrustumx(left, right, bottom, top, zNear, zFar);
+    }
+    
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset)
+    {
+        gl.glGenTextures(n, textures, offset);
+    }
+    
+    @Override
+    public void glGenTextures(int n, IntBuffer textures)
+    {
+        gl.glGenTextures(n, textures);
+    }
+    
+    @Override
+    public int glGetError()
+    {
+        return gl.glGetError();
+    }
+    
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset)
+    {
+        gl.glGetIntegerv(pname, params, offset);
+    }
+    
+    @Override
+    public void glGetIntegerv(int pname, IntBuffer params)
+    {
+        gl.glGetIntegerv(pname, params);
+    }
+    
+    @Override
+    public String glGetString(int name)
+    {
+        return gl.glGetString(name);
+    }
+    
+    @Override
+    public void glHint(int target, int mode)
+    {
+        gl.glHint(target, mode);
+    }
+    
+    @Override
+    public void glLightModelf(int pname, float param)
+    {
+        gl.glLightModelf(pname, param);
+    }
+    
+    @Override
+    public void glLightModelfv(int pname, float[] params, int offset)
+    {
+        gl.glLightModelfv(pname, params, offset);
+    }
+    
+    @Override
+    public void glLightModelfv(int pname, FloatBuffer params)
+    {
+        gl.glLightModelfv(pname, params);
+    }
+    
+    @Override
+    public void glLightModelx(int pname, int param)
+    {
+        gl.glLightModelx(pname, param);
+    }
+    
+    @Override
+    public void glLightModelxv(int pname, int[] params, int offset)
+    {
+        gl.glLightModelxv(pname, params, offset);
+    }
+    
+    @Override
+    public void glLightModelxv(int pname, IntBuffer params)
+    {
+        gl.glLightModelxv(pname, params);
+    }
+    
+    @Override
+    public void glLightf(int light, int pname, float param)
+    {
+        gl.glLightf(light, pname, param);
+    }
+    
+    @Override
+    public void glLightfv(int light, int pname, float[] params, int offset)
+    {
+        gl.glLightfv(light, pname, params, offset);
+    }
+    
+    @Override
+    public void glLightfv(int light, int pname, FloatBuffer params)
+    {
+        gl.glLightfv(light, pname, params);
+    }
+    
+    @Override
+    public void glLightx(int light, int pname, int param)
+    {
+        gl.glLightx(light, pname, param);
+    }
+    
+    @Override
+    public void glLightxv(int light, int pname, int[] params, int offset)
+    {
+        gl.glLightxv(light, pname, params, offset);
+    }
+    
+    @Override
+    public void glLightxv(int light, int pname, IntBuffer params)
+    {
+        gl.glLightxv(light, pname, params);
+    }
+    
+    @Override
+    public void glLineWidth(float width)
+    {
+        gl.glLineWidth(width);
+    }
+    
+    @Override
+    public void glLineWidthx(int width)
+    {
+        gl.glLineWidthx(width);
+    }
+    
+    @Override
+    public void glLoadIdentity()
+    {
+        gl.glLoadIdentity();
+    }
+    
+    @Override
+    public void glLoadMatrixf(float[] m, int offset)
+    {
+        gl.glLoadMatrixf(m, offset);
+    }
+    
+    @Override
+    public void glLoadMatrixf(FloatBuffer m)
+    {
+        gl.glLoadMatrixf(m);
+    }
+    
+    @Override
+    public void glLoadMatrixx(int[] m, int offset)
+    {
+        gl.glLoadMatrixx(m, offset);
+    }
+    
+    @Override
+    public void glLoadMatrixx(IntBuffer m)
+    {
+        gl.glLoadMatrixx(m);
+    }
+    
+    @Override
+    public void glLogicOp(int opcode)
+    {
+        gl.glLogicOp(opcode);
+    }
+    
+    @Override
+    public void glMaterialf(int face, int pname, float param)
+    {
+        gl.glMaterialf(face, pname, param);
+    }
+    
+    @Override
+    public void glMaterialfv(int face, int pname, float[] params, int offset)
+    {
+        gl.glMaterialfv(face, pname, params, offset);
+    }
+    
+    @Override
+    public void glMaterialfv(int face, int pname, FloatBuffer params)
+    {
+        gl.glMaterialfv(face, pname, params);
+    }
+    
+    @Override
+    public void glMaterialx(int face, int pname, int param)
+    {
+        gl.glMaterialx(face, pname, param);
+    }
+    
+    @Override
+    public void glMaterialxv(int face, int pname, int[] params, int offset)
+    {
+        gl.glMaterialxv(face, pname, params, offset);
+    }
+    
+    @Override
+    public void glMaterialxv(int face, int pname, IntBuffer params)
+    {
+        gl.glMaterialxv(face, pname, params);
+    }
+    
+    @Override
+    public void glMultMatrixf(float[] m, int offset)
+    {
+        gl.glMultMatrixf(m, offset);
+    }
+    
+    @Override
+    public void glMultMatrixf(FloatBuffer m)
+    {
+        gl.glMultMatrixf(m);
+    }
+    
+    @Override
+    public void glMultMatrixx(int[] m, int offset)
+    {
+        gl.glMultMatrixx(m, offset);
+    }
+    
+    @Override
+    public void glMultMatrixx(IntBuffer m)
+    {
+        gl.glMultMatrixx(m);
+    }
+    
+    @Override
+    public void glMultiTexCoord4f(int target, float s, float t, float r, float q)
+    {
+        gl.glMultiTexCoord4f(target, s, t, r, q);
+    }
+    
+    @Override
+    public void glMultiTexCoord4x(int target, int s, int t, int r, int q)
+    {
+        gl.glMultiTexCoord4x(target, s, t, r, q);
+    }
+    
+    @Override
+    public void glNormal3f(float nx, float ny, float nz)
+    {
+        gl.glNormal3f(nx, ny, nz);
+    }
+    
+    @Override
+    public void glNormal3x(int nx, int ny, int nz)
+    {
+        gl.glNormal3x(nx, ny, nz);
+    }
+    
+    @Override
+    public void glOrthof(float left, float right, float bottom, float top, float zNear, float zFar)
+    {
+        gl.glOrthof(left, right, bottom, top, zNear, zFar);
+    }
+    
+    @Override
+    public void glOrthox(int left, int right, int bottom, int top, int zNear, int zFar)
+    {
+        gl.glOrthox(left, right, bottom, top, zNear, zFar);
+    }
+    
+    @Override
+    public void glPixelStorei(int pname, int param)
+    {
+        gl.glPixelStorei(pname, param);
+    }
+    
+    @Override
+    public void glPointSize(float size)
+    {
+        gl.glPointSize(size);
+    }
+    
+    @Override
+    public void glPointSizex(int size)
+    {
+        gl.glPointSizex(size);
+    }
+    
+    @Override
+    public void glPolygonOffset(float factor, float units)
+    {
+        gl.glPolygonOffset(factor, units);
+    }
+    
+    @Override
+    public void glPolygonOffsetx(int factor, int units)
+    {
+        gl.glPolygonOffsetx(factor, units);
+    }
+    
+    @Override
+    public void glPopMatrix()
+    {
+        gl.glPopMatrix();
+    }
+    
+    @Override
+    public void glPushMatrix()
+    {
+        gl.glPushMatrix();
+    }
+    
+    @Override
+    public void glReadPixels(int x, int y, int width, int height, int format, int type, Buffer pixels)
+    {
+        gl.glReadPixels(x, y, width, height, format, type, pixels);
+    }
+    
+    @Override
+    public void glRotatef(float angle, float x, float y, float z)
+    {
+        gl.glRotatef(angle, x, y, z);
+    }
+    
+    @Override
+    public void glRotatex(int angle, int x, int y, int z)
+    {
+        gl.glRotatex(angle, x, y, z);
+    }
+    
+    @Override
+    public void glSampleCoverage(float value, boolean invert)
+    {
+        gl.glSampleCoverage(value, invert);
+    }
+    
+    @Override
+    public void glSampleCoveragex(int value, boolean invert)
+    {
+        gl.glSampleCoveragex(value, invert);
+    }
+    
+    @Override
+    public void glScalef(float x, float y, float z)
+    {
+        gl.glScalef(x, y, z);
+    }
+    
+    @Override
+    public void glScalex(int x, int y, int z)
+    {
+        gl.glScalex(x, y, z);
+    }
+    
+    @Override
+    public void glScissor(int x, int y, int width, int height)
+    {
+        gl.glScissor(x, y, width, height);
+    }
+    
+    @Override
+    public void glShadeModel(int mode)
+    {
+        gl.glShadeModel(mode);
+    }
+    
+    @Override
+    public void glStencilFunc(int func, int ref, int mask)
+    {
+        gl.glStencilFunc(func, ref, mask);
+    }
+    
+    @Override
+    public void glStencilMask(int mask)
+    {
+        gl.glStencilMask(mask);
+    }
+    
+    @Override
+    public void glStencilOp(int fail, int zfail, int zpass)
+    {
+        gl.glStencilOp(fail, zfail, zpass);
+    }
+    
+    @Override
+    public void glTexEnvf(int target, int pname, float param)
+    {
+        gl.glTexEnvf(target, pname, param);
+    }
+    
+    @Override
+    public void glTexEnvfv(int target, int pname, float[] params, int offset)
+    {
+        gl.glTexEnvfv(target, pname, params, offset);
+    }
+    
+    @Override
+    public void glTexEnvfv(int target, int pname, FloatBuffer params)
+    {
+        gl.glTexEnvfv(target, pname, params);
+    }
+    
+    @Override
+    public void glTexEnvx(int target, int pname, int param)
+    {
+        gl.glTexEnvx(target, pname, param);
+    }
+    
+    @Override
+    public void glTexEnvxv(int target, int pname, int[] params, int offset)
+    {
+        gl.glTexEnvxv(target, pname, params, offset);
+    }
+    
+    @Override
+    public void glTexEnvxv(int target, int pname, IntBuffer params)
+    {
+        gl.glTexEnvxv(target, pname, params);
+    }
+    
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, Buffer pixels)
+    {
+        gl.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+    }
+    
+    @Override
+    public void glTexParameterf(int target, int pname, float param)
+    {
+        gl.glTexParameterf(target, pname, param);
+    }
+    
+    @Override
+    public void glTexParameterx(int target, int pname, int param)
+    {
+        gl.glTexParameterx(target, pname, param);
+    }
+    
+    @Override
+    public void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height, int format, int type, Buffer pixels)
+    {
+        gl.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+    }
+    
+    @Override
+    public void glTranslatef(float x, float y, float z)
+    {
+        gl.glTranslatef(x, y, z);
+    }
+    
+    @Override
+    public void glTranslatex(int x, int y, int z)
+    {
+        gl.glTranslatex(x, y, z);
+    }
+    
+    @Override
+    public void glViewport(int x, int y, int width, int height)
+    {
+        gl.glViewport(x, y, width, height);
+    }
+}
@@ -0,0 +1,102 @@
+package tbc.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+/** Fixed point triangles with a colour per vertex, ready to be handed to GL.
+ * Vertices have three components and colours four. A mesh may be shared by
+ * any number of scene objects, which queue it with a {@link RenderQueue}
+ * rather than drawing it themselves, so that objects sharing a mesh are drawn
+ * one after another with its arrays set up only once.
+ */
+public class Mesh
+{
+    private static int nextId = 0;
+    
+    /** Groups draws of this mesh together when sorted. The same for every
+     * draw of this mesh. Only the low 16 bits are sorted on, so meshes made
+     * 65536 apart share a group - draws are still correct, but may bind more
+     * often than they need to. */
+    private final int id;
+    
+    private IntBuffer  vertBuff;
+    private IntBuffer  colsBuff;
+    private ByteBuffer indexBuff; /* null if drawn as arrays */
+    
+    private int count;
+    
+    private int frontFace;
+    
+    /** Drawn with glDrawArrays. */
+    public Mesh(int[] verts, int[] cols, int frontFace)
+    {
+        this(verts, cols, null, frontFace);
+    }
+    
+    /** Drawn with glDrawElements, if indices isn't null. */
+    public Mesh(int[] verts, int[] cols, byte[] indices, int frontFace)
+    {
+        this.id        = nextId++;
+        this.frontFace = frontFace;
+        
+        /* Buffers passed to gl*Pointer() must be direct, and in native
+         * order, so the garbage collector can't move them. */
+        ByteBuffer vertsB = ByteBuffer.allocateDirect(verts.length * 4);
+        vertsB.order(ByteOrder.nativeOrder());
+        vertBuff = vertsB.asIntBuffer();
+        vertBuff.put(verts);
+        vertBuff.position(0);
+        
+        ByteBuffer colsB = ByteBuffer.allocateDirect(cols.length * 4);
+        colsB.order(ByteOrder.nativeOrder());
+        colsBuff = colsB.asIntBuffer();
+        colsBuff.put(cols);
+        colsBuff.position(0);
+        
+        if (indices != null)
+        {
+            indexBuff = ByteBuffer.allocateDirect(indices.length);
+            indexBuff.put(indices);
+            indexBuff.position(0);
+            count = indices.length;
+        }
+        else
+        {
+            count = verts.length / 3;
+        }
+    }
+    
+    int getId()
+    {
+        return id;
+    }
+    
+    /** Either GL_CW or GL_CCW. */
+    public int getFrontFace()
+    {
+        return frontFace;
+    }
+    
+    /** Points GL's vertex and colour arrays at this mesh. */
+    void bind(GL10 gl)
+    {
+        gl.glVertexPointer(3, GL10.GL_FIXED, 0, vertBuff);
+        gl.glColorPointer(4, GL10.GL_FIXED, 0, colsBuff);
+    }
+    
+    /** Draws the mesh, which must be bound. */
+    void draw(GL10 gl)
+    {
+        if (indexBuff != null)
+        {
+            gl.glDrawElements(GL10.GL_TRIANGLES, count, GL10.GL_UNSIGNED_BYTE, indexBuff);
+        }
+        else
+        {
+            gl.glDrawArrays(GL10.GL_TRIANGLES, 0, count);
+        }
+    }
+}
@@ -1,34 +1,55 @@
 package tbc.scene;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import android.opengl.GLU;
 import android.opengl.Matrix;
 import android.util.Log;
 
 import tbc.data.spatial.Axis;
 import tbc.data.spatial.Bounds;
+import tbc.data.spatial.Morton;
 import tbc.data.spatial.Point2D;
 import tbc.data.spatial.Point3D;
 import tbc.data.spatial.QuadTree;
+import tbc.data.spatial.SpatialIndex;
+import tbc.data.spatial.SpatialPairVisitor;
+import tbc.data.spatial.SpatialVisitor;
 import tbc.data.spatial.Volume;
 
 /** A world where all entities are positioned on a 2d plane. Rendering is only
  * performed on those scene objects that fall within the cameras view, determined
- * by a quad tree.
+ * by a spatial index - a quad tree unless another is given.
  * <p>
- * Use of the quad tree demands that child scene objects take into account their
- * children when calculating their bounds. Though, if a scene object only wants to
+ * Use of the spatial index demands that child scene objects take into account
+ * their children when calculating their bounds. Though, if a scene object only wants to
  * draw its children when it is on screen, even if its children are on screen
  * before it itself is, the scene object should return a bounds that does not
  * include those children.
+ * <p>
+ * Descendants that move are not re-indexed straight away. They are only marked
+ * dirty, and the index is brought up to date in one batch before it is next
+ * used - for culling or for finding collisions - so an object that moves many
+ * times in a frame is moved in the index once.
  */
-public class PlaneWorld extends ScnObj implements ScnObj.Camera
+public class PlaneWorld extends ScnObj implements ScnObj.Camera,
+                                                 ScnObj.VolumeChangedListener
 {
     /** The visible world distance between the centre of the screen and the closest
      * edge.
      */
     public static final float MINIMUM_VISIBLE_RADIUS = 25.0f;
     
-    private QuadTree<ScnObj> worldObjs;
+    /** How long a quad tree index may spend tuning itself each frame. */
+    public static final long TUNE_BUDGET_NANOS = 1000000l;
+    
+    private SpatialIndex<ScnObj> worldObjs;
+    
+    /** The same as worldObjs when it is a quad tree, which is tuned each
+     * frame if it is adaptive. Otherwise null. */
+    private QuadTree<ScnObj> quadTree;
     
     private Point3D viewCentroid = new Point3D(0.0f, 0.0f, 0.0f);
     
@@ -36,55 +57,309 @@ public class PlaneWorld extends ScnObj implements ScnObj.Camera
     
     private float[] worldTranslation = new float[4 * 4];
     
+    /** Scratch space for working out the screen bounds. */
+    private float[] viewProjection    = new float[4 * 4];
+    private float[] invViewProjection = new float[4 * 4];
+    private float[] clipCorner        = new float[4];
+    private float[] worldCorner       = new float[4];
+    
+    /** The world area visible on screen. Recalculated whenever the view
+     * centroid is set, and covers everything until then. */
+    private Bounds screenBounds;
+    
+    /** Set while addChildren is adding, so descendants are queued in
+     * pendingAdds rather than indexed one at a time. */
+    private boolean bulkLoading = false;
+    
+    private ArrayList<ScnObj> pendingAdds = new ArrayList<ScnObj>();
+    
+    /** Descendants whose volumes have changed since the index was last
+     * flushed. May hold objects that have since left the world, or the same
+     * object twice if it left and came back - only those still marked dirty
+     * are moved. */
+    private ArrayList<ScnObj> dirtyObjs = new ArrayList<ScnObj>();
+    
+    /** Scratch space for flushing. The Morton code of each dirty object's
+     * new centre in the high 32 bits, and its place in dirtyObjs in the low. */
+    private long[]   flushOrder  = new long[16];
+    private Bounds[] flushBounds = new Bounds[16];
+    
+    /** Reused each frame by {@link #onCreateChildRenderList()}. */
+    private ArrayList<ScnObj> renderList = new ArrayList<ScnObj>();
+    
+    private SpatialVisitor<ScnObj> renderLister = new SpatialVisitor<ScnObj>()
+    {
+        @Override
+        public void visit(ScnObj o, Bounds b)
+        {
+            /* The quad tree holds all descendants, but only our own children
+             * are drawn by us - they draw their own children. */
+            if (o.getParent() == PlaneWorld.this)
+            {
+                renderList.add(o);
+            }
+        }
+    };
+    
+    /** The update time collisions were last found for, so that they are
+     * found once per update no matter how many mobiles ask. */
+    private long lastCollisionTime = -1l;
+    
+    /** Overlapping pairs of our children, collected before any are told, so
+     * that a child may leave the world from within onCollide. */
+    private ArrayList<ScnObj> collisionsA = new ArrayList<ScnObj>();
+    private ArrayList<ScnObj> collisionsB = new ArrayList<ScnObj>();
+    
+    private SpatialPairVisitor<ScnObj> collisionLister = new SpatialPairVisitor<ScnObj>()
+    {
+        @Override
+        public void visit(ScnObj a, ScnObj b)
+        {
+            /* As with drawing, only our own children collide. Their children
+             * are considered part of them. */
+            if (a.getParent() == PlaneWorld.this && b.getParent() == PlaneWorld.this)
+            {
+                collisionsA.add(a);
+                collisionsB.add(b);
+            }
+        }
+    };
+    
+    /** Uses an adaptive quad tree, which finds its own split threshold and
+     * looseness for the objects in the world. The bounds are where the world
+     * starts out, but the tree grows to index anything that goes beyond
+     * them. */
     public PlaneWorld(float minX, float minY, float maxX, float maxY)
     {
-        worldObjs = new QuadTree<ScnObj>(minX, minY, maxX, maxY, 1, 1.5f);
+        this(makeQuadTree(minX, minY, maxX, maxY));
+    }
+    
+    private static QuadTree<ScnObj> makeQuadTree(float minX, float minY,
+                                                 float maxX, float maxY)
+    {
+        QuadTree<ScnObj> qt = new QuadTree<ScnObj>(minX, minY, maxX, maxY, 1, 1.5f);
+        qt.setAdaptive(true);
+        qt.setGrowable(true);
+        return qt;
+    }
+    
+    /** @param worldObjs An empty index, which will be used to track all the
+     * descendants of the world. A {@link tbc.data.spatial.HashGrid} suits
+     * dense fields of evenly sized objects better than a quad tree.
+     */
+    @SuppressWarnings("unchecked")
+    public PlaneWorld(SpatialIndex<ScnObj> worldObjs)
+    {
+        this.worldObjs    = worldObjs;
+        this.quadTree     = worldObjs instanceof QuadTree
+                          ? (QuadTree<ScnObj>) worldObjs : null;
+        this.screenBounds = new Bounds(-Float.MAX_VALUE, -Float.MAX_VALUE,
+                                       Float.MAX_VALUE, Float.MAX_VALUE);
     }
     
     @Override
     protected void onDescendantAdded(ScnObj o)
     {
-        /* Add the thing to our quad tree and listen for volume changed,
-         * so we can update the objects positon in the quad tree. */
-        o.setVolumeChangedListener(new VolumeChangedListener()
+        if (bulkLoading)
+        {
+            /* Indexed all together once addChildren has added them all. */
+            pendingAdds.add(o);
+            return;
+        }
+        
+        Volume v = o.getVolume();
+        o.setSpatialHandle(worldObjs.add(v.toBounds(Axis.Z), o));
+        listenForVolumeChanges(o);
+    }
+    
+    /** Listen for volume changes, so we can update the object's position in
+     * the index. Only done once the object is in the index. */
+    private void listenForVolumeChanges(ScnObj o)
+    {
+        o.setVolumeDirty(false);
+        o.setVolumeChangedListener(this);
+    }
+    
+    /** Marks `o` to be moved in the index at the next flush. Called once per
+     * flush at most for each object, as ScnObj holds back further changes
+     * while it is dirty. */
+    @Override
+    public void tellVolumeChanged(ScnObj o)
+    {
+        dirtyObjs.add(o);
+    }
+    
+    /** Moves every dirty descendant to its new bounds in the index. Moves are
+     * made in Z-order of the new centres, so that objects headed for the same
+     * part of the tree are moved one after another.
+     */
+    private void flushMoves()
+    {
+        final int count = dirtyObjs.size();
+        if (count == 0)
+        {
+            return;
+        }
+        
+        if (flushOrder.length < count)
+        {
+            flushOrder  = new long[Math.max(count, flushOrder.length * 2)];
+            flushBounds = new Bounds[flushOrder.length];
+        }
+        
+        float x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE,
+              x2 = -Float.MAX_VALUE, y2 = -Float.MAX_VALUE;
+        int moving = 0;
+        
+        for (int i=0; i<count; i++)
         {
-            @Override
-            public void tellVolumeChanged(ScnObj o, Volume v)
+            ScnObj o = dirtyObjs.get(i);
+            if (!o.isVolumeDirty())
             {
-                worldObjs.move(v.toBounds(Axis.Z), o);
+                continue; /* removed, or already seen */
             }
-        });
+            o.setVolumeDirty(false);
+            
+            Bounds b = o.getVolume().toBounds(Axis.Z);
+            flushBounds[i] = b;
+            flushOrder[moving++] = i;
+            
+            final float cx = (b.x1 + b.x2) / 2, cy = (b.y1 + b.y2) / 2;
+            x1 = Math.min(x1, cx); y1 = Math.min(y1, cy);
+            x2 = Math.max(x2, cx); y2 = Math.max(y2, cy);
+        }
         
-        Volume v = o.getVolume();
-        worldObjs.add(v.toBounds(Axis.Z), o);
+        /* Key by the cell of each centre on a grid over all the centres. */
+        final float cellsPerUnitX = (Morton.CELLS - 1) / Math.max(x2 - x1, Float.MIN_VALUE);
+        final float cellsPerUnitY = (Morton.CELLS - 1) / Math.max(y2 - y1, Float.MIN_VALUE);
+        
+        for (int j=0; j<moving; j++)
+        {
+            final int i = (int) flushOrder[j];
+            final Bounds b = flushBounds[i];
+            final int cx = Math.min((int) (((b.x1 + b.x2) / 2 - x1) * cellsPerUnitX),
+                                    Morton.CELLS - 1);
+            final int cy = Math.min((int) (((b.y1 + b.y2) / 2 - y1) * cellsPerUnitY),
+                                    Morton.CELLS - 1);
+            flushOrder[j] = ((long) Morton.encode(cx, cy) << 32) | i;
+        }
+        Arrays.sort(flushOrder, 0, moving);
+        
+        for (int j=0; j<moving; j++)
+        {
+            final int i = (int) flushOrder[j];
+            worldObjs.move(dirtyObjs.get(i).getSpatialHandle(), flushBounds[i]);
+            flushBounds[i] = null;
+        }
+        
+        dirtyObjs.clear();
+    }
+    
+    /** Adds many children at once. They and their descendants are bulk loaded
+     * into the quad tree in one pass, which is much cheaper than adding them
+     * one by one.
+     */
+    public void addChildren(List<? extends ScnObj> objs)
+    {
+        bulkLoading = true;
+        try
+        {
+            for (ScnObj o : objs)
+            {
+                addChild(o);
+            }
+        }
+        finally
+        {
+            bulkLoading = false;
+        }
+        
+        final int count = pendingAdds.size();
+        Bounds[] bs      = new Bounds[count];
+        ScnObj[] added   = new ScnObj[count];
+        int[]    handles = new int[count];
+        
+        for (int i=0; i<count; i++)
+        {
+            added[i] = pendingAdds.get(i);
+            bs[i]    = added[i].getVolume().toBounds(Axis.Z);
+        }
+        pendingAdds.clear();
+        
+        worldObjs.addAll(bs, added, count, handles);
+        
+        for (int i=0; i<count; i++)
+        {
+            added[i].setSpatialHandle(handles[i]);
+            listenForVolumeChanges(added[i]);
+        }
     }
     
     @Override
     protected void onDescendantRemoved(ScnObj o)
     {
-        /* Remove the thing from our quad tree */
+        /* Remove the thing from our spatial index. It may still be in the
+         * dirty list, but is skipped once no longer marked. */
         o.setVolumeChangedListener(null);
-        worldObjs.remove(o);
-    }
-    
-    // TODO
-//    @Override
-//    protected ArrayList<ScnObj> onCreateChildRenderList()
-//    {
-//        // TODO This only modifies the top-level list. Is this ok? Perhaps a RenderLister
-//        // interface, assigned to ScnObj of the planeworld on descdentant calls?
-//        ArrayList<ScnObj> toRender = new ArrayList<ScnObj>();
-//        Bounds screenBounds = getScreenBounds();
-//        for (ScnObj so : getChildren())
-//        {
-//            // TODO Use quadtree instead of direct bounds check. 
-//            if (screenBounds.containsBounds(so.getVolume().toBounds(Axis.Z)))
-//            {
-//                toRender.add(so);
-//            }
-//        }
-//        return toRender;
-//    }
+        o.setVolumeDirty(false);
+        if (o.getSpatialHandle() != -1)
+        {
+            worldObjs.remove(o.getSpatialHandle());
+            o.setSpatialHandle(-1);
+        }
+    }
+    
+    /** Finds every pair of children whose bounds overlap and tells those that
+     * are {@link ScnObj.Collidable}. Only does the work once for each tIndex,
+     * so may be called by every child from its post update.
+     */
+    public void updateCollisions(long tIndex)
+    {
+        if (tIndex == lastCollisionTime)
+        {
+            return;
+        }
+        lastCollisionTime = tIndex;
+        
+        flushMoves();
+        worldObjs.queryPairs(collisionLister);
+        
+        final int count = collisionsA.size();
+        for (int i=0; i<count; i++)
+        {
+            tellCollided(collisionsA.get(i), collisionsB.get(i), tIndex);
+            tellCollided(collisionsB.get(i), collisionsA.get(i), tIndex);
+        }
+        
+        collisionsA.clear();
+        collisionsB.clear();
+    }
+    
+    private void tellCollided(ScnObj o, ScnObj other, long tIndex)
+    {
+        /* Either may have been removed by an earlier collision. */
+        if (o instanceof Collidable
+                && o.getParent() == this && other.getParent() == this)
+        {
+            ((Collidable) o).onCollide(other, tIndex);
+        }
+    }
+    
+    /** Only children whose bounds are on screen are drawn. */
+    @Override
+    protected ArrayList<ScnObj> onCreateChildRenderList()
+    {
+        flushMoves();
+        
+        if (quadTree != null)
+        {
+            quadTree.tune(TUNE_BUDGET_NANOS); /* does nothing unless adaptive */
+        }
+        
+        renderList.clear();
+        worldObjs.query(screenBounds, renderLister);
+        return renderList;
+    }
     
     @Override
     public float[] onCalculateProjTransform()
@@ -94,10 +369,10 @@ public class PlaneWorld extends ScnObj implements ScnObj.Camera
     }
     
     @Override
-    protected float[] onCalculateModelTransform()
+    protected void onCalculateModelTransform(float[] m)
     {
         /* Translate the world to view centroid. */
-        return worldTranslation;
+        System.arraycopy(worldTranslation, 0, m, 0, 4 * 4);
     }
     
     public Point3D getViewCentroid()
@@ -133,11 +408,44 @@ public class PlaneWorld extends ScnObj implements ScnObj.Camera
 //        Matrix.translateM(projection, 0, c.x, c.y, c.z); // TODO Move to world matrix.
         // TODO Player touch thresholds should use values related to the ortho matrix
         // values.
-        // TODO getScreenBounds() should take into account projection and world
-        // transform.
         
         Matrix.setIdentityM(worldTranslation, 0);
         Matrix.translateM(worldTranslation, 0, -c.x, -c.y, -c.z);
+        invalidateTransform();
+        
+        updateScreenBounds();
+    }
+    
+    /** Unprojects the corners of clip space through the projection and world
+     * transform to find the world area that is on screen.
+     */
+    private void updateScreenBounds()
+    {
+        Matrix.multiplyMM(viewProjection, 0, projection, 0, worldTranslation, 0);
+        if (!Matrix.invertM(invViewProjection, 0, viewProjection, 0))
+        {
+            return; /* degenerate viewport, keep the last bounds */
+        }
+        
+        float x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE,
+              x2 = -Float.MAX_VALUE, y2 = -Float.MAX_VALUE;
+        
+        for (int corner=0; corner<4; corner++)
+        {
+            clipCorner[0] = (corner & 1) == 0 ? -1.0f : 1.0f;
+            clipCorner[1] = (corner & 2) == 0 ? -1.0f : 1.0f;
+            clipCorner[2] = 0.0f;
+            clipCorner[3] = 1.0f;
+            Matrix.multiplyMV(worldCorner, 0, invViewProjection, 0, clipCorner, 0);
+            
+            final float x = worldCorner[0] / worldCorner[3];
+            final float y = worldCorner[1] / worldCorner[3];
+            x1 = Math.min(x1, x); y1 = Math.min(y1, y);
+            x2 = Math.max(x2, x); y2 = Math.max(y2, y);
+        }
+        
+        screenBounds.x1 = x1; screenBounds.y1 = y1;
+        screenBounds.x2 = x2; screenBounds.y2 = y2;
     }
     
     public Point2D getWorldForScreen(float x, float y)
@@ -157,11 +465,10 @@ public class PlaneWorld extends ScnObj implements ScnObj.Camera
         return new Point2D(location[0], location[1]);
     }
     
+    /** @return Answers the world area currently visible on screen. */
     public Bounds getScreenBounds()
     {
-        Point3D viewCentroid = getViewCentroid();
-        return new Bounds(viewCentroid.x - 100f, viewCentroid.x + 100f,
-                          viewCentroid.y - 100f, viewCentroid.y + 100f); // TODO
+        return screenBounds.copy();
     }
-
+    
 }
@@ -0,0 +1,263 @@
+package tbc.scene;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import android.opengl.Matrix;
+
+/** Carries the matrices of a draw down the scene tree. Rather than pushing,
+ * multiplying and popping GL's own matrix stacks for every scene object, the
+ * model-view and projection matrices are worked out on the CPU as the tree is
+ * walked. GL is only given a matrix, with one glLoadMatrixf, when an object is
+ * about to draw with a different one to that already loaded - so objects with
+ * identity transforms, and objects drawn one after another under the same
+ * parent's camera, cost no matrix calls at all.
+ * <p>
+ * The matrices start out as the identity at {@link #begin(GL10)}, whatever GL
+ * had before. Objects must leave GL's matrices and matrix mode as they find
+ * them when drawing.
+ */
+public class RenderContext
+{
+    private GL10 gl;
+    
+    /** The matrix mode GL is in, or -1 if not known. */
+    private int matrixMode = -1;
+    
+    private final MatrixStack modelView  = new MatrixStack(GL10.GL_MODELVIEW);
+    private final MatrixStack projection = new MatrixStack(GL10.GL_PROJECTION);
+    
+    private final RenderQueue queue = new RenderQueue(this);
+    
+    /** glLoadMatrixf calls made since begin. */
+    private int loadCount;
+    
+    /** Starts a draw. Both matrices are reset to the identity, and are loaded
+     * again before anything is drawn, as GL may have been given others since
+     * the last draw. */
+    public void begin(GL10 gl)
+    {
+        this.gl         = gl;
+        this.matrixMode = -1;
+        this.loadCount  = 0;
+        modelView.reset();
+        projection.reset();
+    }
+    
+    public GL10 getGL()
+    {
+        return gl;
+    }
+    
+    /** @return Answers the queue meshes are drawn through. */
+    public RenderQueue getQueue()
+    {
+        return queue;
+    }
+    
+    /** Draws whatever is still queued. Called once the whole scene has been
+     * walked. */
+    public void end()
+    {
+        queue.flush();
+    }
+    
+    /** Draws whatever is queued, under the projection in force now. */
+    void flush()
+    {
+        queue.flush();
+    }
+    
+    /** @return Answers how many matrices have been loaded into GL since the
+     * draw began. */
+    public int getLoadCount()
+    {
+        return loadCount;
+    }
+    
+    /** Multiplies the model-view matrix by `m`.
+     * @param identity Whether `m` is the identity, in which case no work is
+     * done beyond noting the push. */
+    void pushModelView(float[] m, boolean identity)
+    {
+        modelView.push(m, identity);
+    }
+    
+    void popModelView()
+    {
+        modelView.pop();
+    }
+    
+    /** Multiplies the projection matrix by `m`, which may be null if a camera
+     * leaves the projection as it is. */
+    void pushProjection(float[] m)
+    {
+        projection.push(m, m == null);
+    }
+    
+    void popProjection()
+    {
+        projection.pop();
+    }
+    
+    /** Brings GL's matrices up to date with ours, if they aren't already. */
+    void load()
+    {
+        projection.load();
+        modelView.load();
+        
+        if (matrixMode != GL10.GL_MODELVIEW)
+        {
+            gl.glMatrixMode(GL10.GL_MODELVIEW); /* as objects expect */
+            matrixMode = GL10.GL_MODELVIEW;
+        }
+    }
+    
+    /** Copies the model-view matrix in force into `out`.
+     * @return Answers a number identifying that matrix, for loadModelView. */
+    int copyModelView(float[] out, int offset)
+    {
+        return modelView.copyTop(out, offset);
+    }
+    
+    /** Loads a matrix copied by copyModelView, unless it is already loaded. */
+    void loadModelView(float[] m, int offset, int serial)
+    {
+        modelView.load(m, offset, serial);
+    }
+    
+    /** Brings GL's projection matrix up to date with ours, and leaves GL in
+     * model-view mode. */
+    void loadProjection()
+    {
+        projection.load();
+        
+        if (matrixMode != GL10.GL_MODELVIEW)
+        {
+            gl.glMatrixMode(GL10.GL_MODELVIEW);
+            matrixMode = GL10.GL_MODELVIEW;
+        }
+    }
+    
+    /** @return Answers whether `m` is exactly the identity. */
+    static boolean isIdentity(float[] m)
+    {
+        for (int i=0; i<4*4; i++)
+        {
+            if (m[i] != (i % 5 == 0 ? 1.0f : 0.0f))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** One of the two matrix stacks. A push of the identity takes up a depth
+     * but no matrix, so that the matrix in force at that depth is still the
+     * one GL has loaded.
+     */
+    private class MatrixStack
+    {
+        private final int mode;
+        
+        /** One matrix per level, one after another. */
+        private float[] matrices = new float[8 * 4 * 4];
+        
+        /** For each depth, the level whose matrix is in force there. The depth
+         * itself, unless an identity was pushed. */
+        private int[] levels = new int[8];
+        
+        /** For each level, a number that changes whenever the matrix there is
+         * written, so that a sibling's matrix isn't mistaken for the one
+         * loaded. */
+        private int[] serials = new int[8];
+        
+        private int depth;
+        private int nextSerial;
+        private int loadedSerial;
+        
+        private MatrixStack(int mode)
+        {
+            this.mode = mode;
+        }
+        
+        private void reset()
+        {
+            depth     = 0;
+            levels[0] = 0;
+            Matrix.setIdentityM(matrices, 0);
+            serials[0] = nextSerial++;
+            
+            loadedSerial = nextSerial++; /* matches nothing */
+        }
+        
+        private void push(float[] m, boolean identity)
+        {
+            if (depth + 1 == levels.length)
+            {
+                grow();
+            }
+            
+            final int parent = levels[depth];
+            depth++;
+            
+            if (identity)
+            {
+                levels[depth] = parent;
+            }
+            else
+            {
+                Matrix.multiplyMM(matrices, depth * 4 * 4, matrices, parent * 4 * 4, m, 0);
+                levels[depth]  = depth;
+                serials[depth] = nextSerial++;
+            }
+        }
+        
+        private void pop()
+        {
+            depth--;
+        }
+        
+        private void load()
+        {
+            final int level = levels[depth];
+            load(matrices, level * 4 * 4, serials[level]);
+        }
+        
+        private void load(float[] m, int offset, int serial)
+        {
+            if (serial != loadedSerial)
+            {
+                if (matrixMode != mode)
+                {
+                    gl.glMatrixMode(mode);
+                    matrixMode = mode;
+                }
+                gl.glLoadMatrixf(m, offset);
+                loadedSerial = serial;
+                loadCount++;
+            }
+        }
+        
+        private int copyTop(float[] out, int offset)
+        {
+            final int level = levels[depth];
+            System.arraycopy(matrices, level * 4 * 4, out, offset, 4 * 4);
+            return serials[level];
+        }
+        
+        private void grow()
+        {
+            float[] m = new float[matrices.length * 2];
+            System.arraycopy(matrices, 0, m, 0, matrices.length);
+            matrices = m;
+            
+            int[] l = new int[levels.length * 2];
+            System.arraycopy(levels, 0, l, 0, levels.length);
+            levels = l;
+            
+            int[] s = new int[serials.length * 2];
+            System.arraycopy(serials, 0, s, 0, serials.length);
+            serials = s;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package tbc.scene;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import tbc.util.Grow;
+
+/** Collects the meshes scene objects want drawn, and draws them together in
+ * an order that keeps GL state changes to a minimum. Each draw is recorded
+ * with the model-view matrix in force when it was queued and a sort key made
+ * of, most significant first, the mesh, the state it needs, and its depth.
+ * When the queue is flushed the keys are radix sorted, so that all draws of a
+ * mesh come together, nearest first, and the vertex arrays, front face and
+ * matrix are only given to GL when they differ from the draw before.
+ * <p>
+ * A queue is flushed when the camera whose projection its draws were queued
+ * under finishes drawing, and at the end of the scene. Queued meshes are drawn
+ * after anything drawn directly by the objects under that camera.
+ */
+public class RenderQueue
+{
+    /* Key layout: 16 bits of mesh id, 3 of state, 12 of depth. This keeps keys
+     * positive as ints. Depth only orders draws of the same mesh, so it can
+     * be coarse - 12 bits keeps the float's sign, exponent and top 3 bits of
+     * mantissa. */
+    private static final int MESH_SHIFT  = 15;
+    private static final int MESH_MASK   = 0xFFFF;
+    private static final int STATE_SHIFT = 12;
+    private static final int DEPTH_MASK  = 0xFFF;
+    
+    /* State bits. */
+    private static final int STATE_CW = 1;
+    
+    private final RenderContext rc;
+    
+    private int count;
+    
+    /** Sort key in the high 32 bits and draw index in the low 32. */
+    private long[] keys    = new long[0];
+    private long[] keysTmp = new long[0];
+    
+    private int[] radixCounts = new int[256];
+    
+    /* Per draw, indexed as queued. */
+    private Mesh[]  meshes   = new Mesh[0];
+    private float[] matrices = new float[0];
+    private int[]   serials  = new int[0];
+    
+    /** Draw calls and mesh binds made by the last flush. */
+    private int drawCount;
+    private int bindCount;
+    
+    RenderQueue(RenderContext rc)
+    {
+        this.rc = rc;
+    }
+    
+    /** Queues `mesh` to be drawn with the current model-view matrix. */
+    public void add(Mesh mesh)
+    {
+        if (meshes.length == count)
+        {
+            Mesh[] grown = new Mesh[Math.max(count * 2, 8)];
+            System.arraycopy(meshes, 0, grown, 0, count);
+            meshes = grown;
+        }
+        keys     = Grow.longs(keys, count + 1);
+        keysTmp  = Grow.longs(keysTmp, count + 1);
+        matrices = Grow.floats(matrices, (count + 1) * 4 * 4);
+        serials  = Grow.ints(serials, count + 1);
+        
+        final int offset = count * 4 * 4;
+        serials[count] = rc.copyModelView(matrices, offset);
+        meshes[count]  = mesh;
+        
+        final int key = sortKey(mesh.getId(), mesh.getFrontFace(), matrices[offset + 14]);
+        keys[count] = ((long) key << 32) | count;
+        count++;
+    }
+    
+    /** @return Answers the key a draw of the mesh with front face `frontFace`
+     * at eye space depth `z` is sorted by. Keys are never negative. */
+    public static int sortKey(int meshId, int frontFace, float z)
+    {
+        final int state = frontFace == GL10.GL_CW ? STATE_CW : 0;
+        return ((meshId & MESH_MASK) << MESH_SHIFT)
+             | (state << STATE_SHIFT)
+             | depthKey(z);
+    }
+    
+    /** @return Answers 12 bits that sort larger eye space z - nearer the
+     * viewer - first. */
+    private static int depthKey(float z)
+    {
+        /* Flip the bits of floats so that they order as unsigned ints. */
+        int bits = Float.floatToIntBits(z);
+        bits = bits < 0 ? ~bits : bits | 0x80000000;
+        return DEPTH_MASK - (bits >>> 20);
+    }
+    
+    public int size()
+    {
+        return count;
+    }
+    
+    /** @return Answers how many meshes the last flush drew. */
+    public int getDrawCount()
+    {
+        return drawCount;
+    }
+    
+    /** @return Answers how many times the last flush pointed GL at a mesh's
+     * arrays. */
+    public int getBindCount()
+    {
+        return bindCount;
+    }
+    
+    /** Draws everything queued, under the current projection, and empties the
+     * queue. */
+    void flush()
+    {
+        drawCount = 0;
+        bindCount = 0;
+        if (count == 0)
+        {
+            return;
+        }
+        
+        radixSortByKey();
+        rc.loadProjection();
+        
+        final GL10 gl = rc.getGL();
+        Mesh lastMesh  = null;
+        int  lastFront = -1;
+        
+        for (int i=0; i<count; i++)
+        {
+            final int d = (int) keys[i];
+            final Mesh mesh = meshes[d];
+            
+            if (mesh.getFrontFace() != lastFront)
+            {
+                lastFront = mesh.getFrontFace();
+                gl.glFrontFace(lastFront);
+            }
+            if (mesh != lastMesh)
+            {
+                mesh.bind(gl);
+                lastMesh = mesh;
+                bindCount++;
+            }
+            
+            rc.loadModelView(matrices, d * 4 * 4, serials[d]);
+            mesh.draw(gl);
+            drawCount++;
+            
+            meshes[d] = null;
+        }
+        
+        count = 0;
+    }
+    
+    /** A stable least significant digit radix sort on the key half, a byte
+     * at a time. Passes where every key has the same byte are skipped. */
+    private void radixSortByKey()
+    {
+        for (int shift=32; shift<64; shift+=8)
+        {
+            final int[] counts = radixCounts;
+            for (int i=0; i<256; i++)
+            {
+                counts[i] = 0;
+            }
+            for (int i=0; i<count; i++)
+            {
+                counts[(int) (keys[i] >>> shift) & 0xFF]++;
+            }
+            if (counts[(int) (keys[0] >>> shift) & 0xFF] == count)
+            {
+                continue;
+            }
+            
+            int total = 0;
+            for (int i=0; i<256; i++)
+            {
+                final int c = counts[i];
+                counts[i] = total;
+                total += c;
+            }
+            for (int i=0; i<count; i++)
+            {
+                keysTmp[counts[(int) (keys[i] >>> shift) & 0xFF]++] = keys[i];
+            }
+            
+            long[] swap = keys;
+            keys    = keysTmp;
+            keysTmp = swap;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.pm.ActivityInfo;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 
@@ -18,6 +19,10 @@ public class SceneActivity extends Activity
     
     private static final int PAUSE_KEY = KeyEvent.KEYCODE_CALL;
     
+    /** How many frames the dropped GL call count is averaged over before
+     * being logged. */
+    private static final int DROPPED_LOG_FRAMES = 300;
+    
     @Override
     public void onCreate(Bundle savedInstanceState) 
     {
@@ -93,6 +98,11 @@ public class SceneActivity extends Activity
         
         class SceneRenderer implements GLSurfaceView.Renderer 
         {
+            /** Made afresh with each context, as GL state doesn't outlive it. */
+            private CachingGL cachingGL;
+            
+            private int frameCount = 0;
+            
             public int[] getConfigSpec() 
             {
                 return new int[] 
@@ -110,7 +120,14 @@ public class SceneActivity extends Activity
             public void onDrawFrame(GL10 gl)
             {
                 scene.update();
-                scene.draw(gl, ScnObj.DETAIL_DEBUG | ScnObj.DETAIL_NORM);
+                scene.draw(cachingGL, ScnObj.DETAIL_DEBUG | ScnObj.DETAIL_NORM);
+                
+                if (++frameCount % DROPPED_LOG_FRAMES == 0)
+                {
+                    Log.i("Scene", "GL calls dropped per frame: "
+                            + cachingGL.getDroppedCount() / (float) DROPPED_LOG_FRAMES);
+                    cachingGL.resetDroppedCount();
+                }
             }
 
             @Override
@@ -123,6 +140,10 @@ public class SceneActivity extends Activity
             @Override
             public void onSurfaceCreated(GL10 gl, EGLConfig config)
             {
+                /* Set up through the cache, so that it knows what is set. */
+                cachingGL = new CachingGL(gl);
+                gl = cachingGL;
+                
                 /*
                  * By default, OpenGL enables features that improve quality
                  * but reduce performance. One might want to tweak that
@@ -29,6 +29,27 @@ public abstract class ScnObj
     
     private VolumeChangedListener volumeChangedListener;
     
+    private int     spatialHandle      = -1; /* set by the PlaneWorld indexing us */
+    
+    private boolean volumeDirty        = false; /* listener told, not yet flushed */
+    
+    /** Relative to our parent, as filled in by onCalculateModelTransform. */
+    private float[] localTransform     = new float[4 * 4];
+    
+    /** Relative to our nearest Camera ancestor. */
+    private float[] worldTransform     = new float[4 * 4];
+    
+    private boolean localDirty         = true;
+    
+    private boolean localIdentity      = false; /* so drawing can skip it */
+    
+    private boolean willNotDraw        = false; /* onDraw and onDrawEnd skipped */
+    
+    /** Whenever set, it is set for all our descendants too. */
+    private boolean worldDirty         = true;
+    
+    private RenderContext renderContext; /* made when first drawn from GL */
+    
     public void addChild(ScnObj o)
     {
         if (o.parent != null)
@@ -38,6 +59,8 @@ public abstract class ScnObj
         
         o.parent = this;
         children.add(o);
+        o.invalidateVolume(); /* now placed relative to us */
+        o.invalidateWorldTransform();
         
         tellAncestorsAdded(this, o);
     }
@@ -47,8 +70,8 @@ public abstract class ScnObj
      */
     private void tellAncestorsAdded(ScnObj from, ScnObj o)
     {
-        ScnObj p = from;
-        while ((p = p.parent) != null)
+        /* `from` is the parent `o` was attached to, so it is told too. */
+        for (ScnObj p = from; p != null; p = p.parent)
         {
             p.onDescendantAdded(o);
         }
@@ -63,6 +86,7 @@ public abstract class ScnObj
     {
         children.remove(o);
         o.parent = null;
+        o.invalidateWorldTransform();
         
         tellAncestorsRemoved(this, o);
     }
@@ -72,8 +96,7 @@ public abstract class ScnObj
      */
     private void tellAncestorsRemoved(ScnObj from, ScnObj o)
     {
-        ScnObj p = from;
-        while ((p = p.parent) != null)
+        for (ScnObj p = from; p != null; p = p.parent)
         {
             p.onDescendantRemoved(o);
         }
@@ -102,9 +125,45 @@ public abstract class ScnObj
         this.volumeChangedListener = vcl;
     }
     
+    /** The handle of this object in the spatial index of the PlaneWorld it is
+     * in, or -1 if it isn't in one. */
+    int getSpatialHandle()
+    {
+        return spatialHandle;
+    }
+    
+    void setSpatialHandle(int h)
+    {
+        this.spatialHandle = h;
+    }
+    
+    /** Whether the volume changed listener has been told of a change that it
+     * hasn't yet acted on. While set, further changes aren't passed on. */
+    boolean isVolumeDirty()
+    {
+        return volumeDirty;
+    }
+    
+    void setVolumeDirty(boolean dirty)
+    {
+        this.volumeDirty = dirty;
+    }
+    
+    /** @return Answers our position relative to our nearest Camera ancestor -
+     * our place in the world we are in. */
     public Point3D getAbsolutePos()
     {
-        return parent.relPos.add(relPos);
+        return getAbsolutePos(new Point3D(0.0f, 0.0f, 0.0f));
+    }
+    
+    /** As {@link #getAbsolutePos()}, but fills in and answers `out`. */
+    public Point3D getAbsolutePos(Point3D out)
+    {
+        final float[] w = getWorldTransform();
+        out.x = w[12];
+        out.y = w[13];
+        out.z = w[14];
+        return out;
     }
     
     public Point3D getRelativePos()
@@ -115,6 +174,7 @@ public abstract class ScnObj
     public void setRelativePos(Point3D p)
     {
         this.relPos = p;
+        invalidateTransform();
     }
     
     public Volume getVolume()
@@ -122,17 +182,22 @@ public abstract class ScnObj
         if (volume == null)
         {
             volume = onCalculateVolume();
-            if (volumeChangedListener != null)
-            {
-                volumeChangedListener.tellVolumeChanged(this, volume);
-            }
         }
         return volume;
     }
     
+    /** Drops the cached volume, so it is recalculated the next time it is
+     * asked for. The volume changed listener is told the first time this
+     * happens after it last cleared the dirty flag, and no more until then.
+     */
     public void invalidateVolume()
     {
         volume = null;
+        if (volumeChangedListener != null && !volumeDirty)
+        {
+            volumeDirty = true;
+            volumeChangedListener.tellVolumeChanged(this);
+        }
     }
     
     public Scene getScene()
@@ -180,15 +245,87 @@ public abstract class ScnObj
     public void moveToRelativePos(Point3D p)
     {
         relPos = p.copy();
+        invalidateTransform();
         invalidateVolume();
     }
     
     public void moveToAbsolutePos(Point3D p)
     {
         relPos = p.subtract(parent.getAbsolutePos());
+        invalidateTransform();
         invalidateVolume();
     }
     
+    /** @return Answers the transform from our space to our parent's, which
+     * is only recalculated after {@link #invalidateTransform()}. Not to be
+     * altered. */
+    public float[] getLocalTransform()
+    {
+        if (localDirty)
+        {
+            onCalculateModelTransform(localTransform);
+            localIdentity = RenderContext.isIdentity(localTransform);
+            localDirty    = false;
+        }
+        return localTransform;
+    }
+    
+    /** @return Answers the transform from our space to that of our nearest
+     * Camera ancestor, or of the root if there is none. A Camera is the origin
+     * of the world below it, so its own world transform is the identity. Not
+     * to be altered.
+     */
+    public float[] getWorldTransform()
+    {
+        if (worldDirty)
+        {
+            if (this instanceof Camera)
+            {
+                Matrix.setIdentityM(worldTransform, 0);
+            }
+            else if (parent == null)
+            {
+                System.arraycopy(getLocalTransform(), 0, worldTransform, 0, 4 * 4);
+            }
+            else
+            {
+                Matrix.multiplyMM(worldTransform, 0, parent.getWorldTransform(), 0,
+                                  getLocalTransform(), 0);
+            }
+            worldDirty = false;
+        }
+        return worldTransform;
+    }
+    
+    /** Marks our model transform for recalculation, and the world transforms
+     * of all our descendants along with it. Subclasses whose transforms
+     * depend on more than their relative position call this when that changes.
+     */
+    protected void invalidateTransform()
+    {
+        localDirty = true;
+        invalidateWorldTransform();
+    }
+    
+    /** Pushes a changed world transform down the tree. Descendants move with
+     * us, so their volumes are invalidated too. */
+    private void invalidateWorldTransform()
+    {
+        if (worldDirty || this instanceof Camera)
+        {
+            return; /* descendants already dirty, or relative to the camera */
+        }
+        worldDirty = true;
+        
+        final int count = children.size();
+        for (int i=0; i<count; i++)
+        {
+            ScnObj child = children.get(i);
+            child.invalidateVolume();
+            child.invalidateWorldTransform();
+        }
+    }
+    
     public void setCreationTime(long t)
     {
         this.creationTime = t;
@@ -199,44 +336,77 @@ public abstract class ScnObj
         return creationTime;
     }
     
+    /** Draws this object and its descendants, with GL's matrices as the
+     * identity to begin with. The render context is made on the first draw
+     * and reused after that. */
     public void draw(GL10 gl, int detail)
     {
-        boolean isCamera = this instanceof Camera;
+        if (renderContext == null)
+        {
+            renderContext = new RenderContext();
+        }
+        renderContext.begin(gl);
+        draw(renderContext, detail);
+        renderContext.end();
+    }
+    
+    /** Draws this object and its descendants. The matrices are accumulated
+     * in `rc`, and only loaded into GL just before something could draw with
+     * them.
+     */
+    void draw(RenderContext rc, int detail)
+    {
+        final boolean isCamera = this instanceof Camera;
         
         /* Set up the projection matrix if this scn obj alters it. */
         if (isCamera)
         {
-            gl.glMatrixMode(GL10.GL_PROJECTION);
-            gl.glPushMatrix();
-            gl.glMultMatrixf(((Camera)this).onCalculateProjTransform(), 0);
+            rc.flush(); /* what is queued was queued under the old one */
+            rc.pushProjection(((Camera)this).onCalculateProjTransform());
         }
         
         /* Set up the model matrix so the onDraw can draw in the correct
          * place.
          */
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glPushMatrix();
-        gl.glMultMatrixf(onCalculateModelTransform(), 0);
+        final float[] local = getLocalTransform();
+        rc.pushModelView(local, localIdentity);
         
-        onDraw(gl, detail);
+        onQueue(rc.getQueue(), detail);
         
-        for (ScnObj so : onCreateChildRenderList())
+        final GL10 gl = rc.getGL();
+        if (!willNotDraw)
         {
+            rc.load();
+            onDraw(gl, detail);
+        }
+        
+        final ArrayList<ScnObj> renderList = onCreateChildRenderList();
+        final int count = renderList.size();
+        for (int i=0; i<count; i++)
+        {
+            ScnObj so = renderList.get(i);
             if (onCheckWillDrawChild(so))
             {
-                so.draw(gl, detail);
+                so.draw(rc, detail);
             }
         }
         
-        onDrawEnd(gl, detail);
+        if (isCamera)
+        {
+            rc.flush();
+        }
+        
+        if (!willNotDraw)
+        {
+            rc.load(); /* children may have loaded their own */
+            onDrawEnd(gl, detail);
+        }
         
-        gl.glMatrixMode(GL10.GL_MODELVIEW);
-        gl.glPopMatrix();
+        rc.popModelView();
         
         if (isCamera)
         {
-            gl.glMatrixMode(GL10.GL_PROJECTION);
-            gl.glPopMatrix();
+            rc.popProjection();
         }
     }
     
@@ -267,8 +437,31 @@ public abstract class ScnObj
         return children;
     }
     
+    /** Queue meshes to be drawn, with the model matrix as it will be for
+     * onDraw. Queued meshes are drawn later, sorted with those of other
+     * objects, so anything they need must be part of the mesh. Called before
+     * onDraw.
+     */
+    protected void onQueue(RenderQueue q, int detail)
+    {
+    }
+    
+    /** Set by objects that only draw through {@link #onQueue}, so that
+     * matrices aren't loaded for onDraw and onDrawEnd, which aren't called.
+     */
+    protected void setWillNotDraw(boolean willNotDraw)
+    {
+        this.willNotDraw = willNotDraw;
+    }
+    
+    public boolean willNotDraw()
+    {
+        return willNotDraw;
+    }
+    
     /** Draw the object. Model matrix is set up such that origin is the centre
      * of where this object should render. Called before children are drawn.
+     * The matrices and matrix mode must be left as they are found.
      */
     protected void onDraw(GL10 gl, int detail)
     {
@@ -290,12 +483,14 @@ public abstract class ScnObj
         return new Volume();
     }
     
-    protected float[] onCalculateModelTransform()
+    /** Fills `m` with the transform from this object's space to its parent's.
+     * Only called when the transform has been invalidated, by a move or by
+     * {@link #invalidateTransform()}.
+     */
+    protected void onCalculateModelTransform(float[] m)
     {
-        float[] m = new float[4*4];
         Matrix.setIdentityM(m, 0);
         Matrix.translateM(m, 0, relPos.x, relPos.y, relPos.z);
-        return m;
     }
     
     public interface Camera
@@ -313,8 +508,21 @@ public abstract class ScnObj
         public abstract void onPostUpdate(long tDelta, long tIndex);
     }
     
+    /** Implemented by children of a {@link PlaneWorld} that want to know when
+     * their bounds overlap those of another child.
+     */
+    public interface Collidable
+    {
+        /** Called at most once per update for each pair of overlapping world
+         * children. `other` may or may not be collidable itself.
+         */
+        public void onCollide(ScnObj other, long tIndex);
+    }
+    
     public interface VolumeChangedListener
     {
-        public void tellVolumeChanged(ScnObj o, Volume v);
+        /** Called when the volume of `o` is invalidated. Its new volume isn't
+         * worked out until something asks for it. */
+        public void tellVolumeChanged(ScnObj o);
     }
 }
@@ -1,51 +1,42 @@
 package tbc.scene.tidbits;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.util.HashMap;
 
 import javax.microedition.khronos.opengles.GL10;
 
+import tbc.scene.Mesh;
+import tbc.scene.RenderQueue;
 import tbc.scene.ScnObj;
 
 /**
  * A bobin renders a bunch of vertices from hand-defined vertex and colour arrays.
+ * The arrays are the same for every bobin of a class, so each class makes its
+ * mesh once and all its bobins share it.
  */
 public abstract class Bobin extends ScnObj
 {
     public static final int one = 0x10000;
     
-    private IntBuffer vertBuff;
-    private IntBuffer colsBuff;
+    private static HashMap<Class<?>, Mesh> meshes = new HashMap<Class<?>, Mesh>();
     
-    private int vertCount;
+    private Mesh mesh;
     
     public Bobin()
     {
-        int[] verts = getVerts();
-        int[] cols = getColors();
-        vertCount = verts.length / 3;
+        setWillNotDraw(true); /* only queues its mesh */
         
-        ByteBuffer vertsB = ByteBuffer.allocateDirect(verts.length * 4);
-        vertsB.order(ByteOrder.nativeOrder());
-        vertBuff = vertsB.asIntBuffer();
-        vertBuff.put(verts);
-        vertBuff.position(0);
-        
-        ByteBuffer colsB = ByteBuffer.allocateDirect(cols.length * 4);
-        colsB.order(ByteOrder.nativeOrder());
-        colsBuff = colsB.asIntBuffer();
-        colsBuff.put(cols);
-        colsBuff.position(0);
+        mesh = meshes.get(getClass());
+        if (mesh == null)
+        {
+            mesh = new Mesh(getVerts(), getColors(), GL10.GL_CW);
+            meshes.put(getClass(), mesh);
+        }
     }
     
     @Override
-    protected void onDraw(GL10 gl, int detail)
+    protected void onQueue(RenderQueue q, int detail)
     {
-        gl.glFrontFace(gl.GL_CW);
-        gl.glVertexPointer(3, gl.GL_FIXED, 0, vertBuff);
-        gl.glColorPointer(4, gl.GL_FIXED, 0, colsBuff);
-        gl.glDrawArrays(gl.GL_TRIANGLES, 0, vertCount);
+        q.add(mesh);
     }
     
     public abstract int[] getVerts();
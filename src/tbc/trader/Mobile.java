@@ -1,6 +1,5 @@
 package tbc.trader;
 
-import android.opengl.Matrix;
 import android.util.Log;
 
 import tbc.data.Constants;
@@ -18,7 +17,8 @@ import tbc.trader.mobiles.Ship;
  * parent. The root node of the partial tree is a Mobile object. Underneeth that
  * the tree differs depending on the mobile type.
  */
-public abstract class Mobile extends ScnObj implements ScnObj.Updatable
+public abstract class Mobile extends ScnObj implements ScnObj.Updatable,
+                                                      ScnObj.Collidable
 {
     private Info.MobileType mobileType;
     
@@ -113,22 +113,33 @@ public abstract class Mobile extends ScnObj implements ScnObj.Updatable
         Point3D pos = getRelativePos();
         pos.x += (mul * vel.x);
         pos.y += (mul * vel.y);
-        setRelativePos(pos);
+        moveToRelativePos(pos);
     }
     
     @Override
     public void onPostUpdate(long tDelta, long tIndex)
     {
-        // TODO Do collision detection here.
+        /* Found once for all mobiles, by whichever asks first. */
+        planeWorld.updateCollisions(tIndex);
     }
     
     @Override
-    protected float[] onCalculateModelTransform()
+    public void onCollide(ScnObj other, long tIndex)
     {
-        float degs = -(angleRads * Constants.RAD_TO_DEG);
-        float[] m = super.onCalculateModelTransform(); /* translation */
-        Matrix.rotateM(m, 0, degs, 0.0f, 0.0f, 1.0f); /* rotation */
-        return m;
+    }
+    
+    @Override
+    protected void onCalculateModelTransform(float[] m)
+    {
+        super.onCalculateModelTransform(m); /* translation */
+        
+        /* Rotating about z after a translation only changes the top left of
+         * the matrix, so set it directly rather than multiply. Clockwise, as
+         * angles go. */
+        final float c = (float) Math.cos(-angleRads);
+        final float s = (float) Math.sin(-angleRads);
+        m[0] = c; m[4] = -s;
+        m[1] = s; m[5] = c;
     }
     
     @Override
@@ -184,7 +195,7 @@ public abstract class Mobile extends ScnObj implements ScnObj.Updatable
     public void setAngle(float a)
     {
         angleRads = normAng(a);
-        
+        invalidateTransform();
     }
     
     public static float normAng(float a)
@@ -228,5 +239,5 @@ public abstract class Mobile extends ScnObj implements ScnObj.Updatable
         pw.addChild(s);
         return s;
     }
-
+    
 }
@@ -1,5 +1,7 @@
 package tbc.trader;
 
+import java.util.ArrayList;
+
 import android.content.Context;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
@@ -52,14 +54,16 @@ public class TestActivity extends SceneActivity
         playerShip.setWeapon(0, new Item(context.getInfoSet().get("weapon/pow")));
         playerShip.setWeaponSlotPrepared(0, true);
         
+        ArrayList<Cube> cubes = new ArrayList<Cube>();
         for (int i=0; i<150; i++) 
         {
         	Cube c = Cube.arbitrary(Gen.g());
         	Point3D p = Point3D.arbitrary(Gen.g());
         	p.z = 0.0f;
         	c.setRelativePos(p);
-        	world.addChild(c);
+        	cubes.add(c);
         }
+        world.addChildren(cubes);
         
         return s;
     }
@@ -1,12 +1,13 @@
 package tbc.trader.junk;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
-
 import javax.microedition.khronos.opengles.GL10;
 
+import android.opengl.Matrix;
+
 import tbc.data.spatial.Point3D;
+import tbc.data.spatial.Volume;
+import tbc.scene.Mesh;
+import tbc.scene.RenderQueue;
 import tbc.scene.ScnObj;
 import tbc.supercheck.Gen;
 
@@ -15,9 +16,24 @@ public class Cube extends ScnObj
     
 	public static final String PARAM_MAX_DI = "Cube.MAX_DI";
 	
+    /** A cube from -1 to 1 on each axis, shared by all cubes and scaled to
+     * each one's diameter by its model transform. */
+    private static Mesh unitMesh;
+    
     public Cube(float diameter)
     {
-        int one = (int) (0x10000 * diameter);
+        this.diameter = diameter;
+        setWillNotDraw(true); /* only queues its mesh */
+        
+        if (unitMesh == null)
+        {
+            unitMesh = makeUnitMesh();
+        }
+    }
+    
+    private static Mesh makeUnitMesh()
+    {
+        int one = 0x10000;
         int vertices[] = {
                 -one, -one, -one,
                 one, -one, -one,
@@ -48,44 +64,36 @@ public class Cube extends ScnObj
                 4, 7, 6,    4, 6, 5,
                 3, 0, 1,    3, 1, 2
         };
-
-        // Buffers to be passed to gl*Pointer() functions
-        // must be direct, i.e., they must be placed on the
-        // native heap where the garbage collector cannot
-        // move them.
-        //
-        // Buffers with multi-byte datatypes (e.g., short, int, float)
-        // must have their byte order set to native order
-
-        ByteBuffer vbb = ByteBuffer.allocateDirect(vertices.length*4);
-        vbb.order(ByteOrder.nativeOrder());
-        mVertexBuffer = vbb.asIntBuffer();
-        mVertexBuffer.put(vertices);
-        mVertexBuffer.position(0);
-
-        ByteBuffer cbb = ByteBuffer.allocateDirect(colors.length*4);
-        cbb.order(ByteOrder.nativeOrder());
-        mColorBuffer = cbb.asIntBuffer();
-        mColorBuffer.put(colors);
-        mColorBuffer.position(0);
-
-        mIndexBuffer = ByteBuffer.allocateDirect(indices.length);
-        mIndexBuffer.put(indices);
-        mIndexBuffer.position(0);
+        
+        return new Mesh(vertices, colors, indices, GL10.GL_CW);
     }
-
+    
     @Override
-    protected void onDraw(GL10 gl, int detail)
+    protected void onQueue(RenderQueue q, int detail)
     {
-        gl.glFrontFace(gl.GL_CW);
-        gl.glVertexPointer(3, gl.GL_FIXED, 0, mVertexBuffer);
-        gl.glColorPointer(4, gl.GL_FIXED, 0, mColorBuffer);
-        gl.glDrawElements(gl.GL_TRIANGLES, 36, gl.GL_UNSIGNED_BYTE, mIndexBuffer);
+        q.add(unitMesh);
+    }
+    
+    @Override
+    protected void onCalculateModelTransform(float[] m)
+    {
+        super.onCalculateModelTransform(m); /* translation */
+        Matrix.scaleM(m, 0, diameter, diameter, diameter);
+    }
+    
+    @Override
+    protected Volume onCalculateVolume()
+    {
+        /* Vertices run from -diameter to diameter on each axis. */
+        Point3D pos = getAbsolutePos();
+        return new Volume(pos.x - diameter, pos.x + diameter,
+                          pos.y - diameter, pos.y + diameter,
+                          pos.z - diameter, pos.z + diameter);
     }
     
     public static Cube arbitrary(Gen gen) {
     	int maxDi = gen.getParams().getInt(PARAM_MAX_DI, 1000);
-    	
+    
     	switch (gen.select(0.1f, 0.9f)) {
     	case 0:
     		return new Cube(0.0f);
@@ -93,8 +101,6 @@ public class Cube extends ScnObj
     		return new Cube(gen.arbFloat(maxDi));
     	}
     }
-
-    private IntBuffer   mVertexBuffer;
-    private IntBuffer   mColorBuffer;
-    private ByteBuffer  mIndexBuffer;
+    
+    private float       diameter;
 }
@@ -1,6 +1,7 @@
 package tbc.trader.mobiles;
 
 import tbc.scene.PlaneWorld;
+import tbc.scene.ScnObj;
 import tbc.trader.GameContext;
 import tbc.trader.Info;
 import tbc.trader.Medium;
@@ -30,4 +31,15 @@ public class Bullet extends Mobile
             getWorld().removeChild(this);
         }
     }
+    
+    @Override
+    public void onCollide(ScnObj other, long tIndex)
+    {
+        /* Bullets pass through mobiles, including the one that fired them,
+         * but stop at scenery. */
+        if (!(other instanceof Mobile) && getParent() != null)
+        {
+            getWorld().removeChild(this);
+        }
+    }
 }
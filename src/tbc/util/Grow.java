@@ -0,0 +1,52 @@
+package tbc.util;
+
+/** 
+ * Helpers for growing primitive arrays used as backing storage. Each answers
+ * an array at least minLength long, holding the contents of the one passed
+ * in. The same array is answered if it is already long enough; otherwise
+ * capacity is doubled, to keep the cost of growth amortised.
+ */
+public final class Grow
+{
+    private Grow()
+    {
+    }
+    
+    private static int newLength(int length, int minLength)
+    {
+        int n = Math.max(length * 2, 8);
+        return n < minLength ? minLength : n;
+    }
+    
+    public static float[] floats(float[] a, int minLength)
+    {
+        if (a.length >= minLength) return a;
+        float[] grown = new float[newLength(a.length, minLength)];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+    
+    public static int[] ints(int[] a, int minLength)
+    {
+        if (a.length >= minLength) return a;
+        int[] grown = new int[newLength(a.length, minLength)];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+    
+    public static long[] longs(long[] a, int minLength)
+    {
+        if (a.length >= minLength) return a;
+        long[] grown = new long[newLength(a.length, minLength)];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+    
+    public static Object[] objects(Object[] a, int minLength)
+    {
+        if (a.length >= minLength) return a;
+        Object[] grown = new Object[newLength(a.length, minLength)];
+        System.arraycopy(a, 0, grown, 0, a.length);
+        return grown;
+    }
+}
@@ -11,6 +11,8 @@ public class RunSuperCheck
     public static void main(String[] args) {
         new TestRun().with(getTestParams())
                      .runOn(tbc.test.data.spatial.Invariants.class, 10000);
+        new TestRun().with(getTestParams())
+                     .runOn(tbc.test.scene.Invariants.class, 10000);
     }
     
     public static ParameterBunch getTestParams()
@@ -1,11 +1,32 @@
 package tbc.test.data.spatial;
 
+import java.util.Arrays;
+
+import tbc.data.spatial.AabbTree;
 import tbc.data.spatial.Bounds;
+import tbc.data.spatial.DensityVisitor;
+import tbc.data.spatial.HashGrid;
+import tbc.data.spatial.LinearQuadTree;
+import tbc.data.spatial.Octree;
+import tbc.data.spatial.PackedQuadTree;
 import tbc.data.spatial.Point2D;
 import tbc.data.spatial.Point3D;
+import tbc.data.spatial.QuadTree;
+import tbc.data.spatial.SnapshotQuadTree;
+import tbc.data.spatial.SpatialIndex;
+import tbc.data.spatial.Sector;
+import tbc.data.spatial.SpatialPairVisitor;
+import tbc.data.spatial.SpatialVisitor;
+import tbc.data.spatial.SweepAndPrune;
+import tbc.data.spatial.Volume;
+import tbc.data.spatial.VolumeVisitor;
+import tbc.supercheck.Gen;
 
 public class Invariants
 {
+    /** Octree's MAX_DEPTH, the depth of nodes that never split. */
+    private static final int OT_MAX_DEPTH = 16;
+    
     /* Point2D */
     
     public static boolean prop_p2dAddSubEquality(Point2D one) {
@@ -77,7 +98,805 @@ public class Invariants
     public static boolean prop_bndsEnlargeSizeMatch(Bounds one, float two) {
         Bounds oneC = one.copy();
         oneC.enlarge(two);
-        return one.getWidth() == oneC.getWidth() + two
-            && one.getHeight() == oneC.getHeight() + two;
+        
+        /* Rounding grows with the coordinates and the enlarged size. */
+        float scale = Math.abs(one.x1) + Math.abs(one.x2) + Math.abs(one.y1) + Math.abs(one.y2)
+                    + Math.abs(two) * (one.getWidth() + one.getHeight());
+        return closeTo(oneC.getWidth(), one.getWidth() * two, scale)
+            && closeTo(oneC.getHeight(), one.getHeight() * two, scale)
+            && closeTo(oneC.x1 + oneC.x2, one.x1 + one.x2, scale)
+            && closeTo(oneC.y1 + oneC.y2, one.y1 + one.y2, scale);
+    }
+    
+    public static boolean prop_bndsIntersectsSelf(Bounds one) {
+        return one.intersects(one);
+    }
+    
+    public static boolean prop_bndsSegmentAcrossEnters(Bounds one) {
+        float y = (one.y1 + one.y2) / 2;
+        float w = one.getWidth();
+        return one.segmentEntry(one.x1 - 1.0f, y, w + 2.0f, 0.0f) >= 0.0f
+            && one.segmentEntry(one.x1 - 1.0f, one.y2 + 1.0f, 0.0f, 0.5f) < 0.0f;
+    }
+    
+    public static boolean prop_bndsNoDistanceToCorner(Bounds one) {
+        return one.distanceSq(one.x1, one.y1) == 0.0f
+            && one.distanceSq(one.x2, one.y2) == 0.0f;
+    }
+    
+    /* Sector */
+    
+    public static boolean prop_secIntersectsAhead(Bounds one, float heading) {
+        /* From ten back along the heading from the centre, with range to spare. */
+        float cx = (one.x1 + one.x2) / 2, cy = (one.y1 + one.y2) / 2;
+        Sector s = new Sector(cx - 10.0f * (float) Math.sin(heading),
+                              cy - 10.0f * (float) Math.cos(heading),
+                              heading, 0.01f, 10.5f);
+        return s.intersects(one);
+    }
+    
+    /* QuadTree */
+    
+    public static boolean prop_qtQueryFindsAdded(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(one, one);
+        qt.add(two, two);
+        
+        CountingVisitor<Bounds> cv = new CountingVisitor<Bounds>();
+        qt.query(one, cv);
+        return cv.count == (one.intersects(two) ? 2 : 1);
+    }
+    
+    public static boolean prop_qtNearestFindsContaining(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(two, two);
+        qt.add(one, one);
+        
+        Bounds[] found = new Bounds[2];
+        float[] dists = new float[2];
+        int count = qt.nearest(one.x1, one.y1, 2, Float.POSITIVE_INFINITY, null,
+                               found, dists);
+        return count == 2 && dists[0] == 0.0f && dists[0] <= dists[1];
+    }
+    
+    public static boolean prop_qtSegmentFromInsideHitsFirst(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(two, two);
+        qt.add(one, one);
+        
+        Bounds[] hits = new Bounds[2];
+        float[] ts = new float[2];
+        int count = qt.querySegment(one.x1, one.y1, two.x2, two.y2, null, hits, ts);
+        return count >= 1 && ts[0] == 0.0f && (count == 1 || ts[0] <= ts[1]);
+    }
+    
+    public static boolean prop_qtPairsFindIntersecting(Bounds world, Bounds one, Bounds two, Bounds three) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(one, one);
+        qt.add(two, two);
+        qt.add(three, three);
+        
+        CountingPairVisitor<Bounds> cv = new CountingPairVisitor<Bounds>();
+        qt.queryPairs(cv);
+        int expected = (one.intersects(two) ? 1 : 0)
+                     + (one.intersects(three) ? 1 : 0)
+                     + (two.intersects(three) ? 1 : 0);
+        return cv.count == expected;
+    }
+    
+    public static boolean prop_qtSectorFindsContaining(Bounds world, Bounds one, Bounds two, float heading) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(two, two);
+        qt.add(one, one);
+        
+        /* A narrow, short sector from inside one still overlaps it. */
+        Sector s = new Sector((one.x1 + one.x2) / 2, (one.y1 + one.y2) / 2, heading, 0.1f, 1.0f);
+        Bounds[] found = new Bounds[2];
+        float[] dists = new float[2];
+        int count = qt.querySector(s, null, found, dists);
+        return count >= 1 && dists[0] == 0.0f && (found[0] == one || found[1] == one);
+    }
+    
+    public static boolean prop_qtTotalsFollowMoveAndRemove(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        int h = qt.add(one, one, 2.0f);
+        qt.add(two, two, 3.0f);
+        qt.move(h, two);
+        qt.remove(h);
+        return qt.getCount() == 1 && qt.getMass() == 3.0f;
+    }
+    
+    public static boolean prop_qtDensitySumsToCount(Bounds world, Bounds one, Bounds two, float minSide) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.add(one, one);
+        qt.add(two, two);
+        qt.add(two, two);
+        
+        /* Covers everything, so every object is counted once. */
+        Bounds all = new Bounds(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        SummingDensityVisitor sv = new SummingDensityVisitor();
+        qt.queryDensity(all, Math.abs(minSide), sv);
+        return sv.total == 3;
+    }
+    
+    public static boolean prop_qtStatsCountEntries(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        int h = qt.add(one, one);
+        qt.add(two, two);
+        qt.move(h, two);
+        
+        QuadTree.Stats st = new QuadTree.Stats();
+        qt.getStats(st);
+        int atDepths = 0;
+        for (int count : st.depthCounts) {
+            atDepths += count;
+        }
+        return st.entries == 2 && atDepths == 2 && st.moves == 1
+            && st.escapes <= 1 && st.leaves >= 1;
+    }
+    
+    public static boolean prop_qtRetuneKeepsQueries(Bounds arb) {
+        /* Square, as points in a sliver of a world stay near the root and
+         * rarely escape. */
+        float size = Math.max(arb.getWidth(), arb.getHeight());
+        Bounds world = new Bounds(arb.x1, arb.y1, arb.x1 + size, arb.y1 + size);
+        Bounds[] bs = scatter(world, Gen.g().choose(32, 64));
+        QuadTree<Integer> qt = new QuadTree<Integer>(world, 1, 1.25f);
+        qt.setAdaptive(true);
+        int[] handles = new int[bs.length];
+        for (int i=0; i<bs.length; i++) {
+            handles[i] = qt.add(bs[i], i);
+        }
+        
+        /* Fill a tuning window with points jumping across the world, which
+         * escape their leaves, so that the boxes will be loosened. */
+        for (int m=0; m<256; m++) {
+            int i = m % bs.length;
+            Bounds jump = scatter(world, 1)[0];
+            bs[i] = new Bounds(jump.x1, jump.y1, jump.x1, jump.y1);
+            qt.move(handles[i], bs[i]);
+        }
+        
+        /* Retune a node at a time, still moving, and query between steps. */
+        boolean retuned = false, done = false;
+        for (int m=0; m<4096 && !done; m++) {
+            int i = m % bs.length;
+            bs[i] = nudge(bs[i], world);
+            qt.move(handles[i], bs[i]);
+            
+            done = qt.tune(0l);
+            retuned |= qt.getTargetK() != 1.25f || qt.getTargetDesiredMax() != 1;
+            if (!matchesScan(qt, bs, null, Bounds.arbitrary(Gen.g()))) {
+                return false;
+            }
+        }
+        return retuned && done
+            && qt.getK() == qt.getTargetK() && qt.getDesiredMax() == qt.getTargetDesiredMax();
+    }
+    
+    public static boolean prop_qtEmptiesToRootAndReusesNodes(Bounds world) {
+        Bounds[] bs = scatter(world, Gen.g().choose(1, 64));
+        QuadTree<Integer> qt = new QuadTree<Integer>(world, 2, 1.5f);
+        int[] handles = new int[bs.length];
+        QuadTree.Stats full = new QuadTree.Stats();
+        QuadTree.Stats empty = new QuadTree.Stats();
+        QuadTree.Stats refilled = new QuadTree.Stats();
+        
+        for (int i=0; i<bs.length; i++) {
+            handles[i] = qt.add(bs[i], i);
+        }
+        qt.getStats(full);
+        for (int i=0; i<bs.length; i++) {
+            qt.remove(handles[i]);
+        }
+        qt.getStats(empty);
+        for (int i=0; i<bs.length; i++) {
+            qt.add(bs[i], i);
+        }
+        qt.getStats(refilled);
+        
+        /* The same adds make the same splits, each taking a node from the
+         * free list while it has any. */
+        int reused = empty.freeNodes - refilled.freeNodes;
+        return empty.nodes == 1 && empty.maxDepth == 0 && empty.entries == 0
+            && (empty.freeNodes > 0 || full.nodes == 1)
+            && refilled.nodes == full.nodes && refilled.maxDepth == full.maxDepth
+            && reused == Math.min(empty.freeNodes, full.nodes - 1);
+    }
+    
+    public static boolean prop_qtGrowsToFitFarObject(Bounds world, Bounds one) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.setGrowable(true);
+        
+        /* Ten world widths away, which a few doublings reach. */
+        float dx = 10.0f * world.getWidth(), dy = 10.0f * world.getHeight();
+        Bounds far = new Bounds(world.x2 + dx, world.y2 + dy, world.x2 + dx, world.y2 + dy);
+        int h = qt.add(far, far);
+        int h2 = qt.add(one, one);
+        boolean grown = world.getWidth() == 0.0f || world.getHeight() == 0.0f
+                     || qt.getBox().containsBounds(far);
+        
+        qt.remove(h);
+        qt.move(h2, world);
+        return grown && qt.getBox().containsBounds(world) && qt.getCount() == 1;
+    }
+    
+    public static boolean prop_qtGrowsOnceAcrossEdge(Bounds world) {
+        float w = world.getWidth(), h = world.getHeight();
+        if (w == 0.0f || h == 0.0f) {
+            return true;
+        }
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.setGrowable(true);
+        
+        /* Straddles the west edge, half way up it. */
+        float cy = (world.y1 + world.y2) / 2;
+        Bounds edge = new Bounds(world.x1 - w / 20, cy - h / 20, world.x1 + w / 20, cy + h / 20);
+        qt.add(edge, edge);
+        
+        Bounds box = qt.getBox();
+        return box.containsBounds(edge) && box.containsBounds(world)
+            && box.getWidth() <= 2.0f * w * 1.001f && box.getHeight() <= 2.0f * h * 1.001f;
+    }
+    
+    public static boolean prop_qtAddAllGrowsToFit(Bounds world) {
+        float w = world.getWidth(), h = world.getHeight();
+        if (w == 0.0f || h == 0.0f) {
+            return true;
+        }
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        qt.setGrowable(true);
+        
+        /* Either side of the world, a couple of widths out. */
+        Bounds west = new Bounds(world.x1 - 2 * w, world.y1, world.x1 - w, world.y1);
+        Bounds east = new Bounds(world.x2 + w, world.y2, world.x2 + 2 * w, world.y2);
+        qt.addAll(new Bounds[] { west, world, east }, new Bounds[] { west, world, east }, 3, new int[3]);
+        
+        CountingVisitor<Bounds> cv = new CountingVisitor<Bounds>();
+        qt.queryPoint(east.x2, east.y2, cv);
+        return qt.getBox().containsBounds(west) && qt.getBox().containsBounds(east)
+            && cv.count >= 1 && qt.getCount() == 3;
+    }
+    
+    public static boolean prop_qtMovedNotFoundAtOld(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        int h = qt.add(one, one);
+        qt.move(h, two);
+        
+        CountingVisitor<Bounds> cv = new CountingVisitor<Bounds>();
+        qt.query(one, cv);
+        return cv.count == (one.intersects(two) ? 1 : 0);
+    }
+    
+    public static boolean prop_qtAddAllHandlesMatch(Bounds world, Bounds one, Bounds two) {
+        QuadTree<Bounds> qt = new QuadTree<Bounds>(world, 1, 1.5f);
+        int[] handles = new int[2];
+        qt.addAll(new Bounds[] { one, two }, new Bounds[] { one, two }, 2, handles);
+        
+        CountingVisitor<Bounds> cv = new CountingVisitor<Bounds>();
+        qt.query(two, cv);
+        return qt.get(handles[0]) == one && qt.get(handles[1]) == two
+            && cv.count == (one.intersects(two) ? 2 : 1);
+    }
+    
+    /* Octree */
+    
+    public static boolean prop_otOctantsMatchScan(Volume world) {
+        Gen gen = Gen.g();
+        Volume[] vs = new Volume[gen.choose(16, 128)];
+        for (int i=0; i<vs.length; i++) {
+            vs[i] = scatterVolume(world);
+        }
+        Octree<Integer> ot = new Octree<Integer>(world, gen.choose(1, 3), 1.5f);
+        int[] handles = new int[vs.length];
+        boolean[] live = new boolean[vs.length];
+        
+        /* Objects are added, moved and looked for in every octant, so one
+         * put in a child chosen by the wrong bit for an axis is missed. */
+        for (int s=0; s<512; s++) {
+            int i = gen.choose(0, vs.length - 1);
+            if (!live[i]) {
+                handles[i] = ot.add(vs[i], i);
+                live[i] = true;
+            }
+            else if (gen.choose(0, 2) == 0) {
+                ot.remove(handles[i]);
+                live[i] = false;
+            }
+            else {
+                vs[i] = scatterVolume(world);
+                ot.move(handles[i], vs[i]);
+            }
+            
+            Volume region = scatterVolume(world);
+            region.enlarge(gen.within(1.0f, 10.0f));
+            MarkingVolumeVisitor inRegion = new MarkingVolumeVisitor(vs.length);
+            ot.query(region, inRegion);
+            
+            Volume at = vs[gen.choose(0, vs.length - 1)];
+            float x = (at.x1 + at.x2) / 2, y = (at.y1 + at.y2) / 2, z = (at.z1 + at.z2) / 2;
+            MarkingVolumeVisitor atPoint = new MarkingVolumeVisitor(vs.length);
+            ot.queryPoint(x, y, z, atPoint);
+            
+            for (int j=0; j<vs.length; j++) {
+                if (inRegion.visits[j] != (live[j] && vs[j].intersects(region) ? 1 : 0)
+                        || atPoint.visits[j] != (live[j] && vs[j].containsPoint(x, y, z) ? 1 : 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    public static boolean prop_otPointsSplitToOctants(Volume world) {
+        /* With one point per node, a point sits one below the deepest node
+         * it shares with any other, found by halving each axis in turn. */
+        Volume[] ps = new Volume[Gen.g().choose(2, 32)];
+        Octree<Integer> ot = new Octree<Integer>(world, 1, 1.5f);
+        int[] handles = new int[ps.length];
+        for (int i=0; i<ps.length; i++) {
+            float x = Gen.g().within(world.x1, world.x2);
+            float y = Gen.g().within(world.y1, world.y2);
+            float z = Gen.g().within(world.z1, world.z2);
+            ps[i] = new Volume(x, x, y, y, z, z);
+            handles[i] = ot.add(ps[i], i);
+        }
+        for (int i=0; i<ps.length; i++) {
+            int shared = 0;
+            for (int j=0; j<ps.length; j++) {
+                if (j != i) {
+                    shared = Math.max(shared, sharedOctants(world, ps[i], ps[j]));
+                }
+            }
+            if (ot.getDepth(handles[i]) != Math.min(OT_MAX_DEPTH, shared + 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /* SnapshotQuadTree */
+    
+    public static boolean prop_sqtSnapshotUnchangedByMove(Bounds world, Bounds one, Bounds two) {
+        SnapshotQuadTree<Bounds> qt = new SnapshotQuadTree<Bounds>(world, 1, 1.5f);
+        int h = qt.add(one, one);
+        qt.add(two, two);
+        SnapshotQuadTree.Snapshot<Bounds> before = qt.publish();
+        qt.move(h, two);
+        
+        CountingVisitor<Bounds> then = new CountingVisitor<Bounds>();
+        before.query(one, then);
+        CountingVisitor<Bounds> now = new CountingVisitor<Bounds>();
+        qt.query(one, now);
+        return then.count == (one.intersects(two) ? 2 : 1)
+            && now.count == (one.intersects(two) ? 2 : 0);
+    }
+    
+    /* PackedQuadTree */
+    
+    public static boolean prop_pqtSplitsAndCollapsesMatchScan(Bounds world) {
+        Bounds[] bs = scatter(world, Gen.g().choose(16, 64));
+        PackedQuadTree<Integer> qt = new PackedQuadTree<Integer>(world, Gen.g().choose(1, 3), 1.5f);
+        int[] handles = new int[bs.length];
+        boolean[] live = new boolean[bs.length];
+        
+        /* Splits as it fills, then collapses as it's emptied, so the second
+         * fill is split over freed blocks and handles. */
+        if (!churnMatchesScan(qt, world, bs, handles, live, scatter(world, 8), 256)) {
+            return false;
+        }
+        for (int i=0; i<bs.length; i++) {
+            if (live[i]) {
+                qt.remove(handles[i]);
+                live[i] = false;
+            }
+        }
+        return matchesScan(qt, bs, live, world)
+            && churnMatchesScan(qt, world, bs, handles, live, scatter(world, 8), 256);
+    }
+    
+    /* LinearQuadTree */
+    
+    public static boolean prop_lqtBigAndSmallMatchScan(Bounds world) {
+        Bounds[] bs = scatter(world, Gen.g().choose(16, 128));
+        float maxEntrySize = (world.getWidth() + world.getHeight()) / 80;
+        LinearQuadTree<Integer> qt = new LinearQuadTree<Integer>(world, maxEntrySize);
+        
+        /* Half the jumps are too wide or too tall to be keyed, so objects
+         * move between the oversized list and the sorted keys, and the
+         * small ones' queries skip runs of keys outside the region. */
+        Bounds[] jumps = scatter(world, 16);
+        for (int j=0; j<jumps.length; j+=2) {
+            Bounds b = jumps[j];
+            jumps[j] = j % 4 == 0 ? new Bounds(b.x1, b.y1, b.x1 + 2 * maxEntrySize, b.y2)
+                                  : new Bounds(b.x1, b.y1, b.x2, b.y1 + 2 * maxEntrySize);
+        }
+        return churnMatchesScan(qt, world, bs, new int[bs.length], new boolean[bs.length], jumps, 512);
+    }
+    
+    public static boolean prop_lqtSkipsOntoLatticeMatchScan(Bounds world) {
+        /* Points and query corners on a shared lattice sit in the cells the
+         * skips land on, rather than almost never doing so. */
+        Bounds[] bs = new Bounds[Gen.g().choose(16, 128)];
+        LinearQuadTree<Integer> qt = new LinearQuadTree<Integer>(world, world.getWidth());
+        for (int i=0; i<bs.length; i++) {
+            bs[i] = latticeBounds(world, 16, 0);
+            qt.add(bs[i], i);
+        }
+        for (int q=0; q<64; q++) {
+            if (!matchesScan(qt, bs, null, latticeBounds(world, 16, Gen.g().choose(0, 8)))) {
+                return false;
+            }
+        }
+        return pairsMatchScan(qt, bs, null);
+    }
+    
+    /* HashGrid */
+    
+    public static boolean prop_hgOversizedAndSameCellMatchScan(Bounds world) {
+        Bounds[] bs = scatter(world, Gen.g().choose(16, 128));
+        float cellSize = (world.getWidth() + world.getHeight()) / 20;
+        HashGrid<Integer> hg = new HashGrid<Integer>(cellSize, 4);
+        
+        /* Cells are big enough that most nudges stay in the same cells,
+         * and half the jumps span too many cells to be linked, so objects
+         * move between the cells and the oversized list. */
+        Bounds[] jumps = scatter(world, 16);
+        for (int j=0; j<jumps.length; j+=2) {
+            Bounds b = jumps[j];
+            jumps[j] = new Bounds(b.x1, b.y1, b.x1 + 6 * cellSize, b.y1 + 3 * cellSize);
+        }
+        return churnMatchesScan(hg, world, bs, new int[bs.length], new boolean[bs.length], jumps, 512);
+    }
+    
+    /* AabbTree */
+    
+    public static boolean prop_aabbFatBoxesAndBalanceMatchScan(Bounds world) {
+        /* Added in order along the diagonal, which without rotations would
+         * build a list. */
+        int n = Gen.g().choose(16, 128);
+        Bounds[] bs = new Bounds[n];
+        int[] handles = new int[n];
+        boolean[] live = new boolean[n];
+        float w = world.getWidth() / n, h = world.getHeight() / n;
+        AabbTree<Integer> t = new AabbTree<Integer>((world.getWidth() + world.getHeight()) / 100);
+        for (int i=0; i<n; i++) {
+            bs[i] = new Bounds(world.x1 + i * w, world.y1 + i * h,
+                               world.x1 + (i + 1) * w, world.y1 + (i + 1) * h);
+            handles[i] = t.add(bs[i], i);
+            live[i] = true;
+        }
+        if (!balanced(t, n)) {
+            return false;
+        }
+        
+        /* The margin is about a nudge, so some nudges stay inside their fat
+         * boxes and others escape them. */
+        if (!churnMatchesScan(t, world, bs, handles, live, scatter(world, 8), 512)) {
+            return false;
+        }
+        int count = 0;
+        for (int i=0; i<n; i++) {
+            count += live[i] ? 1 : 0;
+        }
+        return balanced(t, count);
+    }
+    
+    /* SweepAndPrune */
+    
+    public static boolean prop_sapPairedWhenIntersecting(Bounds one, Bounds two, Bounds three) {
+        SweepAndPrune<Bounds> sap = new SweepAndPrune<Bounds>(null);
+        int a = sap.add(one, one);
+        int b = sap.add(two, two);
+        sap.move(b, three);
+        
+        return sap.isPaired(a, b) == one.intersects(three)
+            && sap.getPairCount() == (one.intersects(three) ? 1 : 0);
+    }
+    
+    public static boolean prop_sapListenerHearsEachChange(Bounds world) {
+        Gen gen = Gen.g();
+        Bounds[] bs = scatter(world, gen.choose(2, 32));
+        for (int i=0; i<bs.length; i++) {
+            bs[i].enlarge(4.0f); /* so that objects often overlap */
+        }
+        RecordingPairListener heard = new RecordingPairListener(bs.length);
+        SweepAndPrune<Integer> sap = new SweepAndPrune<Integer>(heard);
+        int[] handles = new int[bs.length];
+        boolean[] live = new boolean[bs.length];
+        boolean[] was = new boolean[bs.length];
+        
+        /* Change one object a step, and compare what it overlaps before and
+         * after with what the listener heard. */
+        for (int s=0; s<256; s++) {
+            int i = gen.choose(0, bs.length - 1);
+            for (int j=0; j<bs.length; j++) {
+                was[j] = j != i && live[i] && live[j] && bs[i].intersects(bs[j]);
+            }
+            
+            heard.clear();
+            if (!live[i]) {
+                handles[i] = sap.add(bs[i], i);
+                live[i] = true;
+            }
+            else if (gen.choose(0, 3) == 0) {
+                sap.remove(handles[i]);
+                live[i] = false;
+            }
+            else {
+                bs[i] = nudge(bs[i], world);
+                sap.move(handles[i], bs[i]);
+            }
+            
+            int changes = 0, pairs = 0;
+            for (int j=0; j<bs.length; j++) {
+                boolean now = j != i && live[i] && live[j] && bs[i].intersects(bs[j]);
+                int a = Math.min(i, j), b = Math.max(i, j);
+                if (heard.added[a][b] != (now && !was[j] ? 1 : 0)
+                        || heard.removed[a][b] != (was[j] && !now ? 1 : 0)
+                        || (now && !sap.isPaired(handles[i], handles[j]))) {
+                    return false;
+                }
+                changes += now != was[j] ? 1 : 0;
+                for (int k=j+1; k<bs.length; k++) {
+                    pairs += live[j] && live[k] && bs[j].intersects(bs[k]) ? 1 : 0;
+                }
+            }
+            if (heard.events != changes || sap.getPairCount() != pairs) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** @return Answers n small bounds scattered over `world`, and a little
+     * way beyond it, drawn from the same generator as the arguments. */
+    private static Bounds[] scatter(Bounds world, int n) {
+        Gen gen = Gen.g();
+        float w = world.getWidth(), h = world.getHeight();
+        Bounds[] bs = new Bounds[n];
+        for (int i=0; i<n; i++) {
+            float x = gen.within(world.x1 - w / 10, world.x2 + w / 10);
+            float y = gen.within(world.y1 - h / 10, world.y2 + h / 10);
+            float s = gen.within(0.0f, (w + h) / 40);
+            bs[i] = new Bounds(x, y, x + s, y + s);
+        }
+        return bs;
+    }
+    
+    /** Adds, removes and moves the objects at random, one step at a time.
+     * Objects that aren't live are added, and live ones removed, nudged or
+     * jumped to a random one of `jumps`. Every step is followed by a query
+     * of a random region, and the pairs are checked at the end.
+     * 
+     * @return Answers whether every query matched scanning the objects. */
+    private static boolean churnMatchesScan(SpatialIndex<Integer> index, Bounds world, Bounds[] bs,
+                                            int[] handles, boolean[] live, Bounds[] jumps, int steps) {
+        Gen gen = Gen.g();
+        for (int s=0; s<steps; s++) {
+            int i = gen.choose(0, bs.length - 1);
+            if (!live[i]) {
+                handles[i] = index.add(bs[i], i);
+                live[i] = true;
+            }
+            else {
+                switch (gen.choose(0, 2)) {
+                case 0:
+                    index.remove(handles[i]);
+                    live[i] = false;
+                    break;
+                case 1:
+                    bs[i] = jumps[gen.choose(0, jumps.length - 1)].copy();
+                    index.move(handles[i], bs[i]);
+                    break;
+                default:
+                    bs[i] = nudge(bs[i], world);
+                    index.move(handles[i], bs[i]);
+                }
+            }
+            
+            Bounds region = scatter(world, 1)[0];
+            region.enlarge(gen.within(1.0f, 10.0f));
+            if (!matchesScan(index, bs, live, region)) {
+                return false;
+            }
+        }
+        return pairsMatchScan(index, bs, live);
+    }
+    
+    /** @return Answers bounds up to `span` steps across, with corners on a
+     * side by side lattice over `world`. */
+    private static Bounds latticeBounds(Bounds world, int side, int span) {
+        Gen gen = Gen.g();
+        int i = gen.choose(0, side - span), j = gen.choose(0, side - span);
+        return new Bounds(world.x1 + world.getWidth() * i / side,
+                          world.y1 + world.getHeight() * j / side,
+                          world.x1 + world.getWidth() * (i + gen.choose(0, span)) / side,
+                          world.y1 + world.getHeight() * (j + gen.choose(0, span)) / side);
+    }
+    
+    /** @return Answers a small volume somewhere in `world`, or a little way
+     * beyond it. */
+    private static Volume scatterVolume(Volume world) {
+        Gen gen = Gen.g();
+        float w = world.x2 - world.x1, h = world.y2 - world.y1, d = world.z2 - world.z1;
+        float x = gen.within(world.x1 - w / 10, world.x2 + w / 10);
+        float y = gen.within(world.y1 - h / 10, world.y2 + h / 10);
+        float z = gen.within(world.z1 - d / 10, world.z2 + d / 10);
+        float s = gen.within(0.0f, (w + h + d) / 60);
+        return new Volume(x, x + s, y, y + s, z, z + s);
+    }
+    
+    /** @return Answers how many times halving `world` on every axis leaves
+     * the points a and b in the same eighth, up to Octree's depth limit. */
+    private static int sharedOctants(Volume world, Volume a, Volume b) {
+        Volume n = world.copy();
+        int shared = 0;
+        while (shared < OT_MAX_DEPTH) {
+            float midX = (n.x1 + n.x2) / 2, midY = (n.y1 + n.y2) / 2, midZ = (n.z1 + n.z2) / 2;
+            boolean xHigh = a.x1 >= midX, yHigh = a.y1 >= midY, zHigh = a.z1 >= midZ;
+            if (xHigh != b.x1 >= midX || yHigh != b.y1 >= midY || zHigh != b.z1 >= midZ) {
+                break;
+            }
+            if (xHigh) n.x1 = midX; else n.x2 = midX;
+            if (yHigh) n.y1 = midY; else n.y2 = midY;
+            if (zHigh) n.z1 = midZ; else n.z2 = midZ;
+            shared++;
+        }
+        return shared;
+    }
+    
+    /** @return Answers `b` moved by up to a fiftieth of the world's size,
+     * not so far that it always escapes its node. */
+    private static Bounds nudge(Bounds b, Bounds world) {
+        Gen gen = Gen.g();
+        float dx = gen.within(-1.0f, 1.0f) * world.getWidth() / 50;
+        float dy = gen.within(-1.0f, 1.0f) * world.getHeight() / 50;
+        return new Bounds(b.x1 + dx, b.y1 + dy, b.x2 + dx, b.y2 + dy);
+    }
+    
+    /** @return Answers whether querying `index` with `region` visits exactly
+     * the live objects whose bounds intersect it, once each, as found by
+     * scanning them all. Objects are their indices in bs, and live may be
+     * null if they all are. */
+    private static boolean matchesScan(SpatialIndex<Integer> index, Bounds[] bs, boolean[] live,
+                                       Bounds region) {
+        MarkingVisitor mv = new MarkingVisitor(bs.length);
+        index.query(region, mv);
+        for (int i=0; i<bs.length; i++) {
+            boolean want = (live == null || live[i]) && bs[i].intersects(region);
+            if (mv.visits[i] != (want ? 1 : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /** @return Answers whether queryPairs visits exactly the pairs of live
+     * objects whose bounds intersect, once each, as found by scanning them
+     * all. */
+    private static boolean pairsMatchScan(SpatialIndex<Integer> index, Bounds[] bs, boolean[] live) {
+        PairMarkingVisitor pv = new PairMarkingVisitor(bs.length);
+        index.queryPairs(pv);
+        for (int i=0; i<bs.length; i++) {
+            for (int j=i+1; j<bs.length; j++) {
+                boolean want = (live == null || (live[i] && live[j])) && bs[i].intersects(bs[j]);
+                if (pv.visits[i][j] != (want ? 1 : 0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /** @return Answers whether the tree is no higher than an AVL balanced
+     * tree of as many leaves can be. */
+    private static boolean balanced(AabbTree<?> t, int leaves) {
+        if (leaves == 0) {
+            return t.getHeight() == -1;
+        }
+        return t.getHeight() <= 1.45 * Math.log(2 * leaves + 1) / Math.log(2);
+    }
+    
+    /** @return Answers whether a and b differ by no more than float rounding
+     * over a few operations on values of about `scale`. */
+    private static boolean closeTo(float a, float b, float scale) {
+        return Math.abs(a - b) <= 1.0e-5f * scale + Float.MIN_VALUE;
+    }
+    
+    private static class CountingVisitor<A> implements SpatialVisitor<A> {
+        private int count = 0;
+        
+        @Override
+        public void visit(A obj, Bounds b) {
+            count++;
+        }
+    }
+    
+    private static class MarkingVisitor implements SpatialVisitor<Integer> {
+        private final int[] visits;
+        
+        private MarkingVisitor(int count) {
+            visits = new int[count];
+        }
+        
+        @Override
+        public void visit(Integer obj, Bounds b) {
+            visits[obj]++;
+        }
+    }
+    
+    private static class MarkingVolumeVisitor implements VolumeVisitor<Integer> {
+        private final int[] visits;
+        
+        private MarkingVolumeVisitor(int count) {
+            visits = new int[count];
+        }
+        
+        @Override
+        public void visit(Integer obj, Volume v) {
+            visits[obj]++;
+        }
+    }
+    
+    private static class PairMarkingVisitor implements SpatialPairVisitor<Integer> {
+        private final int[][] visits;
+        
+        private PairMarkingVisitor(int count) {
+            visits = new int[count][count];
+        }
+        
+        @Override
+        public void visit(Integer a, Integer b) {
+            visits[Math.min(a, b)][Math.max(a, b)]++;
+        }
+    }
+    
+    private static class RecordingPairListener implements SweepAndPrune.PairListener<Integer> {
+        private final int[][] added, removed;
+        private int events;
+        
+        private RecordingPairListener(int count) {
+            added = new int[count][count];
+            removed = new int[count][count];
+        }
+        
+        private void clear() {
+            for (int i=0; i<added.length; i++) {
+                Arrays.fill(added[i], 0);
+                Arrays.fill(removed[i], 0);
+            }
+            events = 0;
+        }
+        
+        @Override
+        public void pairAdded(Integer a, Integer b) {
+            added[Math.min(a, b)][Math.max(a, b)]++;
+            events++;
+        }
+        
+        @Override
+        public void pairRemoved(Integer a, Integer b) {
+            removed[Math.min(a, b)][Math.max(a, b)]++;
+            events++;
+        }
+    }
+    
+    private static class CountingPairVisitor<A> implements SpatialPairVisitor<A> {
+        private int count = 0;
+        
+        @Override
+        public void visit(A a, A b) {
+            count++;
+        }
+    }
+    
+    private static class SummingDensityVisitor implements DensityVisitor {
+        private int total = 0;
+        
+        @Override
+        public void visit(Bounds area, int count) {
+            total += count;
+        }
     }
 }
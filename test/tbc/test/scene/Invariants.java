@@ -0,0 +1,98 @@
+package tbc.test.scene;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import tbc.data.spatial.Bounds;
+import tbc.data.spatial.Point3D;
+import tbc.data.spatial.QuadTree;
+import tbc.data.spatial.SpatialVisitor;
+import tbc.data.spatial.Volume;
+import tbc.scene.PlaneWorld;
+import tbc.scene.RenderQueue;
+import tbc.scene.ScnObj;
+import tbc.supercheck.Gen;
+
+public class Invariants
+{
+    /* RenderQueue */
+    
+    public static boolean prop_rqKeysGroupByMesh(float one, float two) {
+        int lower = Gen.g().choose(0, 0xFFFE);
+        int higher = Gen.g().choose(lower + 1, 0xFFFF);
+        return RenderQueue.sortKey(lower, anyFrontFace(), one)
+             < RenderQueue.sortKey(higher, anyFrontFace(), two);
+    }
+    
+    public static boolean prop_rqNearerSortsFirst(float one, float two) {
+        /* Eye space looks down -z, so the larger z is the nearer. Depth is
+         * coarse, but keeps the sign and exponent. */
+        int mesh = Gen.g().choose(0, 0xFFFF);
+        int face = anyFrontFace();
+        float nearer = Math.max(one, two), farther = Math.min(one, two);
+        int nearKey = RenderQueue.sortKey(mesh, face, nearer);
+        int farKey = RenderQueue.sortKey(mesh, face, farther);
+        boolean apart = Math.getExponent(nearer) != Math.getExponent(farther) || nearer * farther < 0;
+        return apart ? nearKey < farKey : nearKey <= farKey;
+    }
+    
+    public static boolean prop_rqKeysPositiveAtTopMesh(float one, float two) {
+        int top = RenderQueue.sortKey(0xFFFF, anyFrontFace(), one);
+        return top >= 0 && top > RenderQueue.sortKey(0xFFFE, anyFrontFace(), two);
+    }
+    
+    /* PlaneWorld */
+    
+    public static boolean prop_pwChildIndexedUnderMovedParent(Point3D one, Point3D two) {
+        QuadTree<ScnObj> index = new QuadTree<ScnObj>(-1000.0f, -1000.0f, 1000.0f, 1000.0f, 1, 1.5f);
+        PlaneWorld world = new PlaneWorld(index);
+        Box parent = new Box();
+        world.addChild(parent);
+        parent.moveToRelativePos(one);
+        
+        /* Asked for its volume before it has a parent, so it has one cached
+         * at `two` that adding it must throw away. */
+        Box child = new Box();
+        child.moveToRelativePos(two);
+        child.getVolume();
+        parent.addChild(child);
+        world.updateCollisions(1l);
+        
+        Point3D at = one.add(two);
+        FindingVisitor found = new FindingVisitor(child);
+        index.queryPoint(at.x, at.y, found);
+        return found.bounds != null
+            && Math.abs(found.bounds.x1 - (at.x - 1.0f)) < 1.0e-3f
+            && Math.abs(found.bounds.y1 - (at.y - 1.0f)) < 1.0e-3f
+            && Math.abs(found.bounds.x2 - (at.x + 1.0f)) < 1.0e-3f
+            && Math.abs(found.bounds.y2 - (at.y + 1.0f)) < 1.0e-3f;
+    }
+    
+    private static int anyFrontFace() {
+        return Gen.g().choose(0, 1) == 0 ? GL10.GL_CW : GL10.GL_CCW;
+    }
+    
+    /** A cube two units across, around its place in the world. */
+    private static class Box extends ScnObj {
+        @Override
+        protected Volume onCalculateVolume() {
+            Point3D p = getAbsolutePos();
+            return new Volume(p.x - 1.0f, p.x + 1.0f, p.y - 1.0f, p.y + 1.0f, p.z - 1.0f, p.z + 1.0f);
+        }
+    }
+    
+    private static class FindingVisitor implements SpatialVisitor<ScnObj> {
+        private final ScnObj wanted;
+        private Bounds bounds;
+        
+        private FindingVisitor(ScnObj wanted) {
+            this.wanted = wanted;
+        }
+        
+        @Override
+        public void visit(ScnObj obj, Bounds b) {
+            if (obj == wanted) {
+                bounds = b.copy();
+            }
+        }
+    }
+}